@@ -15,6 +15,10 @@ public class Constants {
 
     // HTSPMessage Sequence IDs
     public static final int UNIQUE_AUTH_SEQ_ID = 101;
+    public static final int UNIQUE_PROFILES_SEQ_ID = 102;
+    // File API requests each take the next ID from here
+    public static final int UNIQUE_FILE_SEQ_ID_BASE = 1000000;
+    public static final int UNIQUE_INDEX_SEQ_ID_BASE = 2000000;
 
 
     // EPG Details
@@ -41,6 +45,9 @@ public class Constants {
 
     public static final String RECORDED_PROGRAM_ID = "id";
     public static final String RECORDED_PROGRAM_CHANNEL = "channel";
+    public static final String RECORDED_PROGRAM_STATE = "state";
+    public static final String RECORDING_STATE_RECORDING = "recording";
+    public static final String RECORDING_STATE_COMPLETED = "completed";
 
     public static final String SUBSCRIPTION_ERROR = "subscriptionError";
     public static final String NO_FREE_ADAPTOR = "noFreeAdapter";
@@ -62,7 +69,7 @@ public class Constants {
     // HTSP Methods
     public static final Set<String> AUTH_METHODS = new ArraySet<>(Arrays.asList("hello","authenticate"));
     public static final Set<String> EPG_METHODS = new ArraySet<>(Arrays.asList("channelAdd","eventAdd","channelUpdate","eventUpdate","initialSyncCompleted","dvrEntryAdd","dvrEntryUpdate"));
-    public static final Set<String> SUBSCRIPTION_METHODS = new ArraySet<>(Arrays.asList("subscriptionStart","subscriptionStatus","subscriptionStop","subscriptionSkip","subscriptionSpeed","muxpkt","timeshiftStatus"));
+    public static final Set<String> SUBSCRIPTION_METHODS = new ArraySet<>(Arrays.asList("subscriptionStart","subscriptionStatus","subscriptionStop","subscriptionSkip","subscriptionSpeed","muxpkt","timeshiftStatus","queueStatus","signalStatus"));
 
     // TVHeadEnd Audio Sample Rates
     public static final int[] AUDIO_SAMPLE_RATES = new int[]{
@@ -81,4 +88,27 @@ public class Constants {
     public static final boolean PREFERENCE_NOT_SET_BOOL = false;
 
     public static final String PREFERENCE_SETUP_COMPLETE = "SETUP_COMPLETE";
+    public static final String PREFERENCE_ZAPPING_MODE = "ZAPPING_MODE";
+    public static final String PREFERENCE_PRE_SUBSCRIPTIONS = "PRE_SUBSCRIPTIONS";
+    public static final String PREFERENCE_PRE_SUBSCRIPTION_MEMORY = "PRE_SUBSCRIPTION_MEMORY";
+    public static final String PREFERENCE_STREAM_PROFILE = "STREAM_PROFILE";
+    public static final String PREFERENCE_ADAPTIVE_PROFILES = "ADAPTIVE_PROFILES";
+    public static final String PREFERENCE_LEGACY_TRICK_PLAY = "LEGACY_TRICK_PLAY";
+    public static final String PREFERENCE_LOCAL_TIMESHIFT_SIZE = "LOCAL_TIMESHIFT_SIZE";
+    public static final String PREFERENCE_LOCAL_RECORDINGS = "LOCAL_RECORDINGS";
+    public static final String PREFERENCE_RECORDING_CACHE_SIZE = "RECORDING_CACHE_SIZE";
+    public static final String PREFERENCE_LIVE_LATENCY_TARGET = "LIVE_LATENCY_TARGET";
+    // Subscription policy keys, suffixed with the SubscriptionPolicy.Use and optionally an account id
+    public static final String PREFERENCE_SUBSCRIPTION_WEIGHT = "SUBSCRIPTION_WEIGHT";
+    public static final String PREFERENCE_SUBSCRIPTION_QUEUE_DEPTH = "SUBSCRIPTION_QUEUE_DEPTH";
+    public static final String PREFERENCE_SUBSCRIPTION_TIMESHIFT_PERIOD = "SUBSCRIPTION_TIMESHIFT_PERIOD";
+    public static final String PREFERENCE_SUBSCRIPTION_90KHZ = "SUBSCRIPTION_90KHZ";
+    public static final String PREFERENCE_SUBSCRIPTION_NORMTS = "SUBSCRIPTION_NORMTS";
+
+    // Stream Profiles
+    public static final String DEFAULT_STREAM_PROFILE = "htsp";
+
+    // App private commands of a TV session, and their extras
+    public static final String ACTION_AUDIO_ONLY = "com.openiptv.code.AUDIO_ONLY";
+    public static final String EXTRA_AUDIO_ONLY = "audio_only";
 }
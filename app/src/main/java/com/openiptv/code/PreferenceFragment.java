@@ -53,6 +53,9 @@ public class PreferenceFragment extends LeanbackSettingsFragmentCompat {
 
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+            // Store the preferences where PreferenceUtils reads them from
+            getPreferenceManager().setSharedPreferencesName(Constants.ACCOUNT);
+
             // Load the preferences from an XML resource
             setPreferencesFromResource(R.xml.preferences, rootKey);
         }
@@ -103,6 +103,22 @@ public class PreferenceUtils {
         return sharedPreferences.getInt(key, PREFERENCE_NOT_SET_INT);
     }
 
+    /**
+     * Returns an int value from a preference stored as a String, as done by ListPreference and
+     * EditTextPreference
+     * @param key preference key
+     * @param fallback value to return if the preference is not set or not a number
+     * @return stored value
+     */
+    public int getStringAsInteger(String key, int fallback)
+    {
+        try {
+            return Integer.parseInt(sharedPreferences.getString(key, PREFERENCE_NOT_SET_STRING));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
     public boolean containsKey(String key)
     {
         return sharedPreferences.contains(key);
@@ -16,8 +16,10 @@ import com.openiptv.code.htsp.BaseConnection;
 import com.openiptv.code.htsp.ConnectionInfo;
 import com.openiptv.code.htsp.HTSPMessage;
 import com.openiptv.code.htsp.MessageListener;
+import com.openiptv.code.player.RecordingIndexer;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 
 import static com.openiptv.code.Constants.DEBUG;
@@ -29,6 +31,9 @@ public class EPGCaptureTask implements MessageListener {
     private Context context;
     private BaseConnection connection;
     private Set<Listener> syncListeners;
+    private RecordingIndexer recordingIndexer;
+    // Recordings seen in progress, they are indexed once they complete
+    private final Set<Integer> activeRecordings = new HashSet<>();
 
     public interface Listener {
         void onSyncComplete();
@@ -59,6 +64,7 @@ public class EPGCaptureTask implements MessageListener {
 
         this.context = context;
         syncListeners = new ArraySet<>();
+        recordingIndexer = new RecordingIndexer(context, connection);
     }
 
     public void addSyncListener(Listener listener) {
@@ -70,6 +76,7 @@ public class EPGCaptureTask implements MessageListener {
 
     public void stop() {
         syncListeners = null;
+        recordingIndexer.release();
         connection.stop();
     }
 
@@ -135,6 +142,27 @@ public class EPGCaptureTask implements MessageListener {
                 Log.d(TAG, "ERROR: " + e.toString()); // Ignored
             }
         }
+
+        indexCompletedRecording(message, recordedProgram.getRecordingId());
+    }
+
+    /**
+     * Starts indexing a recording for seeking when it goes from recording to completed. Recordings
+     * which were already complete are indexed when first played instead.
+     * @param message dvrEntryAdd or dvrEntryUpdate message
+     * @param recordingId TVH recording id
+     */
+    private void indexCompletedRecording(HTSPMessage message, int recordingId) {
+        String state = message.getString(Constants.RECORDED_PROGRAM_STATE);
+
+        if (Constants.RECORDING_STATE_RECORDING.equals(state)) {
+            activeRecordings.add(recordingId);
+        } else if (Constants.RECORDING_STATE_COMPLETED.equals(state) && activeRecordings.remove(recordingId)) {
+            if (DEBUG) {
+                Log.d(TAG, "Recording completed, indexing: " + recordingId);
+            }
+            recordingIndexer.index(recordingId);
+        }
     }
 
     public void initialCompleted() {
@@ -387,4 +387,50 @@ public class RecordedProgram {
 
         return null;
     }
+
+    /**
+     * Returns the file of a recording made on this device by LocalRecorder from a given
+     * RecordedProgram Uri. TvHeadEnd recordings store their event id as the data uri instead.
+     *
+     * @param context      application context
+     * @param recordingUri uri used to locate the recording in TvProvider database
+     * @return file uri, or null if it isn't a local recording
+     */
+    public static Uri getLocalRecordingFromRecordingUri(Context context, Uri recordingUri) {
+        ContentResolver resolver = context.getContentResolver();
+
+        String[] projection = {TvContract.RecordedPrograms._ID, TvContract.RecordedPrograms.COLUMN_RECORDING_DATA_URI};
+
+        try (Cursor cursor = resolver.query(recordingUri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToNext() && cursor.getString(1) != null) {
+                Uri dataUri = Uri.parse(cursor.getString(1));
+                if ("file".equals(dataUri.getScheme())) {
+                    return dataUri;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether a recording has ended, going by the end time stored in the TvProvider database
+     *
+     * @param context      application context
+     * @param recordingUri uri used to locate the recording in TvProvider database
+     * @return true if the end time has passed
+     */
+    public static boolean isRecordingFinished(Context context, Uri recordingUri) {
+        ContentResolver resolver = context.getContentResolver();
+
+        String[] projection = {TvContract.RecordedPrograms._ID, TvContract.RecordedPrograms.COLUMN_END_TIME_UTC_MILLIS};
+
+        try (Cursor cursor = resolver.query(recordingUri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToNext()) {
+                return cursor.getLong(1) < System.currentTimeMillis();
+            }
+        }
+
+        return false;
+    }
 }
@@ -104,7 +104,8 @@ public class Authenticator implements MessageListener, Connection.Listener {
             return;
         }
 
-        if(message.containsKey("error"))
+        // Replies to other requests carry their own seq, their errors aren't authentication errors
+        if(message.containsKey("error") && !message.containsKey("seq"))
         {
             setState(State.FAILED);
             return;
@@ -0,0 +1,135 @@
+package com.openiptv.code.htsp;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import static com.openiptv.code.Constants.FALLBACK_SUBSCRIPTION_ID;
+
+/**
+ * Measures the bitrate received on a connection, in total and for each subscription. Bytes are
+ * counted as whole HTSP messages are read off the socket, and folded into a smoothed bitrate once
+ * per sample window.
+ */
+public class BandwidthMeter {
+    private static final long SAMPLE_WINDOW_MS = 1000;
+    // Weight of the newest sample in the smoothed bitrate
+    private static final double SMOOTHING = 0.3;
+    // The peak decays each sample window, so it follows a link which has got worse
+    private static final double PEAK_DECAY = 0.98;
+
+    /**
+     * Smoothed bitrate of a single stream of bytes.
+     */
+    private static class Estimate {
+        private long windowStartMs;
+        private long windowBytes = 0;
+        private long totalBytes = 0;
+        private double bitrate = -1;
+        private long peakBitrate = 0;
+
+        Estimate(long nowMs) {
+            windowStartMs = nowMs;
+        }
+
+        void add(long bytes, long nowMs) {
+            update(nowMs);
+            windowBytes += bytes;
+            totalBytes += bytes;
+        }
+
+        void update(long nowMs) {
+            long elapsedMs = nowMs - windowStartMs;
+            if (elapsedMs < SAMPLE_WINDOW_MS) {
+                return;
+            }
+
+            double sample = windowBytes * 8000.0 / elapsedMs;
+            bitrate = bitrate < 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * bitrate;
+            peakBitrate = Math.max((long) sample, (long) (peakBitrate * PEAK_DECAY));
+
+            windowStartMs = nowMs;
+            windowBytes = 0;
+        }
+    }
+
+    private final Estimate connection = new Estimate(SystemClock.elapsedRealtime());
+    private final SparseArray<Estimate> subscriptions = new SparseArray<>();
+
+    /**
+     * Counts a message read off the socket.
+     * @param subscriptionId subscription the message belongs to, or FALLBACK_SUBSCRIPTION_ID
+     * @param bytes size of the message on the wire
+     */
+    public synchronized void onBytesReceived(int subscriptionId, long bytes) {
+        long nowMs = SystemClock.elapsedRealtime();
+
+        connection.add(bytes, nowMs);
+
+        if (subscriptionId == FALLBACK_SUBSCRIPTION_ID) {
+            return;
+        }
+
+        Estimate estimate = subscriptions.get(subscriptionId);
+        if (estimate == null) {
+            estimate = new Estimate(nowMs);
+            subscriptions.put(subscriptionId, estimate);
+        }
+        estimate.add(bytes, nowMs);
+    }
+
+    /**
+     * Returns the smoothed bitrate of the whole connection
+     * @return bits per second, or -1 if not yet measured
+     */
+    public synchronized long getBitrate() {
+        connection.update(SystemClock.elapsedRealtime());
+        return (long) connection.bitrate;
+    }
+
+    /**
+     * Returns the highest bitrate the connection has recently delivered in a single sample window.
+     * This is reached when the server catches up on a backlog, so it shows how much the link can
+     * carry.
+     * @return bits per second
+     */
+    public synchronized long getPeakBitrate() {
+        connection.update(SystemClock.elapsedRealtime());
+        return connection.peakBitrate;
+    }
+
+    /**
+     * Returns the smoothed bitrate of a subscription
+     * @param subscriptionId subscription to measure
+     * @return bits per second, or -1 if not yet measured
+     */
+    public synchronized long getBitrate(int subscriptionId) {
+        Estimate estimate = subscriptions.get(subscriptionId);
+        if (estimate == null) {
+            return -1;
+        }
+
+        estimate.update(SystemClock.elapsedRealtime());
+        return (long) estimate.bitrate;
+    }
+
+    /**
+     * Returns the number of bytes received for a subscription
+     * @param subscriptionId subscription to measure
+     * @return bytes received
+     */
+    public synchronized long getBytesReceived(int subscriptionId) {
+        Estimate estimate = subscriptions.get(subscriptionId);
+        if (estimate == null) {
+            return 0;
+        }
+        return estimate.totalBytes;
+    }
+
+    /**
+     * Stops measuring a subscription.
+     * @param subscriptionId subscription which has ended
+     */
+    public synchronized void remove(int subscriptionId) {
+        subscriptions.remove(subscriptionId);
+    }
+}
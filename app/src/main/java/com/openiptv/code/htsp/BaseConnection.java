@@ -9,6 +9,8 @@ public class BaseConnection {
     private final SocketIOHandler socketIOHandler;
     private final HTSPMessageDispatcher htspMessageDispatcher;
     private final HTSPSerializer htspSerializer;
+    private final SubscriptionManager subscriptionManager;
+    private final ProfileManager profileManager;
     private final Connection connection;
     private Thread connectionThread;
     private Authenticator authenticator;
@@ -31,6 +33,12 @@ public class BaseConnection {
 
         htspMessageDispatcher.setConnection(connection);
         htspMessageDispatcher.addMessageListener(authenticator);
+
+        subscriptionManager = new SubscriptionManager(htspMessageDispatcher, socketIOHandler.getBandwidthMeter());
+
+        profileManager = new ProfileManager(htspMessageDispatcher);
+        htspMessageDispatcher.addMessageListener(profileManager);
+        authenticator.addListener(profileManager);
     }
 
     /**
@@ -70,6 +78,41 @@ public class BaseConnection {
         return htspMessageDispatcher;
     }
 
+    /**
+     * Returns the SubscriptionManager, used to create any number of subscriptions on this
+     * connection
+     * @return subscription manager reference
+     */
+    public SubscriptionManager getSubscriptionManager() {
+        return subscriptionManager;
+    }
+
+    /**
+     * Returns the ProfileManager, which holds the stream profiles available on the server
+     * @return profile manager reference
+     */
+    public ProfileManager getProfileManager() {
+        return profileManager;
+    }
+
+    /**
+     * Returns the meter of the bitrate received on this connection, per subscription
+     * @return bandwidth meter reference
+     */
+    public BandwidthMeter getBandwidthMeter() {
+        return socketIOHandler.getBandwidthMeter();
+    }
+
+    /**
+     * Returns a key naming the server and account of this connection, for anything kept on disk per
+     * server. Only characters safe in a file name are used.
+     * @return server key
+     */
+    public String getServerKey() {
+        String key = connectionInfo.getUsername() + "@" + connectionInfo.getHostname() + "_" + connectionInfo.getPort();
+        return key.replaceAll("[^A-Za-z0-9._@-]", "_");
+    }
+
     /**
      * Returns the current Authenticator instance
      * @return authenticator reference
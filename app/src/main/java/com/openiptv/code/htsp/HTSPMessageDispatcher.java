@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -19,10 +20,11 @@ public class HTSPMessageDispatcher implements MessageDispatcher {
     private final Queue<HTSPMessage> pendingMessages = new ConcurrentLinkedQueue<>();
     private Connection connection;
 
-    // Part of synchronous implementation
+    // Part of synchronous implementation. Blocking requests are sent from any thread while replies
+    // arrive on the connection thread, so the locks and replies are kept in concurrent maps
     private static final LongSparseArray<String> messageResponseMethodsBySequence = new LongSparseArray<>();
-    private final LongSparseArray<Object> sequenceLocks = new LongSparseArray<>();
-    private final LongSparseArray<HTSPMessage> sequenceResponses = new LongSparseArray<>();
+    private final Map<Long, Object> sequenceLocks = new ConcurrentHashMap<>();
+    private final Map<Long, HTSPMessage> sequenceResponses = new ConcurrentHashMap<>();
     private static final int SYNC_SEQ = 101010;
 
     public HTSPMessageDispatcher() {
@@ -88,14 +90,13 @@ public class HTSPMessageDispatcher implements MessageDispatcher {
             // If we have a SequenceLock for this seq, the message is part of a blocking request/
             // reply, so stash it in place of lock, notify the lock and don't pass the message onto
             // the other listeners.
-            if (sequenceLocks.indexOfKey(seq) >= 0) {
+            Object lock = sequenceLocks.remove(seq);
+            if (lock != null) {
                 Log.v(TAG, "Found " + seq + " in mSequenceLocks, synchronous response");
-                Object lock = sequenceLocks.get(seq);
-                sequenceResponses.put(seq, message);
                 synchronized (lock) {
-                    lock.notify();
+                    sequenceResponses.put(seq, message);
+                    lock.notifyAll();
                 }
-                sequenceLocks.remove(seq);
                 return;
             }
         }
@@ -142,11 +143,21 @@ public class HTSPMessageDispatcher implements MessageDispatcher {
 
                 sendMessage(message);
 
+                // The reply may arrive before the wait starts, so it is waited for until present
+                long deadlineMs = System.currentTimeMillis() + responseTimeout;
                 synchronized (lock) {
-                    try {
-                        lock.wait(responseTimeout);
-                    } catch (InterruptedException e) {
-                        return null;
+                    while (!sequenceResponses.containsKey(seq)) {
+                        long remainingMs = deadlineMs - System.currentTimeMillis();
+                        if (remainingMs <= 0) {
+                            break;
+                        }
+
+                        try {
+                            lock.wait(remainingMs);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
                     }
                 }
 
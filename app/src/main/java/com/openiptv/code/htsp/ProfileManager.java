@@ -0,0 +1,89 @@
+package com.openiptv.code.htsp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.openiptv.code.Constants.DEBUG;
+import static com.openiptv.code.Constants.UNIQUE_PROFILES_SEQ_ID;
+
+/**
+ * Fetches the stream profiles available on the server once the connection is authenticated, and
+ * keeps them for the lifetime of the connection.
+ */
+public class ProfileManager implements MessageListener, Authenticator.Listener {
+    private static final String TAG = ProfileManager.class.getSimpleName();
+
+    private static final int SEQ = UNIQUE_PROFILES_SEQ_ID;
+
+    private final HTSPMessageDispatcher dispatcher;
+    private volatile List<String> profiles = Collections.emptyList();
+
+    /**
+     * Constructor for a ProfileManager
+     * @param dispatcher message dispatcher of the connection
+     */
+    public ProfileManager(@NonNull HTSPMessageDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Returns the names of the stream profiles available on the server
+     * @return profile names, empty until the server has replied
+     */
+    public List<String> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Returns whether the server has a stream profile
+     * @param name profile name
+     * @return true if the profile is available
+     */
+    public boolean hasProfile(String name) {
+        return profiles.contains(name);
+    }
+
+    @Override
+    public void onAuthenticated(Authenticator.State state) {
+        if (state != Authenticator.State.AUTHENTICATED) {
+            return;
+        }
+
+        HTSPMessage getProfilesRequest = new HTSPMessage();
+
+        getProfilesRequest.put("method", "getProfiles");
+        getProfilesRequest.put("seq", SEQ);
+
+        try {
+            dispatcher.sendMessage(getProfilesRequest);
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to request stream profiles", e);
+        }
+    }
+
+    @Override
+    public void onMessage(HTSPMessage message) {
+        if (!message.containsKey("seq") || message.getInteger("seq") != SEQ) {
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        for (HTSPMessage profile : message.getHtspMessageArray("profiles", new HTSPMessage[0])) {
+            String name = profile.getString("name", null);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+
+        profiles = Collections.unmodifiableList(names);
+
+        if (DEBUG) {
+            Log.d(TAG, "Server stream profiles: " + profiles);
+        }
+    }
+}
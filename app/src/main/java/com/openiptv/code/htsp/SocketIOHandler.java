@@ -4,11 +4,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+import static com.openiptv.code.Constants.FALLBACK_SUBSCRIPTION_ID;
+
 public class SocketIOHandler {
     private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
     private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(5242880);
     private final HTSPSerializer htspSerializer;
     private final HTSPMessageDispatcher htspMessageDispatcher;
+    private final BandwidthMeter bandwidthMeter = new BandwidthMeter();
 
     /**
      * Constructor for SocketIOHandler Object
@@ -21,6 +24,14 @@ public class SocketIOHandler {
         this.htspMessageDispatcher = htspMessageDispatcher;
     }
 
+    /**
+     * Returns the meter of the bytes read from the socket
+     * @return bandwidth meter
+     */
+    public BandwidthMeter getBandwidthMeter() {
+        return bandwidthMeter;
+    }
+
     /**
      * Returns if the dispatcher has any available messages to writes.
      * @return whether any messages are waiting to be written.
@@ -114,6 +125,8 @@ public class SocketIOHandler {
             // Figure out how much data we consumed
             bytesConsumed = readBuffer.position();
 
+            bandwidthMeter.onBytesReceived(message.getInteger("subscriptionId", FALLBACK_SUBSCRIPTION_ID), bytesConsumed);
+
             // Reset the limit to the known full amount of data we had
             readBuffer.limit(bytesToBeConsumed);
 
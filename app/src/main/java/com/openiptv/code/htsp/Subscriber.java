@@ -1,14 +1,14 @@
 package com.openiptv.code.htsp;
 
-import android.util.ArraySet;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-
-import static com.openiptv.code.Constants.FALLBACK_SUBSCRIPTION_ID;
-import static com.openiptv.code.Constants.SUBSCRIPTION_METHODS;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 public class Subscriber implements MessageListener {
     private static final String TAG = Subscriber.class.getSimpleName();
@@ -21,11 +21,18 @@ public class Subscriber implements MessageListener {
         void onSubscriptionStatus(@NonNull HTSPMessage message);
         void onSubscriptionStop(@NonNull HTSPMessage message);
         void onMuxpkt(@NonNull HTSPMessage message);
+        void onSubscriptionSkip(@NonNull HTSPMessage message);
+        void onSubscriptionHealth(@NonNull SubscriptionHealth health);
     }
 
+    // Weight TVHeadEnd gives HTSP subscriptions when none is requested
+    public static final int DEFAULT_WEIGHT = 150;
+
+    private final SubscriptionManager manager;
     private final HTSPMessageDispatcher dispatcher;
-    private final Set<Listener> listeners = new ArraySet<>();
+    private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
     private final int subscriptionId;
+    private final SubscriptionHealth health = new SubscriptionHealth();
     private long startTime = -1;
 
     private long timeshiftStart = -1;
@@ -34,14 +41,17 @@ public class Subscriber implements MessageListener {
 
     private long channelId;
     private boolean isSubscribed = false;
+    private boolean use90kHz = false;
 
     /**
-     * Constructor for a Subscriber Object
-     * @param dispatcher message dispatcher (used for sending and receiving messages),
+     * Constructor for a Subscriber Object - Only accessible via SubscriptionManager.
+     * @param manager subscription manager of the connection, which routes messages to us
+     * @param subscriptionId subscriptionId allocated by the manager
      */
-    public Subscriber(@NonNull HTSPMessageDispatcher dispatcher) {
-        this.dispatcher = dispatcher;
-        subscriptionId = 1000;
+    Subscriber(@NonNull SubscriptionManager manager, int subscriptionId) {
+        this.manager = manager;
+        this.dispatcher = manager.getDispatcher();
+        this.subscriptionId = subscriptionId;
     }
 
     /**
@@ -85,6 +95,22 @@ public class Subscriber implements MessageListener {
         return subscriptionId;
     }
 
+    /**
+     * Returns the TVH channelId of the current subscription
+     * @return channelId
+     */
+    public long getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Returns the health of the current subscription, as reported by the server
+     * @return health
+     */
+    public SubscriptionHealth getHealth() {
+        return health;
+    }
+
     /**
      * Starts a new subscription to a given TV Channel (default profile).
      * @param channelId TVH channelId
@@ -101,13 +127,37 @@ public class Subscriber implements MessageListener {
      * @throws HTSPException if there is no connection made
      */
     public void subscribe(long channelId, String profile) throws HTSPException {
-        Log.i(TAG, "Requesting subscription to channel " + this.channelId);
+        subscribe(channelId, profile, SubscriptionPolicy.LIVE);
+    }
+
+    /**
+     * Starts a new subscription to a give TV Channel
+     * @param channelId TVH channelId
+     * @param profile TVH stream profile
+     * @param weight TVH subscription weight, lower weights lose their tuner first
+     * @throws HTSPException if there is no connection made
+     */
+    public void subscribe(long channelId, String profile, int weight) throws HTSPException {
+        subscribe(channelId, profile, SubscriptionPolicy.LIVE.withWeight(weight));
+    }
+
+    /**
+     * Starts a new subscription to a give TV Channel
+     * @param channelId TVH channelId
+     * @param profile TVH stream profile
+     * @param policy weight, queue depth, timeshift and timestamp options to subscribe with
+     * @throws HTSPException if there is no connection made
+     */
+    public void subscribe(long channelId, String profile, @NonNull SubscriptionPolicy policy) throws HTSPException {
+        Log.i(TAG, "Requesting subscription to channel " + channelId + " (" + policy + ")");
 
         if (!isSubscribed) {
-            dispatcher.addMessageListener(this);
+            manager.register(this);
         }
 
         this.channelId = channelId;
+        this.use90kHz = policy.getUse90kHz();
+        health.reset();
 
         HTSPMessage subscribeRequest = new HTSPMessage();
 
@@ -115,7 +165,7 @@ public class Subscriber implements MessageListener {
         subscribeRequest.put("subscriptionId", subscriptionId);
         subscribeRequest.put("channelId", channelId);
         subscribeRequest.put("profile", profile);
-        subscribeRequest.put("timeshiftPeriod", (60*60));
+        policy.apply(subscribeRequest);
 
         dispatcher.sendMessage(subscribeRequest);
         isSubscribed = true;
@@ -141,6 +191,49 @@ public class Subscriber implements MessageListener {
         }
     }
 
+    /**
+     * Changes the weight of the current subscription.
+     * @param weight TVH subscription weight
+     */
+    public void setWeight(int weight) {
+        Log.i(TAG, "Requesting weight " + weight + " for channel " + channelId);
+
+        HTSPMessage changeWeightRequest = new HTSPMessage();
+
+        changeWeightRequest.put("method", "subscriptionChangeWeight");
+        changeWeightRequest.put("subscriptionId", subscriptionId);
+        changeWeightRequest.put("weight", weight);
+
+        try {
+            dispatcher.sendMessage(changeWeightRequest);
+        } catch (HTSPException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Enables and disables streams of the current subscription on the server. Disabled streams
+     * are not sent until they are enabled again.
+     * @param enable stream indices to send
+     * @param disable stream indices not to send
+     */
+    public void filterStreams(List<Integer> enable, List<Integer> disable) {
+        Log.i(TAG, "Requesting stream filter for channel " + channelId + ", enable " + enable + ", disable " + disable);
+
+        HTSPMessage filterStreamRequest = new HTSPMessage();
+
+        filterStreamRequest.put("method", "subscriptionFilterStream");
+        filterStreamRequest.put("subscriptionId", subscriptionId);
+        filterStreamRequest.put("enable", new ArrayList<>(enable));
+        filterStreamRequest.put("disable", new ArrayList<>(disable));
+
+        try {
+            dispatcher.sendMessage(filterStreamRequest);
+        } catch (HTSPException e) {
+            // Ignore
+        }
+    }
+
     /**
      * Pauses the stream, sets the speed to 0 (0x).
      */
@@ -166,7 +259,7 @@ public class Subscriber implements MessageListener {
 
         subscriptionSkipRequest.put("method", "subscriptionSkip");
         subscriptionSkipRequest.put("subscriptionId", subscriptionId);
-        subscriptionSkipRequest.put("time", time);
+        subscriptionSkipRequest.put("time", use90kHz ? toClock(time) : time);
         subscriptionSkipRequest.put("absolute", 1);
 
         try {
@@ -216,7 +309,7 @@ public class Subscriber implements MessageListener {
     public void unsubscribe() {
         Log.i(TAG, "Requesting unsubscribe from channel " + channelId);
         isSubscribed = false;
-        dispatcher.removeMessageListener(this);
+        manager.unregister(this);
 
         HTSPMessage unsubscribeRequest = new HTSPMessage();
 
@@ -229,19 +322,23 @@ public class Subscriber implements MessageListener {
         }
     }
 
+    /**
+     * Handles a message for this subscription, messages are routed here by the SubscriptionManager.
+     * @param message subscription message
+     */
     @Override
     public void onMessage(@NonNull HTSPMessage message) {
         final String method = message.getString("method", null);
 
-        if (SUBSCRIPTION_METHODS.contains(method)) {
-            final int subscriptionId = message.getInteger("subscriptionId", FALLBACK_SUBSCRIPTION_ID);
-
-            if (subscriptionId != this.subscriptionId) {
-                return;
-            }
-
+        if (method != null) {
             switch (method) {
                 case "subscriptionStart":
+                    if (use90kHz) {
+                        for (HTSPMessage stream : message.getHtspMessageArray("streams", new HTSPMessage[0])) {
+                            rescale(stream, "duration");
+                        }
+                    }
+
                     startTime = (System.currentTimeMillis() * 1000);
 
                     for (final Listener listener : listeners) {
@@ -249,6 +346,8 @@ public class Subscriber implements MessageListener {
                     }
                     break;
                 case "subscriptionStatus":
+                    health.onSubscriptionStatus(message);
+
                     for (final Listener listener : listeners) {
                         listener.onSubscriptionStatus(message);
                     }
@@ -258,12 +357,41 @@ public class Subscriber implements MessageListener {
                         listener.onSubscriptionStop(message);
                     }
                     break;
+                case "subscriptionSkip":
+                    for (final Listener listener : listeners) {
+                        listener.onSubscriptionSkip(message);
+                    }
+                    break;
                 case "timeshiftStatus":
+                    if (use90kHz) {
+                        rescale(message, "shift");
+                        rescale(message, "end");
+                        rescale(message, "start");
+                    }
+
                     timeshiftShift = message.getLong("shift", -1);
                     timeshiftEnd = message.getLong("end", -1);
                     timeshiftStart = message.getLong("start", -1);
                     break;
+                case "queueStatus":
+                    if (health.onQueueStatus(message)) {
+                        Log.i(TAG, "Subscription to channel " + channelId + " is now " + health.getState());
+                    }
+
+                    for (final Listener listener : listeners) {
+                        listener.onSubscriptionHealth(health);
+                    }
+                    break;
+                case "signalStatus":
+                    health.onSignalStatus(message);
+                    break;
                 case "muxpkt":
+                    if (use90kHz) {
+                        rescale(message, "pts");
+                        rescale(message, "dts");
+                        rescale(message, "duration");
+                    }
+
                     for (final Listener listener : listeners) {
                         listener.onMuxpkt(message);
                     }
@@ -271,4 +399,26 @@ public class Subscriber implements MessageListener {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Internal method which converts a timestamp the server sent in 90kHz units to microseconds,
+     * the unit the rest of the player works in.
+     * @param message message holding the timestamp
+     * @param key timestamp key
+     */
+    private static void rescale(HTSPMessage message, String key) {
+        if (message.containsKey(key)) {
+            // Numbers are kept as BigInteger, as deserialized, so every getter still works
+            message.put(key, BigInteger.valueOf(message.getLong(key) * 100 / 9));
+        }
+    }
+
+    /**
+     * Internal method which converts microseconds to the server's 90kHz units.
+     * @param timeUs time in microseconds
+     * @return time in 90kHz units
+     */
+    private static long toClock(long timeUs) {
+        return timeUs * 9 / 100;
+    }
+}
@@ -0,0 +1,238 @@
+package com.openiptv.code.htsp;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Health of a single subscription, as reported by the server. queueStatus describes the server's
+ * packet queue for the subscription and the frames it has dropped, signalStatus the tuner it is
+ * received on, and subscriptionStatus any problem the server has with the subscription itself.
+ */
+public class SubscriptionHealth {
+    /**
+     * Overall state of a subscription
+     */
+    public enum State {
+        // No frames are being dropped on the server
+        HEALTHY,
+        // The server keeps dropping B or P frames, the link can't carry the stream
+        DEGRADED,
+        // The server keeps dropping key frames, video is broken until it recovers
+        FAILING
+    }
+
+    // queueStatus is sent about once a second. Every interval with new drops raises a score,
+    // every interval without lowers it, so occasional drops don't count as sustained
+    private static final int MAX_SCORE = 10;
+    private static final int SUSTAINED_SCORE = 3;
+
+    private long queuePackets = -1;
+    private long queueBytes = -1;
+    private long queueDelayUs = -1;
+
+    private long bFrameDrops = 0;
+    private long pFrameDrops = 0;
+    private long iFrameDrops = 0;
+    private long bFrameDropDelta = 0;
+    private long pFrameDropDelta = 0;
+    private long iFrameDropDelta = 0;
+    private int dropScore = 0;
+    private int keyframeDropScore = 0;
+
+    private String frontendStatus;
+    private long signalToNoise = -1;
+    private long signalStrength = -1;
+    private long bitErrorRate = -1;
+    private long uncorrectedBlocks = -1;
+
+    private String status;
+    private String error;
+
+    private State state = State.HEALTHY;
+
+    /**
+     * Updates the queue and drop counters from a queueStatus message.
+     * @param message queueStatus message
+     * @return true if the state changed
+     */
+    public synchronized boolean onQueueStatus(@NonNull HTSPMessage message) {
+        queuePackets = message.getLong("packets", -1);
+        queueBytes = message.getLong("bytes", -1);
+        queueDelayUs = message.getLong("delay", -1);
+
+        // The server counts drops over the whole subscription
+        long bDrops = message.getLong("Bdrops", 0);
+        long pDrops = message.getLong("Pdrops", 0);
+        long iDrops = message.getLong("Idrops", 0);
+
+        bFrameDropDelta = getDelta(bFrameDrops, bDrops);
+        pFrameDropDelta = getDelta(pFrameDrops, pDrops);
+        iFrameDropDelta = getDelta(iFrameDrops, iDrops);
+        bFrameDrops = bDrops;
+        pFrameDrops = pDrops;
+        iFrameDrops = iDrops;
+
+        dropScore = updateScore(dropScore, bFrameDropDelta + pFrameDropDelta + iFrameDropDelta > 0);
+        keyframeDropScore = updateScore(keyframeDropScore, iFrameDropDelta > 0);
+
+        State previousState = state;
+        if (keyframeDropScore >= SUSTAINED_SCORE) {
+            state = State.FAILING;
+        } else if (dropScore >= SUSTAINED_SCORE) {
+            state = State.DEGRADED;
+        } else if (dropScore == 0) {
+            state = State.HEALTHY;
+        } else if (state == State.FAILING) {
+            // Key frames get through again, but the link is still struggling
+            state = State.DEGRADED;
+        }
+
+        return state != previousState;
+    }
+
+    /**
+     * Updates the tuner's signal from a signalStatus message.
+     * @param message signalStatus message
+     */
+    public synchronized void onSignalStatus(@NonNull HTSPMessage message) {
+        frontendStatus = message.getString("feStatus", null);
+        signalToNoise = message.getLong("feSNR", -1);
+        signalStrength = message.getLong("feSignal", -1);
+        bitErrorRate = message.getLong("feBER", -1);
+        uncorrectedBlocks = message.getLong("feUNC", -1);
+    }
+
+    /**
+     * Updates the subscription's status from a subscriptionStatus message. The server leaves out
+     * the status once the problem is gone.
+     * @param message subscriptionStatus message
+     */
+    public synchronized void onSubscriptionStatus(@NonNull HTSPMessage message) {
+        status = message.getString("status", null);
+        error = message.getString("subscriptionError", null);
+    }
+
+    /**
+     * Forgets everything, as a new subscription is starting.
+     */
+    public synchronized void reset() {
+        queuePackets = -1;
+        queueBytes = -1;
+        queueDelayUs = -1;
+        bFrameDrops = pFrameDrops = iFrameDrops = 0;
+        bFrameDropDelta = pFrameDropDelta = iFrameDropDelta = 0;
+        dropScore = keyframeDropScore = 0;
+        frontendStatus = null;
+        signalToNoise = signalStrength = bitErrorRate = uncorrectedBlocks = -1;
+        status = null;
+        error = null;
+        state = State.HEALTHY;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getQueuePackets() {
+        return queuePackets;
+    }
+
+    public synchronized long getQueueBytes() {
+        return queueBytes;
+    }
+
+    /**
+     * Returns how far behind the server's queue for this subscription is
+     * @return delay in microseconds, or -1 if unknown
+     */
+    public synchronized long getQueueDelayUs() {
+        return queueDelayUs;
+    }
+
+    public synchronized long getBFrameDrops() {
+        return bFrameDrops;
+    }
+
+    public synchronized long getPFrameDrops() {
+        return pFrameDrops;
+    }
+
+    public synchronized long getIFrameDrops() {
+        return iFrameDrops;
+    }
+
+    /**
+     * Returns the B frames dropped since the previous queueStatus
+     * @return dropped frames
+     */
+    public synchronized long getBFrameDropDelta() {
+        return bFrameDropDelta;
+    }
+
+    /**
+     * Returns the P frames dropped since the previous queueStatus
+     * @return dropped frames
+     */
+    public synchronized long getPFrameDropDelta() {
+        return pFrameDropDelta;
+    }
+
+    /**
+     * Returns the key frames dropped since the previous queueStatus
+     * @return dropped frames
+     */
+    public synchronized long getIFrameDropDelta() {
+        return iFrameDropDelta;
+    }
+
+    public synchronized String getFrontendStatus() {
+        return frontendStatus;
+    }
+
+    public synchronized long getSignalToNoise() {
+        return signalToNoise;
+    }
+
+    public synchronized long getSignalStrength() {
+        return signalStrength;
+    }
+
+    public synchronized long getBitErrorRate() {
+        return bitErrorRate;
+    }
+
+    public synchronized long getUncorrectedBlocks() {
+        return uncorrectedBlocks;
+    }
+
+    /**
+     * Returns the server's description of a problem with the subscription
+     * @return status, or null if there is no problem
+     */
+    public synchronized String getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the server's error code for the subscription, e.g. noFreeAdapter
+     * @return error, or null if there is no error
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + " queue " + queuePackets + "/" + queueBytes + "B/" + queueDelayUs + "us"
+                + ", drops B" + bFrameDrops + " P" + pFrameDrops + " I" + iFrameDrops
+                + ", signal " + frontendStatus + " snr " + signalToNoise + " ber " + bitErrorRate + " unc " + uncorrectedBlocks;
+    }
+
+    private static long getDelta(long previous, long current) {
+        // A lower count means the server started counting again
+        return current >= previous ? current - previous : current;
+    }
+
+    private static int updateScore(int score, boolean dropped) {
+        return dropped ? Math.min(score + 1, MAX_SCORE) : Math.max(score - 1, 0);
+    }
+}
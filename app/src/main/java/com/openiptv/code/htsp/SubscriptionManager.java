@@ -0,0 +1,106 @@
+package com.openiptv.code.htsp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.openiptv.code.Constants.DEBUG;
+import static com.openiptv.code.Constants.FALLBACK_SUBSCRIPTION_ID;
+import static com.openiptv.code.Constants.SUBSCRIPTION_METHODS;
+
+public class SubscriptionManager implements MessageListener {
+    private static final String TAG = SubscriptionManager.class.getSimpleName();
+    private static final int FIRST_SUBSCRIPTION_ID = 1000;
+
+    private final HTSPMessageDispatcher dispatcher;
+    private final BandwidthMeter bandwidthMeter;
+    private final AtomicInteger nextSubscriptionId = new AtomicInteger(FIRST_SUBSCRIPTION_ID);
+    private final Map<Integer, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for a SubscriptionManager. Every subscription on a connection is made through
+     * one manager, which hands out unique subscriptionIds and routes each subscription message
+     * straight to the Subscriber it belongs to.
+     * @param dispatcher message dispatcher of the connection
+     * @param bandwidthMeter bandwidth meter of the connection
+     */
+    public SubscriptionManager(@NonNull HTSPMessageDispatcher dispatcher, @NonNull BandwidthMeter bandwidthMeter) {
+        this.dispatcher = dispatcher;
+        this.bandwidthMeter = bandwidthMeter;
+        this.dispatcher.addMessageListener(this);
+    }
+
+    /**
+     * Creates a new Subscriber with a subscriptionId unique to this connection.
+     * @return new subscriber
+     */
+    public Subscriber createSubscriber() {
+        return new Subscriber(this, nextSubscriptionId.getAndIncrement());
+    }
+
+    /**
+     * Returns the message dispatcher used to send subscription requests
+     * @return dispatcher reference
+     */
+    public HTSPMessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns the bandwidth meter, which measures the bitrate of each subscription
+     * @return bandwidth meter reference
+     */
+    public BandwidthMeter getBandwidthMeter() {
+        return bandwidthMeter;
+    }
+
+    /**
+     * Returns the number of subscriptions currently running on this connection
+     * @return number of subscriptions
+     */
+    public int getSubscriptionCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Starts routing messages for a Subscriber's subscriptionId to it.
+     * @param subscriber subscriber to route to
+     */
+    void register(@NonNull Subscriber subscriber) {
+        subscribers.put(subscriber.getSubscriptionId(), subscriber);
+    }
+
+    /**
+     * Stops routing messages to a Subscriber.
+     * @param subscriber subscriber to stop routing to
+     */
+    void unregister(@NonNull Subscriber subscriber) {
+        subscribers.remove(subscriber.getSubscriptionId());
+        bandwidthMeter.remove(subscriber.getSubscriptionId());
+    }
+
+    @Override
+    public void onMessage(HTSPMessage message) {
+        final String method = message.getString("method", null);
+
+        if (!SUBSCRIPTION_METHODS.contains(method)) {
+            return;
+        }
+
+        final int subscriptionId = message.getInteger("subscriptionId", FALLBACK_SUBSCRIPTION_ID);
+        Subscriber subscriber = subscribers.get(subscriptionId);
+
+        if (subscriber == null) {
+            if (DEBUG) {
+                Log.v(TAG, "Discarding " + method + " for unknown subscription " + subscriptionId);
+            }
+            return;
+        }
+
+        subscriber.onMessage(message);
+    }
+}
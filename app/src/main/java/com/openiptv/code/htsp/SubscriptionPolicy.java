@@ -0,0 +1,199 @@
+package com.openiptv.code.htsp;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+
+import com.openiptv.code.DatabaseActions;
+import com.openiptv.code.PreferenceUtils;
+
+import java.util.Locale;
+
+import static com.openiptv.code.Constants.PREFERENCE_SUBSCRIPTION_90KHZ;
+import static com.openiptv.code.Constants.PREFERENCE_SUBSCRIPTION_NORMTS;
+import static com.openiptv.code.Constants.PREFERENCE_SUBSCRIPTION_QUEUE_DEPTH;
+import static com.openiptv.code.Constants.PREFERENCE_SUBSCRIPTION_TIMESHIFT_PERIOD;
+import static com.openiptv.code.Constants.PREFERENCE_SUBSCRIPTION_WEIGHT;
+
+/**
+ * The parameters a subscription is made with, which decide how much the server buffers for it
+ * and which subscriptions lose their tuner first. The defaults keep the server's memory use low
+ * and get the first packets to the client quickly.
+ */
+public class SubscriptionPolicy {
+    /**
+     * What a subscription is used for, each has its own defaults
+     */
+    public enum Use {
+        // The channel being watched
+        LIVE,
+        // A channel tuned in the background, in case it is watched next
+        PREVIEW,
+        // A channel watched while it is being recorded
+        RECORDING_PREVIEW,
+        // A channel recorded on this device
+        RECORDING
+    }
+
+    // Live subscriptions can be paused and rewound for half an hour
+    private static final int LIVE_TIMESHIFT_PERIOD = 30 * 60;
+    // Enough for a burst of HD video on a busy network, without holding more on the server
+    private static final int LIVE_QUEUE_DEPTH = 1000000;
+
+    // Background subscriptions give up their tuner first, and keep a short timeshift so they can
+    // still be paused once watched
+    private static final int PREVIEW_WEIGHT = 10;
+    private static final int PREVIEW_TIMESHIFT_PERIOD = 5 * 60;
+    private static final int PREVIEW_QUEUE_DEPTH = 250000;
+
+    // The recording keeps the tuner, so the preview doesn't need a high weight or a timeshift
+    private static final int RECORDING_PREVIEW_WEIGHT = 100;
+    private static final int RECORDING_PREVIEW_QUEUE_DEPTH = 500000;
+
+    // Recordings tolerate latency but not gaps, so the server queues more before dropping. They
+    // keep their tuner over live viewing, like the server's own recordings
+    private static final int RECORDING_WEIGHT = 300;
+    private static final int RECORDING_QUEUE_DEPTH = 4000000;
+
+    public static final SubscriptionPolicy LIVE = new SubscriptionPolicy(Subscriber.DEFAULT_WEIGHT, LIVE_QUEUE_DEPTH, LIVE_TIMESHIFT_PERIOD, false, false);
+    public static final SubscriptionPolicy PREVIEW = new SubscriptionPolicy(PREVIEW_WEIGHT, PREVIEW_QUEUE_DEPTH, PREVIEW_TIMESHIFT_PERIOD, false, false);
+    public static final SubscriptionPolicy RECORDING_PREVIEW = new SubscriptionPolicy(RECORDING_PREVIEW_WEIGHT, RECORDING_PREVIEW_QUEUE_DEPTH, 0, false, false);
+    public static final SubscriptionPolicy RECORDING = new SubscriptionPolicy(RECORDING_WEIGHT, RECORDING_QUEUE_DEPTH, 0, false, false);
+
+    private final int weight;
+    private final int queueDepth;
+    private final int timeshiftPeriod;
+    private final boolean use90kHz;
+    private final boolean normalizeTimestamps;
+
+    /**
+     * Constructor for a SubscriptionPolicy
+     * @param weight TVH subscription weight, lower weights lose their tuner first
+     * @param queueDepth bytes the server queues for the subscription before dropping frames
+     * @param timeshiftPeriod seconds the server can timeshift, 0 for no timeshift
+     * @param use90kHz whether the server sends timestamps in 90kHz units instead of microseconds
+     * @param normalizeTimestamps whether the server removes timestamp discontinuities
+     */
+    public SubscriptionPolicy(int weight, int queueDepth, int timeshiftPeriod, boolean use90kHz, boolean normalizeTimestamps) {
+        this.weight = weight;
+        this.queueDepth = queueDepth;
+        this.timeshiftPeriod = timeshiftPeriod;
+        this.use90kHz = use90kHz;
+        this.normalizeTimestamps = normalizeTimestamps;
+    }
+
+    /**
+     * Returns the default policy for a use
+     * @param use what the subscription is used for
+     * @return default policy
+     */
+    public static SubscriptionPolicy getDefault(@NonNull Use use) {
+        switch (use) {
+            case PREVIEW:
+                return PREVIEW;
+            case RECORDING_PREVIEW:
+                return RECORDING_PREVIEW;
+            case RECORDING:
+                return RECORDING;
+            default:
+                return LIVE;
+        }
+    }
+
+    /**
+     * Returns the policy for a use, from the preferences. Each value is looked up for the active
+     * account first, e.g. SUBSCRIPTION_WEIGHT_LIVE_3, then for every account, e.g.
+     * SUBSCRIPTION_WEIGHT_LIVE, and otherwise taken from the use's defaults.
+     * @param context application context
+     * @param use what the subscription is used for
+     * @return policy
+     */
+    public static SubscriptionPolicy fromPreferences(Context context, @NonNull Use use) {
+        PreferenceUtils preferenceUtils = new PreferenceUtils(context);
+        SubscriptionPolicy defaults = getDefault(use);
+
+        String suffix = "_" + use.name();
+        Bundle account = DatabaseActions.activeAccount;
+        String accountSuffix = account != null && account.getString("id") != null ? suffix + "_" + account.getString("id") : null;
+
+        return new SubscriptionPolicy(
+                getInteger(preferenceUtils, PREFERENCE_SUBSCRIPTION_WEIGHT, suffix, accountSuffix, defaults.weight),
+                getInteger(preferenceUtils, PREFERENCE_SUBSCRIPTION_QUEUE_DEPTH, suffix, accountSuffix, defaults.queueDepth),
+                getInteger(preferenceUtils, PREFERENCE_SUBSCRIPTION_TIMESHIFT_PERIOD, suffix, accountSuffix, defaults.timeshiftPeriod),
+                getBoolean(preferenceUtils, PREFERENCE_SUBSCRIPTION_90KHZ, suffix, accountSuffix, defaults.use90kHz),
+                getBoolean(preferenceUtils, PREFERENCE_SUBSCRIPTION_NORMTS, suffix, accountSuffix, defaults.normalizeTimestamps));
+    }
+
+    /**
+     * Returns a copy of this policy with another weight
+     * @param weight TVH subscription weight
+     * @return policy
+     */
+    public SubscriptionPolicy withWeight(int weight) {
+        return new SubscriptionPolicy(weight, queueDepth, timeshiftPeriod, use90kHz, normalizeTimestamps);
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getTimeshiftPeriod() {
+        return timeshiftPeriod;
+    }
+
+    public boolean getUse90kHz() {
+        return use90kHz;
+    }
+
+    public boolean getNormalizeTimestamps() {
+        return normalizeTimestamps;
+    }
+
+    /**
+     * Adds this policy's fields to a subscribe request
+     * @param subscribeRequest subscribe request
+     */
+    void apply(@NonNull HTSPMessage subscribeRequest) {
+        subscribeRequest.put("weight", weight);
+        subscribeRequest.put("queueDepth", queueDepth);
+        if (timeshiftPeriod > 0) {
+            subscribeRequest.put("timeshiftPeriod", timeshiftPeriod);
+        }
+        if (use90kHz) {
+            subscribeRequest.put("90khz", 1);
+        }
+        if (normalizeTimestamps) {
+            subscribeRequest.put("normts", 1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "weight %d, queueDepth %d, timeshiftPeriod %ds, 90khz %b, normts %b",
+                weight, queueDepth, timeshiftPeriod, use90kHz, normalizeTimestamps);
+    }
+
+    private static int getInteger(PreferenceUtils preferenceUtils, String key, String suffix, String accountSuffix, int fallback) {
+        if (accountSuffix != null && preferenceUtils.containsKey(key + accountSuffix)) {
+            return preferenceUtils.getStringAsInteger(key + accountSuffix, fallback);
+        }
+
+        return preferenceUtils.getStringAsInteger(key + suffix, fallback);
+    }
+
+    private static boolean getBoolean(PreferenceUtils preferenceUtils, String key, String suffix, String accountSuffix, boolean fallback) {
+        if (accountSuffix != null && preferenceUtils.containsKey(key + accountSuffix)) {
+            return preferenceUtils.getBoolean(key + accountSuffix);
+        }
+        if (preferenceUtils.containsKey(key + suffix)) {
+            return preferenceUtils.getBoolean(key + suffix);
+        }
+
+        return fallback;
+    }
+}
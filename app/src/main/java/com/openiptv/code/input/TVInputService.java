@@ -3,15 +3,22 @@ package com.openiptv.code.input;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.ComponentName;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.graphics.Color;
 import android.media.PlaybackParams;
+import android.media.tv.TvContract;
 import android.media.tv.TvInputManager;
 import android.media.tv.TvInputService;
 import android.media.tv.TvTrackInfo;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Surface;
@@ -32,11 +39,22 @@ import com.openiptv.code.htsp.BaseConnection;
 import com.openiptv.code.htsp.ConnectionInfo;
 import com.openiptv.code.htsp.HTSPException;
 import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.SubscriptionPolicy;
+import com.openiptv.code.player.LocalRecorder;
 import com.openiptv.code.player.TVPlayer;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
+import static com.openiptv.code.Constants.ACTION_AUDIO_ONLY;
+import static com.openiptv.code.Constants.COMPONENT_CLASS;
+import static com.openiptv.code.Constants.COMPONENT_PACKAGE;
+import static com.openiptv.code.Constants.DEFAULT_STREAM_PROFILE;
+import static com.openiptv.code.Constants.EXTRA_AUDIO_ONLY;
+import static com.openiptv.code.Constants.PREFERENCE_LOCAL_RECORDINGS;
 import static com.openiptv.code.Constants.PREFERENCE_SETUP_COMPLETE;
+import static com.openiptv.code.Constants.PREFERENCE_STREAM_PROFILE;
 import static com.openiptv.code.Constants.RESTART_SERVICES;
 
 
@@ -81,6 +99,8 @@ public class TVInputService extends TvInputService {
         private Context context;
         private Uri program;
         private Uri channel;
+        private LocalRecorder recorder;
+        private long recordingStartMs;
 
         /**
          * Creates a new RecordingSession.
@@ -102,6 +122,12 @@ public class TVInputService extends TvInputService {
 
         @Override
         public void onStartRecording(@Nullable Uri programUri) {
+            if (new PreferenceUtils(context).getBoolean(PREFERENCE_LOCAL_RECORDINGS)) {
+                this.program = programUri;
+                startLocalRecording();
+                return;
+            }
+
             int eventID = Program.getProgramIdFromProgramUri(context, programUri);
             int channelID = Channel.getChannelIdFromChannelUri(context, channel);
             Log.d(TAG, "eventID " + eventID);
@@ -122,12 +148,105 @@ public class TVInputService extends TvInputService {
 
         @Override
         public void onStopRecording() {
-            notifyRecordingStopped(program);
+            if (recorder == null) {
+                notifyRecordingStopped(program);
+                return;
+            }
+
+            final LocalRecorder stoppingRecorder = recorder;
+            final long startMs = recordingStartMs;
+            final long endMs = System.currentTimeMillis();
+            recorder = null;
+
+            // Writing out what is still queued can take a while
+            new Thread(() -> {
+                if (!stoppingRecorder.stop()) {
+                    Log.w(TAG, "Local recording " + stoppingRecorder.getFile() + " is incomplete");
+                }
+
+                Uri recordedProgramUri = addLocalRecording(stoppingRecorder, startMs, endMs);
+                if (recordedProgramUri != null) {
+                    notifyRecordingStopped(recordedProgramUri);
+                } else {
+                    notifyError(TvInputManager.RECORDING_ERROR_UNKNOWN);
+                }
+            }).start();
         }
 
         @Override
         public void onRelease() {
+            if (recorder != null) {
+                final LocalRecorder releasedRecorder = recorder;
+                recorder = null;
+                new Thread(releasedRecorder::stop).start();
+            }
+        }
+
+        /**
+         * Records the tuned channel to this device, on its own subscription over the shared
+         * connection.
+         */
+        private void startLocalRecording() {
+            int channelId = Channel.getChannelIdFromChannelUri(context, channel);
+
+            String streamProfile = new PreferenceUtils(context).getString(PREFERENCE_STREAM_PROFILE);
+            if (TextUtils.isEmpty(streamProfile)) {
+                streamProfile = DEFAULT_STREAM_PROFILE;
+            }
 
+            File directory = context.getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+            if (directory == null) {
+                directory = new File(context.getFilesDir(), "recordings");
+            }
+            File file = new File(directory, channelId + "-" + System.currentTimeMillis() + LocalRecorder.RECORDING_EXTENSION);
+
+            recorder = new LocalRecorder(connection, streamProfile, SubscriptionPolicy.fromPreferences(context, SubscriptionPolicy.Use.RECORDING), file);
+            try {
+                recorder.start(channelId);
+                recordingStartMs = System.currentTimeMillis();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to create local recording " + file, e);
+                recorder = null;
+                notifyError(TvInputManager.RECORDING_ERROR_INSUFFICIENT_SPACE);
+            } catch (HTSPException e) {
+                Log.e(TAG, "Unable to subscribe for local recording", e);
+                recorder = null;
+                notifyError(TvInputManager.RECORDING_ERROR_RESOURCE_BUSY);
+            }
+        }
+
+        /**
+         * Adds a finished local recording to the TvProvider
+         * @param recorder recorder of the recording
+         * @param startMs wall clock time the recording started
+         * @param endMs wall clock time the recording stopped
+         * @return uri of the recorded program, or null if it couldn't be added
+         */
+        private Uri addLocalRecording(LocalRecorder recorder, long startMs, long endMs) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_INPUT_ID, TvContract.buildInputId(new ComponentName(COMPONENT_PACKAGE, COMPONENT_CLASS)));
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_CHANNEL_ID, Channel.getTvProviderId(Channel.getChannelIdFromChannelUri(context, channel), context));
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_START_TIME_UTC_MILLIS, startMs);
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_END_TIME_UTC_MILLIS, endMs);
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_RECORDING_DURATION_MILLIS, endMs - startMs);
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_RECORDING_DATA_URI, Uri.fromFile(recorder.getFile()).toString());
+            contentValues.put(TvContract.RecordedPrograms.COLUMN_RECORDING_DATA_BYTES, recorder.getBytesWritten());
+
+            if (program != null) {
+                String[] projection = {TvContract.Programs.COLUMN_TITLE};
+                try (Cursor cursor = context.getContentResolver().query(program, projection, null, null, null)) {
+                    if (cursor != null && cursor.moveToFirst()) {
+                        contentValues.put(TvContract.RecordedPrograms.COLUMN_TITLE, cursor.getString(0));
+                    }
+                }
+            }
+
+            try {
+                return context.getContentResolver().insert(TvContract.RecordedPrograms.CONTENT_URI, contentValues);
+            } catch (IllegalArgumentException | SecurityException e) {
+                Log.e(TAG, "Unable to add local recording " + recorder.getFile(), e);
+                return null;
+            }
         }
     }
 
@@ -195,6 +314,14 @@ public class TVInputService extends TvInputService {
             return player.setSurface(surface);
         }
 
+        @Override
+        public void onAppPrivateCommand(String action, Bundle data) {
+            // Lets an app play a channel without its video, e.g. for listening in the background
+            if (ACTION_AUDIO_ONLY.equals(action)) {
+                player.setAudioOnly(data == null || data.getBoolean(EXTRA_AUDIO_ONLY, true));
+            }
+        }
+
         //change the stream volume, this method just simply call method in the TVPlayer class
         @Override
         public void onSetStreamVolume(float volume) {
@@ -271,7 +398,7 @@ public class TVInputService extends TvInputService {
 
         @Override
         public void onSetCaptionEnabled(boolean enabled) {
-            // Stub
+            player.setCaptionEnabled(enabled);
         }
 
         @Override
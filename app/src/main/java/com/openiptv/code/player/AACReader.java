@@ -8,7 +8,6 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.util.CodecSpecificDataUtil;
 import com.google.android.exoplayer2.util.MimeTypes;
-import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.openiptv.code.htsp.HTSPMessage;
 
 import java.util.Collections;
@@ -48,28 +47,24 @@ public class AACReader extends AudioReader
     }
 
     /**
-     * extract ACC Audio Stream data from a message
-     * @param message Message to extract the data from
-     * @return true if successful, false if the message is empty
+     * extract ACC Audio Stream data from a packet. The ADTS header is skipped in place, the payload
+     * is not copied.
+     * @param packet Packet to extract the data from
+     * @return true if successful, false if the packet is empty
      */
     @Override
-    public boolean extract (@NonNull HTSPMessage message){
-        byte[] payload = message.getByteArray("payload");
-
-        if(payload == null || payload.length == 0)
+    public boolean extract (@NonNull HTSPMuxPacket packet){
+        if(packet.payload == null || packet.payloadLength == 0)
         {
             // Error extracting stream from HTSPMessage
             return false;
         }
 
-        long pts = message.getLong("pts");
         int flags = C.BUFFER_FLAG_KEY_FRAME;
 
-        ParsableByteArray pba = new ParsableByteArray(payload);
-
         int skipLength;
 
-        if (hasCRC(payload[1])) {
+        if (hasCRC(packet.payload[packet.payloadOffset + 1])) {
             // AAC has ADTS CRC Header
             skipLength = ADTS_HEADER_SIZE + ADTS_CRC_SIZE;
         } else {
@@ -77,12 +72,17 @@ public class AACReader extends AudioReader
             skipLength = ADTS_HEADER_SIZE;
         }
 
-        pba.skipBytes(skipLength);
-        int frameLength = payload.length - skipLength;
+        if (packet.payloadLength <= skipLength) {
+            return false;
+        }
+
+        sampleScratch.reset(packet.payload, packet.payloadOffset + packet.payloadLength);
+        sampleScratch.setPosition(packet.payloadOffset + skipLength);
+        int frameLength = packet.payloadLength - skipLength;
 
-        trackOutput.sampleData(pba, frameLength);
-        trackOutput.sampleMetadata(pts, flags, frameLength, 0, null);
+        trackOutput.sampleData(sampleScratch, frameLength);
+        trackOutput.sampleMetadata(packet.pts, flags, frameLength, 0, null);
 
         return true;
     }
-}
\ No newline at end of file
+}
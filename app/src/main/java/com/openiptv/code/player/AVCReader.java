@@ -18,7 +18,7 @@ import static com.openiptv.code.Constants.DEBUG;
  */
 public class AVCReader extends VideoReader {
     public AVCReader(Context context) {
-        super(context, MimeTypes.VIDEO_H264);
+        super(context, MimeTypes.VIDEO_H264, "H264");
     }
 
     /**
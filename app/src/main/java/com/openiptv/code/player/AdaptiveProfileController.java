@@ -0,0 +1,269 @@
+package com.openiptv.code.player;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPException;
+import com.openiptv.code.htsp.SubscriptionHealth;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import java.util.List;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Steps a live subscription up and down a ladder of TVH stream profiles, ordered from highest to
+ * lowest bitrate. The link is judged by whether the player's buffer keeps up with real time, and
+ * by the bitrate measured on the connection. Switches are held back by hysteresis, so a marginal
+ * link doesn't flap between profiles.
+ */
+public class AdaptiveProfileController implements Player.EventListener {
+    private static final String TAG = AdaptiveProfileController.class.getSimpleName();
+
+    private static final long EVALUATION_INTERVAL_MS = 1000;
+    // Weight of the newest sample in the smoothed delivery ratio
+    private static final float RATIO_SMOOTHING = 0.25f;
+
+    // Step down when media arrives slower than real time and the buffer is running low
+    private static final float DOWN_SWITCH_RATIO = 0.9f;
+    private static final long DOWN_SWITCH_BUFFER_MS = 1500;
+    private static final long DOWN_SWITCH_HOLD_MS = 4000;
+
+    // Step up when the buffer is healthy and the link has shown room for the higher profile
+    private static final float UP_SWITCH_RATIO = 0.98f;
+    private static final long UP_SWITCH_BUFFER_MS = 3000;
+    private static final float UP_SWITCH_HEADROOM = 1.3f;
+    private static final long INITIAL_UP_SWITCH_HOLD_MS = 30000;
+    private static final long MAX_UP_SWITCH_HOLD_MS = 8 * 60000;
+
+    // No switch is made this soon after the last one, the new subscription needs to settle
+    private static final long MIN_SWITCH_INTERVAL_MS = 10000;
+    // A down switch this soon after an up switch means the up switch failed
+    private static final long FAILED_UP_SWITCH_WINDOW_MS = 60000;
+
+    // Local buffer fill above which the extractor, not the link, is what's behind
+    private static final float LOCAL_BACKLOG_FILL = 0.1f;
+
+    private final Handler handler;
+    private final SimpleExoPlayer player;
+    private final BaseConnection connection;
+    private final HTSPSubscriptionDataSource.Factory dataSourceFactory;
+    private final PlaybackMetrics metrics;
+    private final List<String> profiles;
+    // Bitrate each profile needed when it was last played, -1 if unknown
+    private final long[] profileBitrates;
+
+    private final Runnable evaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            handler.postDelayed(this, EVALUATION_INTERVAL_MS);
+        }
+    };
+
+    private int level;
+    private boolean running = false;
+    private boolean rebuffered = false;
+    private int lastPlaybackState = Player.STATE_IDLE;
+    private float deliveryRatio = 1;
+    private long lastBufferedMs = -1;
+    private long lastSampleMs = -1;
+    private long downConditionSinceMs = -1;
+    private long upConditionSinceMs = -1;
+    private long lastSwitchMs = -1;
+    private long lastUpSwitchMs = -1;
+    private long upSwitchHoldMs = INITIAL_UP_SWITCH_HOLD_MS;
+
+    /**
+     * Constructor for an AdaptiveProfileController
+     * @param handler handler of the player's thread
+     * @param player player to monitor
+     * @param connection BaseConnection the subscriptions are made on
+     * @param dataSourceFactory factory of the subscription data sources
+     * @param metrics metrics of the player
+     * @param profiles TVH stream profiles, from highest to lowest bitrate
+     * @param initialLevel index of the profile in use
+     */
+    public AdaptiveProfileController(Handler handler, SimpleExoPlayer player, BaseConnection connection,
+                                     HTSPSubscriptionDataSource.Factory dataSourceFactory, PlaybackMetrics metrics,
+                                     @NonNull List<String> profiles, int initialLevel) {
+        this.handler = handler;
+        this.player = player;
+        this.connection = connection;
+        this.dataSourceFactory = dataSourceFactory;
+        this.metrics = metrics;
+        this.profiles = profiles;
+        this.profileBitrates = new long[profiles.size()];
+        this.level = initialLevel;
+
+        for (int i = 0; i < profileBitrates.length; i++) {
+            profileBitrates[i] = -1;
+        }
+    }
+
+    /**
+     * Starts monitoring a newly tuned subscription.
+     */
+    public void start() {
+        resetSamples();
+        lastSwitchMs = SystemClock.elapsedRealtime();
+
+        if (!running) {
+            running = true;
+            player.addListener(this);
+            handler.postDelayed(evaluate, EVALUATION_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Stops monitoring.
+     */
+    public void stop() {
+        if (running) {
+            running = false;
+            player.removeListener(this);
+            handler.removeCallbacks(evaluate);
+        }
+    }
+
+    /**
+     * Returns the TVH stream profile currently selected
+     * @return stream profile
+     */
+    public String getProfile() {
+        return profiles.get(level);
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        if (playWhenReady && lastPlaybackState == Player.STATE_READY && playbackState == Player.STATE_BUFFERING) {
+            // Ran out of media while playing, the strongest sign the link can't keep up
+            rebuffered = true;
+        }
+        lastPlaybackState = playbackState;
+    }
+
+    /**
+     * Internal method which samples the player's buffer and decides whether to switch profile.
+     */
+    private void evaluate() {
+        HTSPDataSource currentDataSource = dataSourceFactory.getCurrentDataSource();
+        if (!(currentDataSource instanceof HTSPSubscriptionDataSource)) {
+            return;
+        }
+        HTSPSubscriptionDataSource dataSource = (HTSPSubscriptionDataSource) currentDataSource;
+
+        long nowMs = SystemClock.elapsedRealtime();
+
+        if (!player.getPlayWhenReady() || player.getPlaybackParameters().speed != 1f) {
+            // Only normal playback tells us anything about the link
+            resetSamples();
+            return;
+        }
+
+        // The buffer grows when media arrives faster than real time, and shrinks when slower
+        long bufferedMs = player.getTotalBufferedDuration();
+        if (lastSampleMs != -1 && nowMs > lastSampleMs) {
+            float sample = 1 + (float) (bufferedMs - lastBufferedMs) / (nowMs - lastSampleMs);
+            deliveryRatio = RATIO_SMOOTHING * sample + (1 - RATIO_SMOOTHING) * deliveryRatio;
+        }
+        lastBufferedMs = bufferedMs;
+        lastSampleMs = nowMs;
+
+        long bitrate = dataSource.getBitrate();
+        long peakBitrate = connection.getBandwidthMeter().getPeakBitrate();
+
+        if (DEBUG) {
+            Log.v(TAG, "Profile " + getProfile() + ": ratio " + deliveryRatio + ", buffered " + bufferedMs
+                    + "ms, bitrate " + bitrate + ", peak " + peakBitrate + ", fill " + dataSource.getBufferFill());
+        }
+
+        if (lastSwitchMs != -1 && nowMs - lastSwitchMs < MIN_SWITCH_INTERVAL_MS) {
+            rebuffered = false;
+            return;
+        }
+
+        boolean linkBehind = dataSource.getBufferFill() < LOCAL_BACKLOG_FILL;
+        // Frames the server keeps dropping never reach us, so count against the link whatever the buffer says
+        boolean serverDropping = dataSource.getHealthState() != SubscriptionHealth.State.HEALTHY;
+        boolean downCondition = serverDropping || (linkBehind && (rebuffered
+                || (deliveryRatio < DOWN_SWITCH_RATIO && bufferedMs < DOWN_SWITCH_BUFFER_MS)));
+        rebuffered = false;
+
+        downConditionSinceMs = downCondition ? (downConditionSinceMs == -1 ? nowMs : downConditionSinceMs) : -1;
+
+        if (downCondition && level < profiles.size() - 1 && nowMs - downConditionSinceMs >= DOWN_SWITCH_HOLD_MS) {
+            if (bitrate > 0) {
+                // What was delivered fell short, so the profile needed more than that
+                profileBitrates[level] = (long) (bitrate / Math.max(deliveryRatio, 0.1f));
+            }
+
+            if (lastUpSwitchMs != -1 && nowMs - lastUpSwitchMs < FAILED_UP_SWITCH_WINDOW_MS) {
+                upSwitchHoldMs = Math.min(upSwitchHoldMs * 2, MAX_UP_SWITCH_HOLD_MS);
+            }
+
+            switchTo(dataSource, level + 1, "delivery ratio " + deliveryRatio + ", buffered " + bufferedMs + "ms, server " + dataSource.getHealthState());
+            return;
+        }
+
+        boolean upCondition = !serverDropping && deliveryRatio >= UP_SWITCH_RATIO && bufferedMs >= UP_SWITCH_BUFFER_MS;
+        upConditionSinceMs = upCondition ? (upConditionSinceMs == -1 ? nowMs : upConditionSinceMs) : -1;
+
+        if (upCondition && level > 0 && nowMs - upConditionSinceMs >= upSwitchHoldMs) {
+            long neededBitrate = profileBitrates[level - 1];
+            if (neededBitrate > 0 && peakBitrate < neededBitrate * UP_SWITCH_HEADROOM) {
+                return;
+            }
+
+            if (bitrate > 0) {
+                profileBitrates[level] = bitrate;
+            }
+
+            switchTo(dataSource, level - 1, "stable for " + (nowMs - upConditionSinceMs) + "ms, peak " + peakBitrate);
+            lastUpSwitchMs = nowMs;
+        }
+    }
+
+    /**
+     * Internal method which re-subscribes with the profile at a given level.
+     * @param dataSource current subscription data source
+     * @param newLevel index of the profile to switch to
+     * @param reason logged reason for the switch
+     */
+    private void switchTo(HTSPSubscriptionDataSource dataSource, int newLevel, String reason) {
+        String profile = profiles.get(newLevel);
+        Log.i(TAG, "Switching profile " + getProfile() + " -> " + profile + " (" + reason + ")");
+
+        try {
+            dataSource.switchProfile(profile);
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to switch to profile " + profile, e);
+            return;
+        }
+
+        metrics.increment(newLevel > level ? "profile_switches_down" : "profile_switches_up");
+        metrics.set("profile_level", newLevel);
+
+        level = newLevel;
+        // Channels tuned from now on start on this profile too
+        dataSourceFactory.setStreamProfile(profile);
+
+        lastSwitchMs = SystemClock.elapsedRealtime();
+        resetSamples();
+    }
+
+    private void resetSamples() {
+        lastBufferedMs = -1;
+        lastSampleMs = -1;
+        deliveryRatio = 1;
+        downConditionSinceMs = -1;
+        upConditionSinceMs = -1;
+        rebuffered = false;
+    }
+}
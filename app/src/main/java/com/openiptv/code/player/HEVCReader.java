@@ -16,7 +16,7 @@ import static com.openiptv.code.Constants.DEBUG;
  */
 public class HEVCReader extends VideoReader {
     public HEVCReader(Context context) {
-        super(context, MimeTypes.VIDEO_H265);
+        super(context, MimeTypes.VIDEO_H265, "HEVC");
     }
 
     /**
@@ -12,6 +12,11 @@ import java.lang.ref.WeakReference;
 
 
 public abstract class HTSPDataSource implements DataSource, Closeable {
+    /**
+     * Creates the DataSource of one player. Each player owns its own Factory, and only its latest
+     * DataSource is kept. Any number of players can share a BaseConnection, as every subscription
+     * gets its own subscriptionId from the connection's SubscriptionManager.
+     */
     public static abstract class Factory implements DataSource.Factory {
         private static final String TAG = Factory.class.getName();
 
@@ -41,7 +46,10 @@ public abstract class HTSPDataSource implements DataSource, Closeable {
          */
         public void releaseCurrentDataSource() {
             if (currentDataSource != null) {
-                currentDataSource.get().release();
+                HTSPDataSource dataSource = currentDataSource.get();
+                if (dataSource != null) {
+                    dataSource.release();
+                }
                 currentDataSource.clear();
                 currentDataSource = null;
             }
@@ -88,6 +96,5 @@ public abstract class HTSPDataSource implements DataSource, Closeable {
     public abstract long getTimeshiftOffsetPts();
     public abstract long getTimeshiftStartPts();
 
-    public abstract void seek(long seekPts);
     public abstract void setSpeed(int speed);
 }
@@ -0,0 +1,69 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+public class HTSPExtractorsFactory implements ExtractorsFactory {
+    private final Context context;
+    private final PlaybackMetrics metrics;
+    private final boolean startOnKeyframe;
+    private volatile StreamFilter streamFilter;
+    private volatile TrickPlay trickPlay;
+    private volatile LiveEdge liveEdge;
+
+    /**
+     * Constructor for a HTSPExtractorsFactory object. This factory only creates our HTSP extractor,
+     * so ExoPlayer uses it straight away for live channels instead of sniffing the stream against
+     * every available extractor. Everything else is optional and set with the setters, which apply
+     * to the extractors created from then on.
+     * @param context application context
+     * @param metrics metrics of the player the extractors belong to
+     * @param startOnKeyframe whether extractors should hold back samples until the first key frame
+     */
+    public HTSPExtractorsFactory(Context context, PlaybackMetrics metrics, boolean startOnKeyframe)
+    {
+        this.context = context;
+        this.metrics = metrics;
+        this.startOnKeyframe = startOnKeyframe;
+    }
+
+    /**
+     * Sets the filter the extractors tell how each subscription's streams map onto tracks
+     * @param streamFilter filter, or null
+     * @return this factory
+     */
+    public HTSPExtractorsFactory setStreamFilter(StreamFilter streamFilter) {
+        this.streamFilter = streamFilter;
+        return this;
+    }
+
+    /**
+     * Sets the trick play state the extractors read on every seek
+     * @param trickPlay trick play state shared with the player, or null
+     * @return this factory
+     */
+    public HTSPExtractorsFactory setTrickPlay(TrickPlay trickPlay) {
+        this.trickPlay = trickPlay;
+        return this;
+    }
+
+    /**
+     * Sets the live edge the extractors created from now on report their newest sample to
+     * @param liveEdge live edge shared with the player, or null
+     * @return this factory
+     */
+    public HTSPExtractorsFactory setLiveEdge(LiveEdge liveEdge) {
+        this.liveEdge = liveEdge;
+        return this;
+    }
+
+    @Override
+    public Extractor[] createExtractors() {
+        return new Extractor[] {
+                new HTSPSubscriptionDataExtractor(context, metrics, startOnKeyframe, streamFilter, trickPlay, liveEdge)
+        };
+    }
+}
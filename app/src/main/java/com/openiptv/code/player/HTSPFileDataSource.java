@@ -0,0 +1,711 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.openiptv.code.epg.RecordedProgram;
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPException;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.MessageListener;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.openiptv.code.Constants.DEBUG;
+import static com.openiptv.code.Constants.UNIQUE_FILE_SEQ_ID_BASE;
+
+/**
+ * Streams a recording with the HTSP file API, over the connection already used for live TV. The
+ * file is read in chunks, with a window of fileRead requests in flight so the server is always
+ * sending. The window is sized from the measured delivery rate and round trip time, so reading
+ * and seeking are limited by bandwidth rather than by one round trip per chunk.
+ *
+ * With a RecordingCache, whole chunks are also kept on disk, and chunks found there are never
+ * requested. A few more requests prefetch the chunks past the window into the cache, so rewatching
+ * and scrubbing back within what was played or prefetched is served from disk.
+ */
+public class HTSPFileDataSource extends HTSPDataSource implements MessageListener {
+    private static final String TAG = HTSPFileDataSource.class.getSimpleName();
+    private static final AtomicInteger dataSourceCount = new AtomicInteger();
+    // Every request gets its own seq, so replies can be told apart and the dispatcher never
+    // mistakes two reads of the same size for a duplicate
+    private static final AtomicInteger nextSeq = new AtomicInteger(UNIQUE_FILE_SEQ_ID_BASE);
+
+    // Chunks are requested at multiples of the chunk size, so they are reused across seeks
+    private static final int CHUNK_SIZE = 256 * 1024;
+    // Read-ahead window, in chunks in flight or buffered
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 32;
+    // The window covers this many times the bandwidth-delay product, so it can grow while the
+    // window itself is what limits the delivery rate
+    private static final int WINDOW_GAIN = 2;
+    private static final float RATE_SMOOTHING = 0.25f;
+
+    // With a cache, chunks up to this far past the read position are prefetched into it, with at
+    // most this many prefetch requests in flight next to the window
+    private static final int PREFETCH_CHUNKS = 64;
+    private static final int PREFETCH_PARALLEL = 4;
+
+    private static final int OPEN_TIMEOUT_MS = 5000;
+    private static final long READ_TIMEOUT_MS = 10000;
+
+    public static class Factory extends HTSPDataSource.Factory {
+        private final Context context;
+        private final BaseConnection connection;
+        private final PlaybackMetrics metrics;
+        private final RecordingCache cache;
+
+        /**
+         * Factory constructor, used for creating a new HTSPFileDataSource
+         * @param context application context
+         * @param connection BaseConnection used for reading recordings
+         * @param metrics metrics of the player the data sources belong to
+         */
+        public Factory(Context context, BaseConnection connection, PlaybackMetrics metrics) {
+            this(context, connection, metrics, null);
+        }
+
+        /**
+         * Factory constructor, used for creating a new HTSPFileDataSource
+         * @param context application context
+         * @param connection BaseConnection used for reading recordings
+         * @param metrics metrics of the player the data sources belong to
+         * @param cache disk cache of recording chunks, or null
+         */
+        public Factory(Context context, BaseConnection connection, PlaybackMetrics metrics, RecordingCache cache) {
+            this.context = context;
+            this.connection = connection;
+            this.metrics = metrics;
+            this.cache = cache;
+        }
+
+        @Override
+        public HTSPDataSource createDataSourceInternal() {
+            return new HTSPFileDataSource(context, connection, metrics, cache);
+        }
+    }
+
+    private final PlaybackMetrics metrics;
+    private final RecordingCache cache;
+    private final int dataSourceNumber;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled whenever a chunk or a reply arrives, a read fails or the source stops
+    private final Condition chunkAvailable = lock.newCondition();
+
+    // File state, guarded by lock
+    private int recordingId = -1;
+    // Key of the recording's chunks in the cache
+    private String cacheKey;
+    private int fileId = -1;
+    private long fileSize = C.LENGTH_UNSET;
+    private volatile boolean isOpen = false;
+
+    // Read-ahead state, guarded by lock
+    private final Map<Integer, Long> pendingReads = new HashMap<>();
+    private final Map<Integer, Long> sentAtNs = new HashMap<>();
+    // Requests of pendingReads which prefetch into the cache
+    private final Set<Integer> prefetchReads = new HashSet<>();
+    private final TreeMap<Long, byte[]> chunks = new TreeMap<>();
+    private long readPosition = 0;
+    // Where the server's file position is once it has handled everything sent so far
+    private long serverPosition = 0;
+    // Offset of the end of the file, once a short read has found it. A recording still in progress
+    // grows past it, so the size is checked again before the end is reported
+    private long endOffset = Long.MAX_VALUE;
+    private IOException readError;
+
+    // fileOpen and fileStat requests waiting for their reply, and the replies, guarded by lock
+    private final Set<Integer> pendingRequests = new HashSet<>();
+    private final Map<Integer, HTSPMessage> replies = new HashMap<>();
+
+    // Window sizing state, guarded by lock
+    private int window = MIN_WINDOW;
+    private long minRttNs = Long.MAX_VALUE;
+    private long lastResponseNs = -1;
+    private float bytesPerSecond = 0;
+
+    /**
+     * Internal Constructor - Only accessible via Factory.
+     * @param context application context
+     * @param connection BaseConnection used for reading recordings
+     * @param metrics metrics of the player this data source belongs to
+     * @param cache disk cache of recording chunks, or null
+     */
+    private HTSPFileDataSource(Context context, BaseConnection connection, PlaybackMetrics metrics, RecordingCache cache) {
+        super(context, connection);
+
+        this.metrics = metrics;
+        this.cache = cache;
+        this.dataSourceNumber = dataSourceCount.incrementAndGet();
+        this.connection.addMessageListener(this);
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        // Ignore
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        Log.i(TAG, "Opening HTSPFileDataSource at " + dataSpec.position + " (" + dataSourceNumber + ")");
+        this.dataSpec = dataSpec;
+
+        if (fileId == -1) {
+            openFile();
+        }
+
+        lock.lock();
+        try {
+            readPosition = dataSpec.position;
+            readError = null;
+
+            // Keep whatever was read ahead from the new position on, a short seek needs no request
+            long chunkStart = getChunkStart(readPosition);
+            long windowEnd = chunkStart + (long) MAX_WINDOW * CHUNK_SIZE;
+            chunks.headMap(chunkStart).clear();
+            chunks.tailMap(windowEnd).clear();
+
+            Iterator<Map.Entry<Integer, Long>> pending = pendingReads.entrySet().iterator();
+            while (pending.hasNext()) {
+                Map.Entry<Integer, Long> entry = pending.next();
+                if (entry.getValue() < chunkStart || entry.getValue() >= windowEnd) {
+                    sentAtNs.remove(entry.getKey());
+                    prefetchReads.remove(entry.getKey());
+                    pending.remove();
+                }
+            }
+
+            if (chunks.containsKey(chunkStart) || pendingReads.containsValue(chunkStart) || isCached(chunkStart)) {
+                metrics.increment("file_seek_hits");
+            }
+
+            isOpen = true;
+            requestChunks();
+        } finally {
+            lock.unlock();
+        }
+
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            return dataSpec.length;
+        }
+
+        return fileSize != C.LENGTH_UNSET ? fileSize - dataSpec.position : C.LENGTH_UNSET;
+    }
+
+    /**
+     * Internal method which opens the recording on the server
+     * @throws IOException if the recording could not be opened
+     */
+    private void openFile() throws IOException {
+        Integer recordingId = RecordedProgram.getRecordingIdFromRecordingUri(context, dataSpec.uri);
+        if (recordingId == null) {
+            throw new IOException("No recording for " + dataSpec.uri + " (" + dataSourceNumber + ")");
+        }
+
+        HTSPMessage request = new HTSPMessage();
+        request.put("method", "fileOpen");
+        request.put("file", "dvr/" + recordingId);
+
+        lock.lock();
+        try {
+            HTSPMessage response;
+            try {
+                response = sendRequest(connection, request);
+            } catch (HTSPException e) {
+                throw new IOException("Failed to open recording " + recordingId + ", HTSP not connected (" + dataSourceNumber + ")", e);
+            }
+
+            if (response == null || response.containsKey("error") || !response.containsKey("id")) {
+                throw new IOException("Failed to open recording " + recordingId + ": "
+                        + (response != null ? response.getString("error", "no file id") : "no response") + " (" + dataSourceNumber + ")");
+            }
+
+            this.recordingId = recordingId;
+            fileId = response.getInteger("id");
+            fileSize = response.getLong("size", C.LENGTH_UNSET);
+            cacheKey = RecordingCache.getRecordingKey(connection.getServerKey(), recordingId, fileSize);
+            serverPosition = 0;
+        } finally {
+            lock.unlock();
+        }
+
+        Log.d(TAG, "Opened recording " + recordingId + " as file " + fileId + ", " + fileSize + " bytes (" + dataSourceNumber + ")");
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+
+        if (cache != null) {
+            loadCachedChunk();
+        }
+
+        lock.lock();
+        try {
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS);
+            boolean stalled = false;
+
+            while (true) {
+                if (readError != null) {
+                    throw readError;
+                }
+
+                if (readPosition >= endOffset && !hasGrown()) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+
+                Map.Entry<Long, byte[]> chunk = chunks.floorEntry(readPosition);
+                if (chunk != null && readPosition < chunk.getKey() + chunk.getValue().length) {
+                    int chunkOffset = (int) (readPosition - chunk.getKey());
+                    int length = Math.min(readLength, chunk.getValue().length - chunkOffset);
+
+                    System.arraycopy(chunk.getValue(), chunkOffset, buffer, offset, length);
+                    readPosition += length;
+
+                    // Chunks read to the end make room in the window
+                    chunks.headMap(getChunkStart(readPosition)).clear();
+                    requestChunks();
+
+                    return length;
+                }
+
+                if (!isOpen) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+
+                if (remainingNs <= 0) {
+                    throw new IOException("Timed out reading recording at " + readPosition + " (" + dataSourceNumber + ")");
+                }
+
+                if (!stalled) {
+                    // Waiting for the server, the window isn't covering the round trip
+                    stalled = true;
+                    metrics.increment("file_read_stalls");
+                    requestChunks();
+                }
+
+                try {
+                    remainingNs = chunkAvailable.awaitNanos(remainingNs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which asks the server how large the recording is now, once reading has
+     * reached the end a short read found. If it has grown, as a recording in progress does, that
+     * end is forgotten and the chunk it was found in is read again, whole this time. Must be called
+     * holding the lock, which is released while waiting for the reply.
+     * @return true if there is more to read
+     */
+    private boolean hasGrown() {
+        BaseConnection currentConnection = connection;
+        if (currentConnection == null || fileId == -1) {
+            return false;
+        }
+
+        long end = endOffset;
+
+        HTSPMessage request = new HTSPMessage();
+        request.put("method", "fileStat");
+        request.put("id", fileId);
+
+        HTSPMessage response;
+        try {
+            response = sendRequest(currentConnection, request);
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to check the size of recording " + recordingId + " (" + dataSourceNumber + ")", e);
+            response = null;
+        }
+
+        if (endOffset != end) {
+            // Changed while waiting, so it is looked at again
+            return true;
+        }
+
+        if (response == null || response.containsKey("error") || response.getLong("size", C.LENGTH_UNSET) <= end) {
+            return false;
+        }
+
+        fileSize = response.getLong("size");
+        endOffset = Long.MAX_VALUE;
+        chunks.remove(getChunkStart(end));
+        metrics.increment("file_growths");
+
+        if (DEBUG) {
+            Log.d(TAG, "Recording " + recordingId + " has grown to " + fileSize + " bytes (" + dataSourceNumber + ")");
+        }
+
+        requestChunks();
+        return true;
+    }
+
+    /**
+     * Internal method which sends a request and waits for its reply, which onMessage matches by seq
+     * like the replies to fileRead. Must be called holding the lock, which is released while waiting.
+     * @param currentConnection connection to send the request on
+     * @param request request, without a seq
+     * @return reply, or null if there was none in time or the source was released
+     * @throws HTSPException if there is no connection
+     */
+    private HTSPMessage sendRequest(BaseConnection currentConnection, HTSPMessage request) throws HTSPException {
+        int seq = nextSeq.getAndIncrement();
+        request.put("seq", seq);
+        pendingRequests.add(seq);
+
+        try {
+            currentConnection.getHTSPMessageDispatcher().sendMessage(request);
+
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(OPEN_TIMEOUT_MS);
+            while (!replies.containsKey(seq) && pendingRequests.contains(seq) && remainingNs > 0) {
+                try {
+                    remainingNs = chunkAvailable.awaitNanos(remainingNs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            return replies.remove(seq);
+        } finally {
+            pendingRequests.remove(seq);
+        }
+    }
+
+    /**
+     * Internal method which reads the chunk at the read position from the cache, if it isn't in
+     * memory yet. The disk is read without holding the lock.
+     */
+    private void loadCachedChunk() {
+        long chunkStart;
+        String key;
+
+        lock.lock();
+        try {
+            Map.Entry<Long, byte[]> chunk = chunks.floorEntry(readPosition);
+            if (chunk != null && readPosition < chunk.getKey() + chunk.getValue().length) {
+                return;
+            }
+
+            chunkStart = getChunkStart(readPosition);
+            if (!isCached(chunkStart)) {
+                return;
+            }
+            key = cacheKey;
+        } finally {
+            lock.unlock();
+        }
+
+        byte[] data = cache.get(key, chunkStart);
+
+        lock.lock();
+        try {
+            if (data != null) {
+                chunks.put(chunkStart, data);
+            } else {
+                // Evicted since, so it has to come from the server after all
+                requestChunks();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        updateCacheMetrics();
+    }
+
+    /**
+     * Internal method which returns whether a chunk is on disk. Must be called holding the lock.
+     * @param offset offset of the chunk
+     * @return true if cached
+     */
+    private boolean isCached(long offset) {
+        return cache != null && cacheKey != null && cache.contains(cacheKey, offset);
+    }
+
+    private void updateCacheMetrics() {
+        metrics.set("file_cache_hits", cache.getHits());
+        metrics.set("file_cache_misses", cache.getMisses());
+        metrics.set("file_cache_hit_rate_percent", Math.round(cache.getHitRate() * 100));
+        metrics.set("file_cache_evictions", cache.getEvictions());
+        metrics.set("file_cache_bytes", cache.getSizeBytes());
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Log.i(TAG, "Closing HTSPFileDataSource (" + dataSourceNumber + ")");
+        isOpen = false;
+
+        lock.lock();
+        try {
+            chunkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onMessage(HTSPMessage message) {
+        if (!message.containsKey("seq")) {
+            return;
+        }
+
+        int seq = message.getInteger("seq");
+
+        lock.lock();
+        try {
+            if (pendingRequests.remove(seq)) {
+                replies.put(seq, message);
+                chunkAvailable.signalAll();
+                return;
+            }
+
+            Long offset = pendingReads.remove(seq);
+            Long sentNs = sentAtNs.remove(seq);
+            boolean prefetch = prefetchReads.remove(seq);
+            if (offset == null) {
+                // Not ours, or a read from before a seek
+                return;
+            }
+
+            if (message.containsKey("error")) {
+                if (prefetch) {
+                    // Playback doesn't depend on it, the chunk is read again once it is needed
+                    Log.w(TAG, "Failed to prefetch recording at " + offset + ": " + message.getString("error") + " (" + dataSourceNumber + ")");
+                    return;
+                }
+                readError = new IOException("Failed to read recording at " + offset + ": " + message.getString("error") + " (" + dataSourceNumber + ")");
+                chunkAvailable.signalAll();
+                return;
+            }
+
+            byte[] data = message.containsKey("data") ? message.getByteArray("data") : new byte[0];
+            updateWindow(sentNs, data.length);
+            metrics.add("file_read_bytes", data.length);
+
+            if (data.length < CHUNK_SIZE) {
+                endOffset = Math.min(endOffset, offset + data.length);
+            } else if (cache != null) {
+                cache.put(cacheKey, offset, data);
+            }
+
+            // Prefetched chunks stay on disk, unless reading has caught up with them
+            long chunkStart = getChunkStart(readPosition);
+            boolean inWindow = offset >= chunkStart && offset < chunkStart + (long) window * CHUNK_SIZE;
+            if (data.length > 0 && (!prefetch || inWindow || data.length < CHUNK_SIZE)) {
+                chunks.put(offset, data);
+            }
+
+            requestChunks();
+            chunkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which sizes the window from a reply. The delivery rate is only sampled
+     * between replies which follow each other back to back, the round trip is the fastest reply
+     * seen. Must be called holding the lock.
+     * @param sentNs when the request was sent
+     * @param length bytes received
+     */
+    private void updateWindow(long sentNs, int length) {
+        long nowNs = System.nanoTime();
+        minRttNs = Math.min(minRttNs, nowNs - sentNs);
+
+        if (lastResponseNs != -1 && !pendingReads.isEmpty() && nowNs > lastResponseNs) {
+            float rate = length * 1e9f / (nowNs - lastResponseNs);
+            bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+        }
+        lastResponseNs = nowNs;
+
+        if (bytesPerSecond > 0 && minRttNs != Long.MAX_VALUE) {
+            double bandwidthDelayProduct = bytesPerSecond * (minRttNs / 1e9);
+            int newWindow = (int) Math.ceil(WINDOW_GAIN * bandwidthDelayProduct / CHUNK_SIZE) + 1;
+            newWindow = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, newWindow));
+
+            if (newWindow != window) {
+                if (DEBUG) {
+                    Log.v(TAG, "Read-ahead window " + newWindow + " chunks, " + (int) (bytesPerSecond / 1024) + "KB/s, rtt " + minRttNs / 1000000 + "ms (" + dataSourceNumber + ")");
+                }
+                window = newWindow;
+                metrics.set("file_read_window", window);
+            }
+        }
+    }
+
+    /**
+     * Internal method which requests the chunks after the read position until the window is full.
+     * Must be called holding the lock.
+     */
+    private void requestChunks() {
+        if (!isOpen || fileId == -1 || readError != null) {
+            return;
+        }
+
+        long chunkStart = getChunkStart(readPosition);
+        long windowEnd = chunkStart + (long) MAX_WINDOW * CHUNK_SIZE;
+
+        try {
+            for (long offset = chunkStart; offset < windowEnd && offset < endOffset
+                    && chunks.size() + pendingReads.size() - prefetchReads.size() < window; offset += CHUNK_SIZE) {
+                if (!chunks.containsKey(offset) && !pendingReads.containsValue(offset) && !isCached(offset)) {
+                    requestChunk(offset, false);
+                }
+            }
+
+            if (cache == null) {
+                return;
+            }
+
+            long prefetchEnd = chunkStart + (long) PREFETCH_CHUNKS * CHUNK_SIZE;
+            for (long offset = chunkStart + (long) window * CHUNK_SIZE; offset < prefetchEnd && offset < endOffset
+                    && prefetchReads.size() < PREFETCH_PARALLEL; offset += CHUNK_SIZE) {
+                if (!chunks.containsKey(offset) && !pendingReads.containsValue(offset) && !isCached(offset)) {
+                    requestChunk(offset, true);
+                    metrics.increment("file_prefetches");
+                }
+            }
+        } catch (HTSPException e) {
+            readError = new IOException("Failed to request recording, HTSP not connected (" + dataSourceNumber + ")", e);
+            chunkAvailable.signalAll();
+        }
+    }
+
+    /**
+     * Internal method which sends a fileRead for a chunk. The server handles requests in order, so
+     * a fileSeek is only needed when the chunk doesn't follow the previous one. Must be called
+     * holding the lock.
+     * @param offset offset of the chunk
+     * @param prefetch whether the chunk is only prefetched into the cache
+     * @throws HTSPException if there is no connection
+     */
+    private void requestChunk(long offset, boolean prefetch) throws HTSPException {
+        if (offset != serverPosition) {
+            HTSPMessage seekRequest = new HTSPMessage();
+            seekRequest.put("method", "fileSeek");
+            seekRequest.put("id", fileId);
+            seekRequest.put("offset", offset);
+            // Replies are told apart by seq, this one is simply ignored
+            seekRequest.put("seq", nextSeq.getAndIncrement());
+            connection.getHTSPMessageDispatcher().sendMessage(seekRequest);
+        }
+
+        int seq = nextSeq.getAndIncrement();
+
+        HTSPMessage readRequest = new HTSPMessage();
+        readRequest.put("method", "fileRead");
+        readRequest.put("id", fileId);
+        readRequest.put("size", CHUNK_SIZE);
+        readRequest.put("offset", offset);
+        readRequest.put("seq", seq);
+
+        pendingReads.put(seq, offset);
+        sentAtNs.put(seq, System.nanoTime());
+        if (prefetch) {
+            prefetchReads.add(seq);
+        }
+        connection.getHTSPMessageDispatcher().sendMessage(readRequest);
+
+        serverPosition = offset + CHUNK_SIZE;
+    }
+
+    private static long getChunkStart(long position) {
+        return position - position % CHUNK_SIZE;
+    }
+
+    /**
+     * Closes the recording on the server and stops listening for replies.
+     */
+    @Override
+    protected void release() {
+        isOpen = false;
+
+        lock.lock();
+        try {
+            if (connection != null) {
+                connection.getHTSPMessageDispatcher().removeMessageListener(this);
+
+                if (fileId != -1) {
+                    HTSPMessage closeRequest = new HTSPMessage();
+                    closeRequest.put("method", "fileClose");
+                    closeRequest.put("id", fileId);
+                    closeRequest.put("seq", nextSeq.getAndIncrement());
+
+                    try {
+                        connection.getHTSPMessageDispatcher().sendMessage(closeRequest);
+                    } catch (HTSPException e) {
+                        Log.w(TAG, "Unable to close recording file " + fileId + " (" + dataSourceNumber + ")", e);
+                    }
+                }
+                connection = null;
+            }
+
+            fileId = -1;
+            pendingReads.clear();
+            sentAtNs.clear();
+            prefetchReads.clear();
+            pendingRequests.clear();
+            replies.clear();
+            chunks.clear();
+            chunkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Recordings are paused and sped up by the player alone
+    @Override
+    public void resume() {
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public long getTimeshiftStartTime() {
+        return -1;
+    }
+
+    @Override
+    public long getTimeshiftOffsetPts() {
+        return 0;
+    }
+
+    @Override
+    public long getTimeshiftStartPts() {
+        return -1;
+    }
+
+    @Override
+    public void setSpeed(int speed) {
+    }
+}
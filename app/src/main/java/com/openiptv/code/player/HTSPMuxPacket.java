@@ -0,0 +1,41 @@
+package com.openiptv.code.player;
+
+import androidx.annotation.NonNull;
+
+import com.openiptv.code.htsp.HTSPMessage;
+
+/**
+ * Reusable holder for the fields of a muxpkt message. The extractor fills a single instance for
+ * every packet, so the readers can deliver samples from primitive fields without looking up or
+ * allocating anything per sample.
+ */
+public class HTSPMuxPacket {
+    public static final int FRAME_TYPE_UNKNOWN = -1;
+
+    public int stream;
+    public long pts;
+    public int duration;
+    public int frameType;
+    public byte[] payload;
+    public int payloadOffset;
+    public int payloadLength;
+
+    /**
+     * Fills this packet from a muxpkt message, replacing its previous contents.
+     * @param message muxpkt message
+     * @return this packet
+     */
+    public HTSPMuxPacket set(@NonNull HTSPMessage message) {
+        byte[] data = message.getByteArray("payload");
+
+        stream = message.getInteger("stream");
+        pts = message.getLong("pts", 0);
+        duration = message.getInteger("duration", 0);
+        frameType = message.getInteger("frametype", FRAME_TYPE_UNKNOWN);
+        payload = data;
+        payloadOffset = 0;
+        payloadLength = data.length;
+
+        return this;
+    }
+}
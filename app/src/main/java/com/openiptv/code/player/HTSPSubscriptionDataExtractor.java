@@ -3,10 +3,12 @@ package com.openiptv.code.player;
 import android.content.Context;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
@@ -16,11 +18,14 @@ import com.google.android.exoplayer2.extractor.SeekPoint;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.player.utils.PlaybackMetrics;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import static com.openiptv.code.Constants.DEBUG;
 
@@ -49,20 +54,90 @@ class HTSPSubscriptionDataExtractor implements Extractor {
     }
 
     private final Context context;
+    private final PlaybackMetrics metrics;
+    private final boolean startOnKeyframe;
+    private final StreamFilter streamFilter;
+    private final TrickPlay trickPlay;
+    private final LiveEdge liveEdge;
     private ExtractorOutput output;
     private final SparseArray<SourceReader> streamReaders = new SparseArray<>();
+    private boolean hasVideoTrack = false;
+    private boolean waitingForKeyframe = false;
+    // Whether video was filtered out, so it resumes on a key frame once it is enabled again
+    private boolean videoSuspended = false;
+    private final HTSPMuxPacket muxPacket = new HTSPMuxPacket();
+
+    // Tracks can't be added once built, a later subscriptionStart is mapped onto them by type
+    private static final long REBASE_GAP_US = 40000;
+    private final SparseIntArray trackTypes = new SparseIntArray();
+    private boolean tracksBuilt = false;
+    private boolean pendingRebase = false;
+    private long ptsOffset = 0;
+    private long largestPts = C.TIME_UNSET;
+    // Whether the tracks were built from cached streams, which the server's subscriptionStart checks
+    private boolean speculativeTracks = false;
+    private HTSPMessage[] speculativeStreams;
+    // Readers of audio and video tracks the current subscription has no stream for, kept buffered
+    private final SparseArray<SourceReader> orphanedReaders = new SparseArray<>();
+
+    // Stream index to the track it feeds, and the streams which feed none, for the StreamFilter
+    private static final long PLACEHOLDER_INTERVAL_US = 200000;
+    private final SparseIntArray streamTrackIds = new SparseIntArray();
+    private final Set<Integer> unusedStreams = new HashSet<>();
+    private long lastPlaceholderPts = C.TIME_UNSET;
+
+    // Trick play keeps at most one key frame per TRICK_PLAY_FRAME_INTERVAL_US of output
+    private static final long TRICK_PLAY_FRAME_INTERVAL_US = 125000;
+    private float trickPlaySpeed = 1;
+    private long trickPlaySourcePts = C.TIME_UNSET;
+    private long trickPlayOutputPts;
 
     /*
-        Currently the byte buffer is set to 5MB
+        Frames are read into a reusable buffer which only grows to fit the largest message seen
      */
-    private final byte[] rawBytes = new byte[1024 * 1024 * 5];
+    private static final int INITIAL_FRAME_BUFFER_SIZE = 64 * 1024;
+    private final byte[] frameLengthBytes = new byte[HTSPSubscriptionDataSource.FRAME_LENGTH_SIZE];
+    private byte[] frameBytes = new byte[INITIAL_FRAME_BUFFER_SIZE];
+    private int frameLength = C.LENGTH_UNSET;
+    private int frameBytesRead = 0;
+    private boolean headerSkipped = false;
 
     /**
      * Constructor for HTSPSubscriptionDataExtractor
      * @param context application context
      */
     public HTSPSubscriptionDataExtractor(Context context) {
+        this(context, new PlaybackMetrics(), false);
+    }
+
+    /**
+     * Constructor for HTSPSubscriptionDataExtractor
+     * @param context application context
+     * @param metrics metrics of the player this extractor belongs to
+     * @param startOnKeyframe whether to discard every sample until the first video key frame, so
+     *                        playback starts on a frame that can be decoded straight away
+     */
+    public HTSPSubscriptionDataExtractor(Context context, PlaybackMetrics metrics, boolean startOnKeyframe) {
+        this(context, metrics, startOnKeyframe, null, null, null);
+    }
+
+    /**
+     * Constructor for HTSPSubscriptionDataExtractor
+     * @param context application context
+     * @param metrics metrics of the player this extractor belongs to
+     * @param startOnKeyframe whether to discard every sample until the first video key frame, so
+     *                        playback starts on a frame that can be decoded straight away
+     * @param streamFilter filter told how streams map onto tracks, or null
+     * @param trickPlay trick play state, read on every seek, or null
+     * @param liveEdge told of the newest sample output, or null
+     */
+    public HTSPSubscriptionDataExtractor(Context context, PlaybackMetrics metrics, boolean startOnKeyframe, StreamFilter streamFilter, TrickPlay trickPlay, LiveEdge liveEdge) {
         this.context = context;
+        this.metrics = metrics;
+        this.startOnKeyframe = startOnKeyframe;
+        this.streamFilter = streamFilter;
+        this.trickPlay = trickPlay;
+        this.liveEdge = liveEdge;
         Log.d(TAG, "New HtspExtractor instantiated");
     }
 
@@ -86,30 +161,55 @@ class HTSPSubscriptionDataExtractor implements Extractor {
 
     @Override
     public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
-        int bytesRead = input.read(rawBytes, 0, rawBytes.length);
-        if (DEBUG)
-            Log.v(TAG, "Read " + bytesRead + " bytes");
-
-        ObjectInputStream objectInput = null;
-
-        try (
-                // N.B. Don't add the objectInput to this bit, it breaks stuff
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(rawBytes, 0, bytesRead)
-        ) {
-            while (inputStream.available() > 0) {
-                objectInput = new ObjectInputStream(inputStream);
-                handleMessage((HTSPMessage) objectInput.readUnshared());
-            }
-        } catch (ClassNotFoundException e) {
-            Log.w(TAG, "Class Not Found");
-        } finally {
-            try {
-                if (objectInput != null) {
-                    objectInput.close();
-                }
-            } catch (IOException ex) {
-                // Ignore
+        if (!headerSkipped) {
+            input.skipFully(HTSPSubscriptionDataSource.HEADER.length);
+            headerSkipped = true;
+        }
+
+        // Frames may be split across reads, so keep whatever has arrived and continue next time
+        if (frameLength == C.LENGTH_UNSET) {
+            int bytesRead = input.read(frameLengthBytes, frameBytesRead, frameLengthBytes.length - frameBytesRead);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                return RESULT_END_OF_INPUT;
             }
+
+            frameBytesRead += bytesRead;
+            if (frameBytesRead < frameLengthBytes.length) {
+                return RESULT_CONTINUE;
+            }
+
+            frameLength = ((frameLengthBytes[0] & 0xFF) << 24)
+                    | ((frameLengthBytes[1] & 0xFF) << 16)
+                    | ((frameLengthBytes[2] & 0xFF) << 8)
+                    | (frameLengthBytes[3] & 0xFF);
+            frameBytesRead = 0;
+
+            if (frameLength <= 0 || frameLength > HTSPSubscriptionDataSource.MAX_FRAME_LENGTH) {
+                throw new ParserException("Invalid HTSP frame length: " + frameLength);
+            }
+
+            if (frameLength > frameBytes.length) {
+                frameBytes = new byte[Math.max(frameLength, frameBytes.length * 2)];
+            }
+        }
+
+        int bytesRead = input.read(frameBytes, frameBytesRead, frameLength - frameBytesRead);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+            return RESULT_END_OF_INPUT;
+        }
+
+        frameBytesRead += bytesRead;
+        if (frameBytesRead < frameLength) {
+            return RESULT_CONTINUE;
+        }
+
+        HTSPMessage message = deserializeFrame(frameBytes, frameLength);
+
+        frameLength = C.LENGTH_UNSET;
+        frameBytesRead = 0;
+
+        if (message != null) {
+            handleMessage(message);
         }
 
         return RESULT_CONTINUE;
@@ -118,6 +218,31 @@ class HTSPSubscriptionDataExtractor implements Extractor {
     @Override
     public void seek(long position, long timeUs) {
         Log.d(TAG, "Seeking HTSP Extractor to position:" + position + " and timeUs:" + timeUs);
+
+        // The data source drops its buffer on seek, so any partial frame belongs to the old stream.
+        // The HEADER is only sent once per data source, so it is not expected again.
+        frameLength = C.LENGTH_UNSET;
+        frameBytesRead = 0;
+        lastPlaceholderPts = C.TIME_UNSET;
+
+        // Playback resumes on the first key frame after the new position
+        waitingForKeyframe = hasVideoTrack;
+
+        if (timeUs == 0) {
+            // Reopened from the start, as after a channel switch, so the next subscription keeps its
+            // own timestamps and the player's position follows them
+            pendingRebase = false;
+            ptsOffset = 0;
+            largestPts = C.TIME_UNSET;
+            if (liveEdge != null) {
+                liveEdge.reset();
+            }
+        }
+
+        // Trick play starts and stops with a seek, so the player has nothing buffered at the old speed
+        trickPlaySpeed = trickPlay != null ? trickPlay.getSpeed() : 1;
+        trickPlaySourcePts = C.TIME_UNSET;
+        trickPlayOutputPts = timeUs;
     }
 
     @Override
@@ -126,6 +251,22 @@ class HTSPSubscriptionDataExtractor implements Extractor {
         streamReaders.clear();
     }
 
+    /**
+     * Internal method which deserialises a complete frame. A frame that can't be deserialised is
+     * skipped, the frame after it is still found using the length prefix.
+     * @param bytes frame buffer
+     * @param length number of valid bytes in the frame buffer
+     * @return message, or null if the frame could not be deserialised
+     */
+    private HTSPMessage deserializeFrame(byte[] bytes, int length) {
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(bytes, 0, length))) {
+            return (HTSPMessage) objectInput.readUnshared();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Discarding frame of " + length + " bytes which could not be deserialised", e);
+            return null;
+        }
+    }
+
     /**
      * Internal Wrapper method used to identify the type of incoming HTSPMessage.
      * @param message incoming message
@@ -148,25 +289,23 @@ class HTSPSubscriptionDataExtractor implements Extractor {
     private void handleSubscriptionStart(@NonNull final HTSPMessage message) {
         Log.i(TAG, "Handling Subscription Start");
 
+        boolean speculative = message.containsKey(StreamFormatCache.CACHED_KEY);
+        if (!speculative && speculativeTracks) {
+            checkSpeculativeStreams(message.getHtspMessageArray("streams"));
+        }
+
+        if (tracksBuilt) {
+            handleSubscriptionRestart(message, speculative);
+            return;
+        }
+
         for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
             int streamIndex = stream.getInteger("index");
             String streamType = stream.getString("type");
             String mimeType = "";
 
             if (stream.containsKey("audio_version")) {
-                switch (stream.getInteger("audio_version")) {
-                    case 1: // MP1 Audio - V.Unlikely these days
-                        mimeType = MimeTypes.AUDIO_MPEG_L1;
-                        break;
-                    case 2: // MP2 Audio - Pretty common in DVB streams
-                        mimeType = MimeTypes.AUDIO_MPEG_L2;
-                        break;
-                    case 3: // MP3 Audio - Pretty common in IPTV streams
-                        mimeType = MimeTypes.AUDIO_MPEG;
-                        break;
-                    default:
-                        throw new RuntimeException("Unknown MPEG Audio Version: " + stream.getInteger("audio_version"));
-                }
+                mimeType = getMpegAudioMimeType(stream.getInteger("audio_version"));
             }
 
             SourceReader streamReader = new SourceReader.Factory(context).build(streamType, mimeType);
@@ -174,14 +313,259 @@ class HTSPSubscriptionDataExtractor implements Extractor {
                 Log.d(TAG, "Creating StreamReader for " + streamType + " stream at index " + streamIndex);
                 streamReader.buildTrackOutput(output, stream);
                 streamReaders.put(streamIndex, streamReader);
+                trackTypes.put(streamIndex, streamReader.getTrackType());
+                streamTrackIds.put(streamIndex, streamIndex);
+
+                if (streamReader.getTrackType() == C.TRACK_TYPE_VIDEO) {
+                    hasVideoTrack = true;
+                }
             } else {
                 Log.d(TAG, "Discarding stream at index " + streamIndex + ", no suitable StreamReader");
+                unusedStreams.add(streamIndex);
             }
 
         }
 
         Log.d(TAG, "All streams have now been handled");
         output.endTracks();
+        tracksBuilt = true;
+
+        waitingForKeyframe = startOnKeyframe && hasVideoTrack;
+        metrics.markTuneStage(PlaybackMetrics.TuneStage.TRACKS_BUILT);
+
+        if (speculative) {
+            // The server hasn't sent these streams yet, so there is nothing to filter
+            Log.d(TAG, "Built tracks from the cached streams of the channel");
+            speculativeTracks = true;
+            speculativeStreams = message.getHtspMessageArray("streams");
+            return;
+        }
+
+        publishStreamMapping();
+    }
+
+    /**
+     * Internal method which compares the streams the server started with against the cached streams
+     * the tracks were built from. Either way, they are mapped onto the tracks as a restart.
+     * @param streams streams of the server's subscriptionStart
+     */
+    private void checkSpeculativeStreams(HTSPMessage[] streams) {
+        boolean matches = speculativeStreams != null && speculativeStreams.length == streams.length;
+
+        for (int i = 0; matches && i < streams.length; i++) {
+            matches = streams[i].getInteger("index") == speculativeStreams[i].getInteger("index")
+                    && streams[i].getString("type").equals(speculativeStreams[i].getString("type"));
+        }
+
+        if (!matches) {
+            Log.d(TAG, "Streams of the channel changed since they were cached, correcting the tracks");
+            metrics.increment("format_cache_mismatches");
+        }
+
+        speculativeTracks = false;
+        speculativeStreams = null;
+    }
+
+    /**
+     * Internal method used to handle a subscriptionStart after the tracks have been built, as sent
+     * when the data source re-subscribes with another stream profile or channel, or after tracks
+     * built from cached streams. The new streams are mapped onto the existing tracks by type, in
+     * order, and their timestamps are rebased to carry on from the last sample. Audio and video
+     * tracks left without a stream keep their reader, to be kept buffered with placeholders.
+     * @param message subscriptionStart message
+     * @param speculative whether the message was made from cached streams
+     */
+    private void handleSubscriptionRestart(@NonNull final HTSPMessage message, boolean speculative) {
+        Log.i(TAG, "Remapping streams of a new subscription onto the existing tracks");
+
+        int previousReaderCount = streamReaders.size();
+        SparseArray<SourceReader> previousReaders = orphanedReaders.clone();
+        for (int i = 0; i < streamReaders.size(); i++) {
+            previousReaders.put(streamTrackIds.get(streamReaders.keyAt(i)), streamReaders.valueAt(i));
+        }
+        orphanedReaders.clear();
+
+        streamReaders.clear();
+        streamTrackIds.clear();
+        unusedStreams.clear();
+        hasVideoTrack = false;
+
+        boolean[] trackUsed = new boolean[trackTypes.size()];
+
+        for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+            int streamIndex = stream.getInteger("index");
+            String mimeType = "";
+
+            if (stream.containsKey("audio_version")) {
+                mimeType = getMpegAudioMimeType(stream.getInteger("audio_version"));
+            }
+
+            SourceReader streamReader = new SourceReader.Factory(context).build(stream.getString("type"), mimeType);
+            if (streamReader == null) {
+                unusedStreams.add(streamIndex);
+                continue;
+            }
+
+            int trackId = C.INDEX_UNSET;
+            for (int i = 0; i < trackTypes.size(); i++) {
+                if (!trackUsed[i] && trackTypes.valueAt(i) == streamReader.getTrackType()) {
+                    trackUsed[i] = true;
+                    trackId = trackTypes.keyAt(i);
+                    break;
+                }
+            }
+
+            if (trackId == C.INDEX_UNSET) {
+                Log.d(TAG, "Discarding stream at index " + streamIndex + ", no existing track of its type");
+                unusedStreams.add(streamIndex);
+                continue;
+            }
+
+            Log.d(TAG, "Mapping " + stream.getString("type") + " stream at index " + streamIndex + " onto track " + trackId);
+            streamReader.buildTrackOutput(output, stream, trackId);
+            streamReaders.put(streamIndex, streamReader);
+            streamTrackIds.put(streamIndex, trackId);
+
+            if (streamReader.getTrackType() == C.TRACK_TYPE_VIDEO) {
+                hasVideoTrack = true;
+            }
+        }
+
+        for (int i = 0; i < trackTypes.size(); i++) {
+            SourceReader previousReader = previousReaders.get(trackTypes.keyAt(i));
+            if (!trackUsed[i] && previousReader != null
+                    && (trackTypes.valueAt(i) == C.TRACK_TYPE_AUDIO || trackTypes.valueAt(i) == C.TRACK_TYPE_VIDEO)) {
+                orphanedReaders.put(trackTypes.keyAt(i), previousReader);
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Replaced " + previousReaderCount + " stream readers with " + streamReaders.size() + ", " + orphanedReaders.size() + " tracks left without a stream");
+        }
+
+        // The decoder can't pick up the new stream until its first key frame
+        waitingForKeyframe = hasVideoTrack;
+        pendingRebase = largestPts != C.TIME_UNSET;
+
+        if (speculative) {
+            speculativeTracks = true;
+            speculativeStreams = message.getHtspMessageArray("streams");
+            return;
+        }
+
+        publishStreamMapping();
+    }
+
+    /**
+     * Internal method which drops the packets of a video track filtered out on the server, which keep
+     * arriving until the filter takes effect. Once the track is enabled again it resumes on its next
+     * key frame.
+     * @param streamReader reader of the packet's stream
+     * @return true if the packet should be extracted
+     */
+    private boolean isVideoPacketWanted(SourceReader streamReader) {
+        if (streamFilter == null) {
+            return true;
+        }
+
+        if (streamFilter.isTrackDisabled(streamTrackIds.get(muxPacket.stream, C.INDEX_UNSET))) {
+            videoSuspended = true;
+            return false;
+        }
+
+        if (videoSuspended) {
+            if (!streamReader.isKeyFrame(muxPacket)) {
+                return false;
+            }
+
+            Log.d(TAG, "Resuming video on key frame");
+            videoSuspended = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Internal method which returns whether every video track is filtered out on the server
+     * @return true if playing audio only
+     */
+    private boolean isVideoFilteredOut() {
+        if (streamFilter == null || !hasVideoTrack) {
+            return false;
+        }
+
+        for (int i = 0; i < streamReaders.size(); i++) {
+            if (streamReaders.valueAt(i).getTrackType() == C.TRACK_TYPE_VIDEO
+                    && !streamFilter.isTrackDisabled(streamTrackIds.get(streamReaders.keyAt(i), C.INDEX_UNSET))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Internal method which tells the StreamFilter how the current streams map onto tracks.
+     */
+    private void publishStreamMapping() {
+        if (streamFilter == null) {
+            return;
+        }
+
+        SparseIntArray streamTrackTypes = new SparseIntArray();
+        for (int i = 0; i < streamReaders.size(); i++) {
+            streamTrackTypes.put(streamReaders.keyAt(i), streamReaders.valueAt(i).getTrackType());
+        }
+
+        streamFilter.onStreamsMapped(streamTrackIds, streamTrackTypes, unusedStreams);
+    }
+
+    /**
+     * Internal method which keeps the audio and video tracks filtered out on the server, or left
+     * without a stream, buffered up to the given time, so the player's buffered position follows
+     * the tracks being played.
+     * @param timeUs time of the latest sample
+     */
+    private void maybeOutputPlaceholders(long timeUs) {
+        if (lastPlaceholderPts != C.TIME_UNSET && timeUs >= lastPlaceholderPts && timeUs - lastPlaceholderPts < PLACEHOLDER_INTERVAL_US) {
+            return;
+        }
+        lastPlaceholderPts = timeUs;
+
+        for (int i = 0; i < streamReaders.size(); i++) {
+            SourceReader streamReader = streamReaders.valueAt(i);
+            int trackType = streamReader.getTrackType();
+
+            if ((trackType == C.TRACK_TYPE_AUDIO || trackType == C.TRACK_TYPE_VIDEO)
+                    && streamFilter != null && streamFilter.isTrackDisabled(streamTrackIds.get(streamReaders.keyAt(i)))) {
+                streamReader.outputPlaceholder(timeUs);
+                if (trackType == C.TRACK_TYPE_VIDEO) {
+                    videoSuspended = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < orphanedReaders.size(); i++) {
+            orphanedReaders.valueAt(i).outputPlaceholder(timeUs);
+        }
+    }
+
+    /**
+     * Internal method which returns the mime type of an MPEG audio stream.
+     * @param audioVersion audio_version of the stream
+     * @return mime type
+     */
+    private static String getMpegAudioMimeType(int audioVersion) {
+        switch (audioVersion) {
+            case 1: // MP1 Audio - V.Unlikely these days
+                return MimeTypes.AUDIO_MPEG_L1;
+            case 2: // MP2 Audio - Pretty common in DVB streams
+                return MimeTypes.AUDIO_MPEG_L2;
+            case 3: // MP3 Audio - Pretty common in IPTV streams
+                return MimeTypes.AUDIO_MPEG;
+            default:
+                throw new RuntimeException("Unknown MPEG Audio Version: " + audioVersion);
+        }
     }
 
     /**
@@ -189,13 +573,97 @@ class HTSPSubscriptionDataExtractor implements Extractor {
      * @param message stream data message
      */
     private void handleMuxpkt(@NonNull final HTSPMessage message) {
-        int streamIndex = message.getInteger("stream");
-        SourceReader streamReader = streamReaders.get(streamIndex);
+        muxPacket.set(message);
+
+        if (pendingRebase) {
+            // Carry on from the last sample, so playback doesn't stall on the new timeline
+            ptsOffset = largestPts + REBASE_GAP_US - muxPacket.pts;
+            pendingRebase = false;
+            Log.d(TAG, "Rebasing timestamps of the new subscription by " + ptsOffset + "us");
+        }
+        muxPacket.pts += ptsOffset;
+
+        SourceReader streamReader = streamReaders.get(muxPacket.stream);
 
         if (streamReader == null) {
             return;
         }
 
-        streamReader.extract(message);
+        if (streamReader.getTrackType() == C.TRACK_TYPE_VIDEO && !isVideoPacketWanted(streamReader)) {
+            return;
+        }
+
+        if (trickPlaySpeed != 1) {
+            handleTrickPlayPacket(streamReader);
+            return;
+        }
+
+        if (streamReader.getTrackType() == C.TRACK_TYPE_VIDEO && streamReader.isKeyFrame(muxPacket)) {
+            if (waitingForKeyframe) {
+                Log.d(TAG, "Starting playback on first key frame");
+                waitingForKeyframe = false;
+            }
+            metrics.markTuneStage(PlaybackMetrics.TuneStage.FIRST_KEYFRAME);
+        } else if (waitingForKeyframe) {
+            // Anything before the first key frame can't be decoded, or would play ahead of video
+            if (!isVideoFilteredOut()) {
+                return;
+            }
+
+            // Audio only, there is no key frame to wait for
+            waitingForKeyframe = false;
+            videoSuspended = true;
+        }
+
+        if (streamReader.extract(muxPacket) && (largestPts == C.TIME_UNSET || muxPacket.pts > largestPts)) {
+            largestPts = muxPacket.pts;
+            if (liveEdge != null) {
+                liveEdge.update(largestPts, largestPts - ptsOffset);
+            }
+        }
+
+        if (streamFilter != null || orphanedReaders.size() > 0) {
+            maybeOutputPlaceholders(muxPacket.pts);
+        }
+    }
+
+    /**
+     * Internal method which outputs a packet during trick play. Only key frames are kept, at most
+     * one per TRICK_PLAY_FRAME_INTERVAL_US, and each is moved onto a timeline which advances by the
+     * distance it covers divided by the speed. The player plays that timeline at normal speed, so
+     * the picture moves at the trick play speed, forwards or backwards.
+     * @param streamReader reader of the packet's stream
+     */
+    private void handleTrickPlayPacket(SourceReader streamReader) {
+        if (streamReader.getTrackType() != C.TRACK_TYPE_VIDEO || !streamReader.isKeyFrame(muxPacket)) {
+            return;
+        }
+
+        long sourcePts = muxPacket.pts;
+        float absoluteSpeed = Math.abs(trickPlaySpeed);
+
+        if (trickPlaySourcePts != C.TIME_UNSET) {
+            long distance = Math.abs(sourcePts - trickPlaySourcePts);
+            if (distance < absoluteSpeed * TRICK_PLAY_FRAME_INTERVAL_US) {
+                return;
+            }
+            trickPlayOutputPts += (long) (distance / absoluteSpeed);
+        }
+        trickPlaySourcePts = sourcePts;
+
+        muxPacket.pts = trickPlayOutputPts;
+        if (!streamReader.extract(muxPacket)) {
+            return;
+        }
+        trickPlay.onFrameOutput(sourcePts);
+        metrics.increment("trickplay_keyframes");
+
+        // Audio is left out, but has to keep up for the player to carry on buffering
+        for (int i = 0; i < streamReaders.size(); i++) {
+            SourceReader reader = streamReaders.valueAt(i);
+            if (reader.getTrackType() == C.TRACK_TYPE_AUDIO) {
+                reader.outputPlaceholder(trickPlayOutputPts);
+            }
+        }
     }
-}
\ No newline at end of file
+}
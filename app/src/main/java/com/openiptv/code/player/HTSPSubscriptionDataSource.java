@@ -1,6 +1,7 @@
 package com.openiptv.code.player;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -13,16 +14,19 @@ import com.openiptv.code.htsp.BaseConnection;
 import com.openiptv.code.htsp.HTSPMessage;
 import com.openiptv.code.htsp.HTSPException;
 import com.openiptv.code.htsp.Subscriber;
+import com.openiptv.code.htsp.SubscriptionHealth;
+import com.openiptv.code.htsp.SubscriptionPolicy;
+import com.openiptv.code.player.utils.PlaybackMetrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.openiptv.code.Constants.DEBUG;
@@ -31,14 +35,52 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
     private static final String TAG = HTSPSubscriptionDataSource.class.getName();
     private static final AtomicInteger dataSourceCount = new AtomicInteger();
     private static final int BUFFER_SIZE = 10*1024*1024;
+
+    // Flow control watermarks, as a number of unread bytes in the buffer
+    private static final int LOW_WATERMARK = BUFFER_SIZE / 2;
+    private static final int HIGH_WATERMARK = BUFFER_SIZE * 3 / 4;
+    private static final int CRITICAL_WATERMARK = BUFFER_SIZE * 9 / 10;
     public static final byte[] HEADER = new byte[] {0,1,0,1,0,1,0,1};
+    // Every message after the HEADER is framed by its length as a big-endian int
+    public static final int FRAME_LENGTH_SIZE = 4;
+    public static final int MAX_FRAME_LENGTH = BUFFER_SIZE - HEADER.length - FRAME_LENGTH_SIZE;
+
+    // Re-subscribe once the server has been dropping key frames this long, but not more often
+    // than every MIN_RESUBSCRIBE_INTERVAL_MS, as a new subscription may get a better tuner or mux
+    private static final long FAILING_RESUBSCRIBE_MS = 10000;
+    private static final long MIN_RESUBSCRIBE_INTERVAL_MS = 60000;
+
+    // How long a seek waits for the server to acknowledge the skip, before accepting packets anyway
+    private static final long SKIP_ACK_TIMEOUT_MS = 2000;
+
+    /**
+     * How incoming video is dropped while the consumer is falling behind
+     */
+    private enum DropMode {
+        // Everything is buffered
+        NONE,
+        // Non-reference (B) frames are dropped
+        NON_REFERENCE,
+        // The rest of the GOP is dropped, video resumes at the next key frame
+        UNTIL_KEYFRAME
+    }
 
+    /**
+     * Creates HTSPSubscriptionDataSources. Everything but the connection and stream profile is
+     * optional and set with the setters, which apply to the data sources created from then on.
+     */
     public static class Factory extends HTSPDataSource.Factory {
         private static final String TAG = Factory.class.getName();
 
         private final Context context;
         private final BaseConnection connection;
-        private final String streamProfile;
+        private volatile String streamProfile;
+        private volatile PlaybackMetrics metrics = new PlaybackMetrics();
+        private volatile PreSubscriptionManager preSubscriptionManager;
+        private volatile StreamProfileSelector profileSelector;
+        private volatile SubscriptionPolicy policy = SubscriptionPolicy.LIVE;
+        private volatile long localTimeshiftSize = 0;
+        private volatile StreamFormatCache streamFormatCache;
 
         /**
          * Factory constructor, used for creating a new HTSPSubscriptionDataSource
@@ -52,30 +94,172 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
             this.streamProfile = streamProfile;
         }
 
+        /**
+         * Changes the stream profile of the data sources created from now on
+         * @param streamProfile stream profile to use with TVHeadEnd
+         * @return this factory
+         */
+        public Factory setStreamProfile(String streamProfile) {
+            this.streamProfile = streamProfile;
+            return this;
+        }
+
+        /**
+         * Sets the metrics the data sources report to, by default metrics of their own
+         * @param metrics metrics of the player the data sources belong to
+         * @return this factory
+         */
+        public Factory setMetrics(PlaybackMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Sets the background subscriptions the data sources take over on tune
+         * @param preSubscriptionManager manager, or null to always subscribe on tune
+         * @return this factory
+         */
+        public Factory setPreSubscriptionManager(PreSubscriptionManager preSubscriptionManager) {
+            this.preSubscriptionManager = preSubscriptionManager;
+            return this;
+        }
+
+        /**
+         * Sets what picks the profile of each channel
+         * @param profileSelector picks a profile each channel can be decoded in hardware with, or
+         *                        null to always use the stream profile
+         * @return this factory
+         */
+        public Factory setProfileSelector(StreamProfileSelector profileSelector) {
+            this.profileSelector = profileSelector;
+            return this;
+        }
+
+        /**
+         * Sets the parameters the data sources subscribe with, by default SubscriptionPolicy.LIVE
+         * @param policy parameters to subscribe with
+         * @return this factory
+         */
+        public Factory setPolicy(SubscriptionPolicy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * Changes the size of the local timeshift of the data sources created from now on
+         * @param localTimeshiftSize size in bytes, 0 for no local timeshift
+         * @return this factory
+         */
+        public Factory setLocalTimeshiftSize(long localTimeshiftSize) {
+            this.localTimeshiftSize = localTimeshiftSize;
+            return this;
+        }
+
+        /**
+         * Sets the cache of channel streams the data sources created from now on start with
+         * @param streamFormatCache cache, or null to wait for the server's subscriptionStart
+         * @return this factory
+         */
+        public Factory setStreamFormatCache(StreamFormatCache streamFormatCache) {
+            this.streamFormatCache = streamFormatCache;
+            return this;
+        }
+
         @Override
         public HTSPDataSource createDataSourceInternal() {
-            return new HTSPSubscriptionDataSource(context, connection, streamProfile);
+            return new HTSPSubscriptionDataSource(this);
         }
     }
 
-    private final String streamProfile;
+    // Profile configured for the player, each channel's profile is selected from it on subscribe
+    private final String preferredProfile;
+    // Profile currently subscribed with
+    private String streamProfile;
+    private final PlaybackMetrics metrics;
+    private final PreSubscriptionManager preSubscriptionManager;
+    private final StreamProfileSelector profileSelector;
+    private final SubscriptionPolicy policy;
+    private final StreamFormatCache streamFormatCache;
     private final int dataSourceNumber;
     private Subscriber subscriber;
+    private PreSubscriptionManager.WarmSubscription warmSubscription;
     private ByteBuffer buffer;
+    // Unread bytes of the frame the reader is part way through, guarded by lock. The extractor
+    // expects the rest of it, so it survives a discard. The HEADER counts as a frame until read.
+    private int partialFrameBytes = HEADER.length;
+    private boolean headerRead = false;
     private final ReentrantLock lock = new ReentrantLock();
-    private boolean isOpen = false;
+    // Signalled whenever data is added to the buffer or the source stops, so readers never poll
+    private final Condition dataAvailable = lock.newCondition();
+    // Signalled when the server acknowledges a skip
+    private final Condition skipAcknowledged = lock.newCondition();
+    private volatile boolean isOpen = false;
     private boolean isSubscribed = false;
+    private boolean hasReceivedPacket = false;
+    private boolean profileNegotiated = false;
+    // Video stream type of the current subscription, or null if it has no video
+    private String videoType;
+    // Set by switchChannel, the new channel's data is held back until the player reopens the source
+    private boolean switchPending = false;
+
+    // Flow control state, guarded by lock
+    // Type of each video stream by index
+    private final Map<Integer, String> videoStreams = new HashMap<>();
+    private DropMode dropMode = DropMode.NONE;
+    private boolean isThrottled = false;
+    private int requestedSpeed = 100;
+    // During trick play only video key frames are buffered
+    private boolean keyframesOnly = false;
+
+    // Seek state, guarded by lock. Every skip starts a new epoch, packets are only buffered once the
+    // server has acknowledged the skips of every epoch, anything older is from before the seek
+    private int seekEpoch = 0;
+    private int acknowledgedEpoch = 0;
+    private long skipRequestedMs = -1;
+
+    // Local timeshift, guarded by lock. Every packet is appended to it, and a seek within it is
+    // played back from it, during which packets are no longer buffered
+    private final long localTimeshiftSize;
+    private LocalTimeshiftReplay localReplay;
+    // Pauses the server while the local timeshift is nearly full of unread frames
+    private final LocalTimeshiftReplay.Throttle localThrottle = new LocalTimeshiftReplay.Throttle() {
+        @Override
+        public boolean throttle() {
+            return throttleSubscription();
+        }
+
+        @Override
+        public boolean resume() {
+            return resumeSubscription();
+        }
+    };
+
+    // Server health mitigation state, only touched from subscription callbacks
+    private long failingSinceMs = -1;
+    private long lastResubscribeMs = -1;
+
+    // Interarrival jitter of the packets, estimated as in RFC 3550 from those with a new largest pts
+    private static final int JITTER_SMOOTHING = 16;
+    private long jitterArrivalUs = -1;
+    private long jitterPts = C.TIME_UNSET;
+    private volatile long jitterUs = 0;
+    private volatile long largestPts = C.TIME_UNSET;
 
     /**
      * Internal Constructor - Only accessible via Factory.
-     * @param context application context
-     * @param connection BaseConnection used for subscribing to Channels/Recordings
-     * @param streamProfile stream profile to use with TVHeadEnd
+     * @param factory factory holding the settings of the data source
      */
-    private HTSPSubscriptionDataSource(Context context, BaseConnection connection, String streamProfile) {
-        super(context, connection);
+    private HTSPSubscriptionDataSource(Factory factory) {
+        super(factory.context, factory.connection);
 
-        this.streamProfile = streamProfile;
+        this.preferredProfile = factory.streamProfile;
+        this.streamProfile = factory.streamProfile;
+        this.metrics = factory.metrics;
+        this.preSubscriptionManager = factory.preSubscriptionManager;
+        this.profileSelector = factory.profileSelector;
+        this.policy = factory.policy;
+        this.localTimeshiftSize = factory.localTimeshiftSize;
+        this.streamFormatCache = factory.streamFormatCache;
         this.dataSourceNumber = dataSourceCount.incrementAndGet();
 
         try {
@@ -88,7 +272,7 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
             throw new RuntimeException("OutOfMemoryError when allocating HTSPSubscriptionDataSource buffer", e);
         }
 
-        this.subscriber = new Subscriber(this.connection.getHTSPMessageDispatcher());
+        this.subscriber = this.connection.getSubscriptionManager().createSubscriber();
         this.subscriber.addSubscriptionListener(this);
     }
 
@@ -114,27 +298,113 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
 
         if (!isSubscribed) {
             try {
-                long channelId = Long.parseLong(Channel.getChannelIdFromChannelUri(context, dataSpec.uri).toString());
-                subscriber.subscribe(channelId, streamProfile);
-                isSubscribed = true;
+                subscribe(Long.parseLong(Channel.getChannelIdFromChannelUri(context, dataSpec.uri).toString()));
             } catch (HTSPException e) {
                 throw new IOException("Failed to open HtspSubscriptionDataSource, HTSP not connected (" + dataSourceNumber + ")", e);
             }
+
+            if (localTimeshiftSize > 0) {
+                obtainLocalTimeshift();
+            }
+        }
+
+        lock.lock();
+        try {
+            // The player has dropped what it buffered of the previous channel, the new one can be read
+            switchPending = false;
+        } finally {
+            lock.unlock();
         }
 
         long seekPosition = this.dataSpec.position;
         if (seekPosition > 0) {
-            Log.d(TAG, "Seek to time PTS: " + seekPosition);
-
-            subscriber.seek(seekPosition);
-            buffer.clear();
-            buffer.limit(0);
+            seekTo(seekPosition);
         }
 
         isOpen = true;
         return dataSpec.length;
     }
 
+    /**
+     * Seeks to a position, played back from the local timeshift if it holds it. Otherwise the
+     * server is asked to skip, and this blocks until it has acknowledged the skip or
+     * SKIP_ACK_TIMEOUT_MS has passed. Only called as the source is reopened, as everything buffered
+     * is dropped and the extractor then starts on a new frame.
+     * @param timeUs absolute position to seek to
+     */
+    public void seekTo(long timeUs) {
+        Log.d(TAG, "Seek to time PTS: " + timeUs + " (" + dataSourceNumber + ")");
+        if (!seekLocally(timeUs)) {
+            awaitSkip(startSkip(timeUs));
+        }
+    }
+
+    /**
+     * Internal method which subscribes to a channel, taking over a background subscription to it
+     * if there is one.
+     * @param channelId TVH channelId
+     * @throws HTSPException if the subscription could not be requested
+     */
+    private void subscribe(long channelId) throws HTSPException {
+        if (preSubscriptionManager != null) {
+            warmSubscription = preSubscriptionManager.claim(channelId);
+        }
+
+        if (warmSubscription != null) {
+            // Take over the background subscription, its buffered GOP is replayed to us
+            subscriber.removeSubscriptionListener(this);
+            subscriber = warmSubscription.getSubscriber();
+            warmSubscription.promote(this, policy.getWeight());
+            // Background subscriptions are made with the configured profile
+            streamProfile = preferredProfile;
+            metrics.increment("pre_subscription_hits");
+        } else {
+            streamProfile = profileSelector != null ? profileSelector.selectProfile(channelId, preferredProfile) : preferredProfile;
+            appendCachedStreams(channelId);
+            subscriber.subscribe(channelId, streamProfile, policy);
+            metrics.increment("pre_subscription_misses");
+        }
+
+        isSubscribed = true;
+        metrics.markTuneStage(PlaybackMetrics.TuneStage.SUBSCRIBE_SENT);
+
+        if (preSubscriptionManager != null) {
+            preSubscriptionManager.onTuned(channelId);
+        }
+    }
+
+    /**
+     * Internal method which buffers the streams the channel last started with, so the extractor
+     * builds its tracks before the server replies. The server's subscriptionStart follows it.
+     * @param channelId TVH channelId
+     */
+    private void appendCachedStreams(long channelId) {
+        if (streamFormatCache == null) {
+            return;
+        }
+
+        HTSPMessage cached = streamFormatCache.get(StreamFormatCache.getKey(connection.getServerKey(), channelId, streamProfile));
+        if (cached == null) {
+            metrics.increment("format_cache_misses");
+            return;
+        }
+
+        byte[] bytes = serializeMessage(cached);
+        if (bytes == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (fitsInBuffer(bytes)) {
+                appendToBuffer(bytes);
+                metrics.increment("format_cache_hits");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int read(byte[] buffer, int offset, int readLength) throws IOException {
         if (readLength == 0) {
@@ -144,29 +414,39 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
         // IOException gets handled by calling method somehow. Catching the IOException leads to problems
         // that cause unnecessary handling.
 
-        // If the buffer is empty, block until we have at least 1 byte of data
-        while (isOpen && this.buffer.remaining() == 0) {
-            try {
-                if (DEBUG)
-                    Log.v(TAG, "Blocking for more data ("+ dataSourceNumber +")");
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                // Ignore.
-                return 0;
-            }
-        }
-
-        if (!isOpen && this.buffer.remaining() == 0) {
-            return C.RESULT_END_OF_INPUT;
-        }
-
         int length;
 
         lock.lock();
         try {
+            // If the buffer is empty, block until we are signalled that data has arrived
+            while (isOpen && !hasUnreadData()) {
+                try {
+                    if (DEBUG)
+                        Log.v(TAG, "Blocking for more data ("+ dataSourceNumber +")");
+                    dataAvailable.await();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                    return 0;
+                }
+            }
+
+            if (!isOpen && !hasUnreadData()) {
+                return C.RESULT_END_OF_INPUT;
+            }
+
+            if (isReplaying()) {
+                length = localReplay.read(buffer, offset, readLength);
+                if (!localReplay.isReplaying()) {
+                    // Caught up, the buffer fills from here on
+                    updateFlowControl(this.buffer.remaining());
+                }
+                return length;
+            }
+
             int remaining = this.buffer.remaining();
             length = Math.min(remaining, readLength);
 
+            consumeFrames(length);
             this.buffer.get(buffer, offset, length);
             this.buffer.compact();
             this.buffer.flip();
@@ -177,6 +457,22 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
         return length;
     }
 
+    /**
+     * Returns whether there is anything left to read. Must be called holding the lock.
+     * @return true if a read won't block
+     */
+    private boolean hasUnreadData() {
+        if (switchPending) {
+            return false;
+        }
+
+        if (isReplaying()) {
+            return localReplay.hasUnreadData();
+        }
+
+        return this.buffer.remaining() > 0;
+    }
+
     @Override
     public Map<String, List<String>> getResponseHeaders() {
         return new HashMap<>();
@@ -186,34 +482,355 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
     public void close() throws IOException {
         Log.i(TAG, "Closing HTSP DataSource ("+ dataSourceNumber +")");
         isOpen = false;
+        signalDataAvailable();
     }
 
     // Subscription.Listener Methods
     @Override
     public void onSubscriptionStart(@NonNull HTSPMessage message) {
         Log.d(TAG, "Received subscriptionStart ("+ dataSourceNumber +")");
-        serializeMessageToBuffer(message);
+        metrics.markTuneStage(PlaybackMetrics.TuneStage.SUBSCRIPTION_START);
+
+        if (profileSelector != null && subscriber != null && negotiateProfile(message)) {
+            // Re-subscribed with a profile we can decode, its own subscriptionStart follows
+            return;
+        }
+
+        if (streamFormatCache != null && subscriber != null && connection != null) {
+            streamFormatCache.put(StreamFormatCache.getKey(connection.getServerKey(), subscriber.getChannelId(), streamProfile), message);
+        }
+
+        byte[] bytes = serializeMessage(message);
+        if (bytes == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            // The streams may have changed, so nothing before this can be played back
+            resetLocalTimeshift();
+
+            videoStreams.clear();
+            videoType = null;
+            for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+                String type = stream.getString("type");
+                if ("H264".equals(type) || "HEVC".equals(type) || "MPEG2VIDEO".equals(type)) {
+                    videoStreams.put(stream.getInteger("index"), type);
+                    if (videoType == null) {
+                        videoType = type;
+                    }
+                }
+            }
+
+            if (!fitsInBuffer(bytes)) {
+                // The stream configuration must never be lost, drop the backlog instead
+                Log.w(TAG, "Buffer full on subscriptionStart, discarding backlog (" + dataSourceNumber + ")");
+                discardBuffer();
+                dropMode = DropMode.UNTIL_KEYFRAME;
+
+                if (!fitsInBuffer(bytes)) {
+                    Log.w(TAG, "subscriptionStart doesn't fit behind the frame being read, dropping it (" + dataSourceNumber + ")");
+                    return;
+                }
+            }
+
+            appendToBuffer(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which checks the streams of the first subscriptionStart against the
+     * device's decoders, and re-subscribes with a transcoding profile if needed.
+     * @param message subscriptionStart message
+     * @return true if a new subscription was requested
+     */
+    private boolean negotiateProfile(@NonNull HTSPMessage message) {
+        long channelId = subscriber.getChannelId();
+        if (StreamProfileSelector.getProfileVideoCodec(streamProfile) == null) {
+            // Only a passthrough subscription shows the channel's own codec
+            profileSelector.onSubscriptionStart(channelId, message);
+        }
+
+        if (profileNegotiated) {
+            return false;
+        }
+        profileNegotiated = true;
+
+        String profile = profileSelector.selectProfile(channelId, preferredProfile);
+        if (profile.equals(streamProfile)) {
+            return false;
+        }
+
+        try {
+            switchProfile(profile);
+            metrics.increment("profile_negotiations");
+            return true;
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to re-subscribe with profile " + profile + " (" + dataSourceNumber + ")", e);
+            return false;
+        }
     }
 
     @Override
     public void onSubscriptionStatus(@NonNull HTSPMessage message) {
-        // Ignore
+        String status = message.getString("status", null);
+        String error = message.getString("subscriptionError", null);
+
+        if (status != null || error != null) {
+            Log.w(TAG, "Subscription status " + status + ", error " + error + " (" + dataSourceNumber + ")");
+            metrics.increment("subscription_status_problems");
+        }
+    }
+
+    @Override
+    public void onSubscriptionHealth(@NonNull SubscriptionHealth health) {
+        if (DEBUG) {
+            Log.v(TAG, "Subscription health " + health + " (" + dataSourceNumber + ")");
+        }
+
+        metrics.set("server_queue_packets", health.getQueuePackets());
+        metrics.set("server_queue_bytes", health.getQueueBytes());
+        metrics.set("server_queue_delay_ms", health.getQueueDelayUs() / 1000);
+        metrics.add("server_dropped_b_frames", health.getBFrameDropDelta());
+        metrics.add("server_dropped_p_frames", health.getPFrameDropDelta());
+        metrics.add("server_dropped_i_frames", health.getIFrameDropDelta());
+        metrics.set("signal_snr", health.getSignalToNoise());
+        metrics.set("signal_strength", health.getSignalStrength());
+        metrics.set("signal_ber", health.getBitErrorRate());
+        metrics.set("signal_unc", health.getUncorrectedBlocks());
+
+        if (health.getState() != SubscriptionHealth.State.FAILING) {
+            failingSinceMs = -1;
+            return;
+        }
+
+        long nowMs = SystemClock.elapsedRealtime();
+        if (failingSinceMs == -1) {
+            failingSinceMs = nowMs;
+            metrics.increment("server_failing");
+        }
+
+        if (nowMs - failingSinceMs < FAILING_RESUBSCRIBE_MS
+                || (lastResubscribeMs != -1 && nowMs - lastResubscribeMs < MIN_RESUBSCRIBE_INTERVAL_MS)) {
+            return;
+        }
+
+        Log.w(TAG, "Server has been dropping key frames for " + (nowMs - failingSinceMs) + "ms, re-subscribing (" + dataSourceNumber + ")");
+        failingSinceMs = -1;
+        lastResubscribeMs = nowMs;
+
+        try {
+            resubscribe(streamProfile);
+            metrics.increment("server_resubscribes");
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to re-subscribe (" + dataSourceNumber + ")", e);
+        }
+    }
+
+    /**
+     * Returns the state of the current subscription, as reported by the server
+     * @return state, HEALTHY if nothing has been reported
+     */
+    public SubscriptionHealth.State getHealthState() {
+        Subscriber currentSubscriber = subscriber;
+        if (currentSubscriber == null) {
+            return SubscriptionHealth.State.HEALTHY;
+        }
+
+        return currentSubscriber.getHealth().getState();
     }
 
     @Override
     public void onSubscriptionStop(@NonNull HTSPMessage message) {
         Log.d(TAG, "Received subscriptionStop ("+ dataSourceNumber +")");
         isOpen = false;
+        signalDataAvailable();
     }
 
     /**
-     * Pass method, used to interact with underlying Subscriber object
-     * @param timeMs to seek
+     * Internal method which flushes the buffer, starts a new seek epoch and asks the server to skip.
+     * Everything buffered, and every packet until the server acknowledges the skip, is discarded.
+     * Only called when the player reopens the source, as the extractor then starts on a new frame.
+     * @param timeUs absolute position to skip to
+     * @return the new seek epoch
      */
-    public void seek(long timeMs)
-    {
-        Log.d(TAG, "Wanting to see by " + timeMs);
-        subscriber.seek(timeMs);
+    private int startSkip(long timeUs) {
+        int epoch;
+
+        lock.lock();
+        try {
+            epoch = ++seekEpoch;
+            skipRequestedMs = SystemClock.elapsedRealtime();
+            flushBuffer();
+            dropMode = DropMode.NONE;
+            resetLocalTimeshift();
+            resetJitter();
+        } finally {
+            lock.unlock();
+        }
+
+        if (subscriber != null) {
+            subscriber.seek(timeUs);
+        }
+        metrics.increment("seeks");
+
+        return epoch;
+    }
+
+    /**
+     * Internal method which blocks until the server has acknowledged a skip. If the server doesn't
+     * answer in time, packets are accepted again regardless.
+     * @param epoch seek epoch to wait for
+     */
+    private void awaitSkip(int epoch) {
+        lock.lock();
+        try {
+            long remainingNs = SKIP_ACK_TIMEOUT_MS * 1000000L;
+
+            while (acknowledgedEpoch < epoch && remainingNs > 0) {
+                try {
+                    remainingNs = skipAcknowledged.awaitNanos(remainingNs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (acknowledgedEpoch < epoch) {
+                Log.w(TAG, "No skip acknowledgement after " + SKIP_ACK_TIMEOUT_MS + "ms, resuming (" + dataSourceNumber + ")");
+                metrics.increment("seek_ack_timeouts");
+                acknowledgedEpoch = seekEpoch;
+                discardBuffer();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which seeks within the local timeshift, if the position is in it. The server
+     * isn't told, it keeps sending live packets which are appended behind the ones played back.
+     * @param timeUs absolute position to seek to
+     * @return true if the seek is played back locally
+     */
+    private boolean seekLocally(long timeUs) {
+        lock.lock();
+        try {
+            if (!isRecordingLocally() || acknowledgedEpoch < seekEpoch || !localReplay.seek(timeUs)) {
+                return false;
+            }
+
+            // Everything buffered is in the local timeshift too
+            flushBuffer();
+            dropMode = DropMode.NONE;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which maps the local timeshift. If the file can't be mapped there is simply
+     * no local timeshift, every seek goes to the server.
+     */
+    private void obtainLocalTimeshift() {
+        LocalTimeshiftBuffer timeshift;
+        try {
+            timeshift = LocalTimeshiftBuffer.obtain(context, localTimeshiftSize);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map local timeshift, seeking on the server only (" + dataSourceNumber + ")", e);
+            return;
+        }
+
+        lock.lock();
+        try {
+            localReplay = new LocalTimeshiftReplay(timeshift, localThrottle, metrics, dataSourceNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which returns whether packets are appended to the local timeshift. Rewind and
+     * keyframe-only trick play don't give a continuous stream. Must be called holding the lock.
+     * @return true if the local timeshift is in use
+     */
+    private boolean isRecordingLocally() {
+        return localReplay != null && !keyframesOnly && requestedSpeed >= 0;
+    }
+
+    /**
+     * Internal method which returns whether reads are served from the local timeshift. Must be
+     * called holding the lock.
+     * @return true while playing back locally
+     */
+    private boolean isReplaying() {
+        return localReplay != null && localReplay.isReplaying();
+    }
+
+    /**
+     * Internal method which empties the local timeshift, and goes back to reading from the buffer.
+     * Must be called holding the lock.
+     */
+    private void resetLocalTimeshift() {
+        if (localReplay != null) {
+            localReplay.reset();
+        }
+    }
+
+    /**
+     * Returns whether playback is behind the subscription after a seek within the local timeshift
+     * @return true if shifted locally
+     */
+    public boolean isShiftedLocally() {
+        lock.lock();
+        try {
+            return localReplay != null && localReplay.isShifted();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the PTS of the newest packet in the local timeshift, which is where the subscription is
+     * @return PTS, or C.TIME_UNSET if there is no local timeshift
+     */
+    public long getLocalTimeshiftEndPts() {
+        lock.lock();
+        try {
+            return localReplay != null ? localReplay.getLastPts() : C.TIME_UNSET;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HTSPMessage message) {
+        lock.lock();
+        try {
+            if (acknowledgedEpoch >= seekEpoch) {
+                // Late acknowledgement of a skip which already timed out
+                return;
+            }
+
+            acknowledgedEpoch++;
+            metrics.set("seek_ack_ms", SystemClock.elapsedRealtime() - skipRequestedMs);
+
+            if (acknowledgedEpoch == seekEpoch) {
+                if (DEBUG) {
+                    Log.d(TAG, "Skip acknowledged, time " + message.getLong("time", -1) + " (" + dataSourceNumber + ")");
+                }
+
+                // Nothing decodes until the first key frame after the new position
+                discardBuffer();
+                dropMode = videoStreams.isEmpty() ? DropMode.NONE : DropMode.UNTIL_KEYFRAME;
+                skipAcknowledged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -248,11 +865,238 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
         return subscriber.getTimeshiftOffsetPts();
     }
 
+    /**
+     * Returns the TVH stream profile currently subscribed with
+     * @return stream profile
+     */
+    public String getStreamProfile() {
+        return streamProfile;
+    }
+
+    /**
+     * Returns the smoothed bitrate received for the current subscription
+     * @return bits per second, or -1 if not yet measured
+     */
+    public long getBitrate() {
+        if (subscriber == null || connection == null) {
+            return -1;
+        }
+
+        return connection.getBandwidthMeter().getBitrate(subscriber.getSubscriptionId());
+    }
+
+    /**
+     * Returns the smoothed variation in how far apart packets arrive compared to their timestamps
+     * @return jitter in microseconds
+     */
+    public long getJitterUs() {
+        return jitterUs;
+    }
+
+    /**
+     * Returns the timestamp of the newest packet received, the live edge as far as the player knows.
+     * It is in the subscription's own timestamps, LiveEdge maps it onto the player's.
+     * @return pts in microseconds, or C.TIME_UNSET before the first packet
+     */
+    public long getLargestPts() {
+        return largestPts;
+    }
+
+    /**
+     * Internal method which updates the jitter estimate with a packet, called with the lock held.
+     * Audio and video arrive interleaved, so only packets which advance the largest pts are compared.
+     * @param pts timestamp of the packet
+     */
+    private void updateJitter(long pts) {
+        if (pts == C.TIME_UNSET || keyframesOnly || (jitterPts != C.TIME_UNSET && pts <= jitterPts)) {
+            return;
+        }
+
+        long arrivalUs = SystemClock.elapsedRealtimeNanos() / 1000;
+        if (jitterArrivalUs != -1) {
+            long difference = Math.abs((arrivalUs - jitterArrivalUs) - (pts - jitterPts));
+            jitterUs += (difference - jitterUs) / JITTER_SMOOTHING;
+        }
+
+        jitterArrivalUs = arrivalUs;
+        jitterPts = pts;
+        largestPts = pts;
+    }
+
+    /**
+     * Internal method which starts the jitter estimate over on a new timeline, after a seek or on a
+     * new channel. The estimate itself is kept.
+     */
+    private void resetJitter() {
+        jitterArrivalUs = -1;
+        jitterPts = C.TIME_UNSET;
+        largestPts = C.TIME_UNSET;
+    }
+
+    /**
+     * Returns how full the buffer between the subscription and the extractor is
+     * @return fill level, from 0 to 1
+     */
+    public float getBufferFill() {
+        lock.lock();
+        try {
+            return (float) buffer.remaining() / buffer.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Re-subscribes to the current channel with another TVH stream profile. The new subscription
+     * starts with a subscriptionStart, so the extractor picks up the new streams in place.
+     * @param profile TVH stream profile to switch to
+     * @throws HTSPException if the new subscription could not be requested
+     */
+    public void switchProfile(@NonNull String profile) throws HTSPException {
+        if (profile.equals(streamProfile)) {
+            return;
+        }
+
+        Log.i(TAG, "Switching stream profile from " + streamProfile + " to " + profile + " (" + dataSourceNumber + ")");
+
+        if (resubscribe(profile)) {
+            metrics.increment("profile_switches");
+        }
+    }
+
+    /**
+     * Internal method which replaces the current subscription with a new one to the same channel.
+     * @param profile TVH stream profile to subscribe with
+     * @return true if a new subscription was requested
+     * @throws HTSPException if the new subscription could not be requested
+     */
+    private boolean resubscribe(@NonNull String profile) throws HTSPException {
+        if (!isSubscribed || subscriber == null || connection == null) {
+            return false;
+        }
+
+        long channelId = subscriber.getChannelId();
+
+        if (warmSubscription != null) {
+            warmSubscription.release();
+            warmSubscription = null;
+        } else {
+            subscriber.removeSubscriptionListener(this);
+            subscriber.unsubscribe();
+        }
+
+        streamProfile = profile;
+        subscriber = connection.getSubscriptionManager().createSubscriber();
+        subscriber.addSubscriptionListener(this);
+        subscriber.subscribe(channelId, profile, policy);
+
+        lock.lock();
+        try {
+            isThrottled = false;
+            // The new subscription won't acknowledge skips sent to the old one
+            acknowledgedEpoch = seekEpoch;
+            skipAcknowledged.signalAll();
+            resetJitter();
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether switchChannel can move to a channel with the player's decoders kept. The
+     * channel must have been seen before, and be sent with the same profile and video codec.
+     * @param channelId TVH channelId
+     * @return true if the channel's video would be compatible
+     */
+    public boolean canSwitchChannel(long channelId) {
+        if (!isSubscribed || subscriber == null || videoType == null || channelId == subscriber.getChannelId()) {
+            return false;
+        }
+
+        String profile = profileSelector != null ? profileSelector.selectProfile(channelId, preferredProfile) : preferredProfile;
+        if (!profile.equals(streamProfile)) {
+            return false;
+        }
+
+        String outputCodec = StreamProfileSelector.getProfileVideoCodec(profile);
+        if (outputCodec == null && profileSelector != null) {
+            outputCodec = profileSelector.getChannelCodec(channelId);
+        }
+
+        return videoType.equals(outputCodec);
+    }
+
+    /**
+     * Replaces the subscription with one to another channel, keeping this data source, its buffer
+     * and the extractor reading it. Nothing of the new channel is read until the player reopens the
+     * source at position 0, which drops what the player buffered of the old channel; the extractor
+     * then maps the new subscriptionStart onto the existing tracks.
+     * @param channelId TVH channelId to switch to
+     * @throws HTSPException if the new subscription could not be requested
+     */
+    public void switchChannel(long channelId) throws HTSPException {
+        if (!isSubscribed || subscriber == null || connection == null) {
+            throw new HTSPException("Not subscribed, unable to switch channel");
+        }
+
+        Log.i(TAG, "Switching from channel " + subscriber.getChannelId() + " to " + channelId + " (" + dataSourceNumber + ")");
+
+        if (warmSubscription != null) {
+            warmSubscription.release();
+            warmSubscription = null;
+        } else {
+            subscriber.removeSubscriptionListener(this);
+            subscriber.unsubscribe();
+        }
+
+        lock.lock();
+        try {
+            switchPending = true;
+            flushBuffer();
+            resetLocalTimeshift();
+            dropMode = DropMode.NONE;
+            isThrottled = false;
+            keyframesOnly = false;
+            requestedSpeed = 100;
+            // The new subscription won't acknowledge skips sent to the old one
+            acknowledgedEpoch = seekEpoch;
+            skipAcknowledged.signalAll();
+            resetJitter();
+        } finally {
+            lock.unlock();
+        }
+
+        hasReceivedPacket = false;
+        profileNegotiated = false;
+        failingSinceMs = -1;
+
+        subscriber = connection.getSubscriptionManager().createSubscriber();
+        subscriber.addSubscriptionListener(this);
+        subscribe(channelId);
+        metrics.increment("channel_switches");
+    }
+
+    /**
+     * Pass method, used to filter the streams the server sends for the current subscription
+     * @param enable stream indices to send
+     * @param disable stream indices not to send
+     */
+    public void filterStreams(List<Integer> enable, List<Integer> disable) {
+        if (subscriber != null && isSubscribed) {
+            subscriber.filterStreams(enable, disable);
+            metrics.increment("stream_filters");
+        }
+    }
+
     /**
      * Pauses the underlying Subscriber object
      */
     public void pause() {
         if (subscriber != null) {
+            requestedSpeed = 0;
+            isThrottled = false;
             subscriber.pause();
         }
     }
@@ -262,22 +1106,239 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
      */
     public void resume() {
         if (subscriber != null) {
+            requestedSpeed = 100;
+            isThrottled = false;
             subscriber.resume();
         }
     }
 
+    /**
+     * Buffers only video key frames, for trick play. Everything else is dropped as it arrives.
+     * @param keyframesOnly whether to drop everything but video key frames
+     */
+    public void setKeyframesOnly(boolean keyframesOnly) {
+        lock.lock();
+        try {
+            this.keyframesOnly = keyframesOnly;
+            if (keyframesOnly) {
+                resetLocalTimeshift();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Pass method, used to interact with underlying Subscriber object
      * @param speed to set the stream to
      */
     public void setSpeed(int speed)
     {
+        lock.lock();
+        try {
+            requestedSpeed = speed;
+            isThrottled = false;
+            if (speed < 0) {
+                resetLocalTimeshift();
+            }
+        } finally {
+            lock.unlock();
+        }
+
         subscriber.setSpeed(speed);
     }
 
     @Override
     public void onMuxpkt(@NonNull HTSPMessage message) {
-        serializeMessageToBuffer(message);
+        if (!hasReceivedPacket) {
+            hasReceivedPacket = true;
+            metrics.markTuneStage(PlaybackMetrics.TuneStage.FIRST_PACKET);
+        }
+
+        byte[] bytes = serializeMessage(message);
+        if (bytes == null) {
+            return;
+        }
+
+        final int frameType = message.getInteger("frametype", -1);
+        final long pts = message.getLong("pts", C.TIME_UNSET);
+
+        lock.lock();
+        try {
+            final String streamType = videoStreams.get(message.getInteger("stream"));
+            final boolean isVideo = streamType != null;
+            final boolean isKeyFrame = isVideo && KeyFrameDetector.isKeyFrame(streamType, message);
+
+            if (acknowledgedEpoch < seekEpoch) {
+                // Sent before the server skipped, so from the old position
+                metrics.increment("seek_stale_packets");
+                return;
+            }
+            updateJitter(pts);
+
+            if (keyframesOnly && !isKeyFrame) {
+                return;
+            }
+
+            if (isReplaying()) {
+                localReplay.updateFlowControl();
+
+                if (isVideo && shouldDrop(isKeyFrame, frameType)) {
+                    countDrop(bytes);
+                    return;
+                }
+
+                if (!localReplay.appendWhileReplaying(bytes, pts, isKeyFrame)) {
+                    // Frames not yet read are never overwritten, video resumes at the next key frame
+                    countDrop(bytes);
+                    if (isVideo) {
+                        dropMode = DropMode.UNTIL_KEYFRAME;
+                    }
+                    return;
+                }
+
+                dataAvailable.signalAll();
+                return;
+            }
+
+            if (isRecordingLocally()) {
+                localReplay.append(bytes, pts, isKeyFrame);
+            }
+
+            updateFlowControl(this.buffer.remaining());
+
+            if (isVideo && shouldDrop(isKeyFrame, frameType)) {
+                countDrop(bytes);
+                return;
+            }
+
+            if (!fitsInBuffer(bytes)) {
+                if (isKeyFrame) {
+                    // Never lose a key frame, the backlog is older and less useful
+                    Log.w(TAG, "Buffer full on key frame, discarding backlog (" + dataSourceNumber + ")");
+                    metrics.increment("flow_dropped_gops");
+                    metrics.add("flow_dropped_bytes", this.buffer.remaining());
+                    discardBuffer();
+                    dropMode = DropMode.NONE;
+
+                    if (!fitsInBuffer(bytes)) {
+                        // The rest of the frame being read leaves no room for it
+                        countDrop(bytes);
+                        dropMode = DropMode.UNTIL_KEYFRAME;
+                        return;
+                    }
+                } else {
+                    countDrop(bytes);
+                    if (isVideo && dropMode != DropMode.UNTIL_KEYFRAME) {
+                        // Later frames reference this one, so skip to the next key frame
+                        dropMode = DropMode.UNTIL_KEYFRAME;
+                        metrics.increment("flow_dropped_gops");
+                    }
+                    return;
+                }
+            }
+
+            appendToBuffer(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method which applies backpressure based on how full the buffer is. Above the high
+     * watermark the server is paused if it can timeshift, otherwise non-reference frames are
+     * dropped. Above the critical watermark the rest of the GOP is dropped. Everything is restored
+     * once the buffer drains below the low watermark. Must be called holding the lock.
+     * @param fill number of unread bytes in the buffer
+     */
+    private void updateFlowControl(int fill) {
+        if (fill >= HIGH_WATERMARK) {
+            if (throttleSubscription()) {
+                Log.d(TAG, "Buffer above high watermark, throttling subscription (" + dataSourceNumber + ")");
+            } else if (!isThrottled && dropMode == DropMode.NONE) {
+                Log.d(TAG, "Buffer above high watermark, dropping non-reference frames (" + dataSourceNumber + ")");
+                dropMode = DropMode.NON_REFERENCE;
+                metrics.increment("flow_high_watermark");
+            }
+        }
+
+        if (fill >= CRITICAL_WATERMARK && dropMode != DropMode.UNTIL_KEYFRAME) {
+            Log.d(TAG, "Buffer above critical watermark, dropping GOP (" + dataSourceNumber + ")");
+            dropMode = DropMode.UNTIL_KEYFRAME;
+            metrics.increment("flow_dropped_gops");
+        }
+
+        if (fill <= LOW_WATERMARK) {
+            if (resumeSubscription()) {
+                Log.d(TAG, "Buffer below low watermark, resuming subscription (" + dataSourceNumber + ")");
+            }
+            if (dropMode == DropMode.NON_REFERENCE) {
+                dropMode = DropMode.NONE;
+                metrics.increment("flow_recoveries");
+            }
+        }
+    }
+
+    /**
+     * Internal method which asks the server to stop sending until we catch up, if it can buffer for
+     * us and isn't throttled already. Must be called holding the lock.
+     * @return true if the subscription was throttled now
+     */
+    private boolean throttleSubscription() {
+        if (isThrottled || requestedSpeed <= 0 || subscriber == null || subscriber.getTimeshiftStartPts() == -1) {
+            return false;
+        }
+
+        isThrottled = true;
+        subscriber.setSpeed(0);
+        metrics.increment("flow_throttles");
+        return true;
+    }
+
+    /**
+     * Internal method which asks a throttled server to send at the requested speed again. Must be
+     * called holding the lock.
+     * @return true if the subscription was resumed now
+     */
+    private boolean resumeSubscription() {
+        if (!isThrottled) {
+            return false;
+        }
+
+        isThrottled = false;
+        subscriber.setSpeed(requestedSpeed);
+        metrics.increment("flow_recoveries");
+        return true;
+    }
+
+    /**
+     * Internal method which decides whether a video packet is dropped by the current drop mode. A
+     * key frame ends a GOP drop, once the buffer is back below the high watermark. Must be called
+     * holding the lock.
+     * @param isKeyFrame whether the packet is a key frame
+     * @param frameType TVH frame type of the packet
+     * @return true if the packet should be dropped
+     */
+    private boolean shouldDrop(boolean isKeyFrame, int frameType) {
+        switch (dropMode) {
+            case UNTIL_KEYFRAME:
+                if (isKeyFrame && this.buffer.remaining() < HIGH_WATERMARK) {
+                    Log.d(TAG, "Resynchronised on key frame (" + dataSourceNumber + ")");
+                    dropMode = this.buffer.remaining() <= LOW_WATERMARK ? DropMode.NONE : DropMode.NON_REFERENCE;
+                    metrics.increment("flow_resyncs");
+                    return false;
+                }
+                return true;
+            case NON_REFERENCE:
+                return frameType == 'B';
+            default:
+                return false;
+        }
+    }
+
+    private void countDrop(byte[] bytes) {
+        metrics.increment("flow_dropped_packets");
+        metrics.add("flow_dropped_bytes", bytes.length);
     }
 
     /**
@@ -289,35 +1350,126 @@ public class HTSPSubscriptionDataSource extends HTSPDataSource implements Subscr
         }
 
         if (subscriber != null) {
-            subscriber.removeSubscriptionListener(this);
+            if (warmSubscription == null) {
+                subscriber.removeSubscriptionListener(this);
+            }
             subscriber.unsubscribe();
             subscriber = null;
         }
+
+        lock.lock();
+        try {
+            if (localReplay != null) {
+                // The file is kept for the next channel
+                localReplay.release();
+                localReplay = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        isOpen = false;
+        signalDataAvailable();
     }
 
     /**
-     * Helper method which serialises a given HTSPMessage to a ByteBuffer. Message contains Stream data.
-     * @param message stream data message
+     * Wakes up any reader blocked waiting for data.
      */
-    private void serializeMessageToBuffer(@NonNull HTSPMessage message) {
+    private void signalDataAvailable() {
+        lock.lock();
+        try {
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /**
+     * Helper method which serialises a given HTSPMessage. Message contains Stream data.
+     * @param message stream data message
+     * @return serialised message, or null if it could not be serialised
+     */
+    private byte[] serializeMessage(@NonNull HTSPMessage message) {
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
              ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)
         ) {
-            lock.lock();
             objectOutput.writeUnshared(message);
             objectOutput.flush();
 
-            buffer.position(buffer.limit());
-            buffer.limit(buffer.capacity());
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialise message (" + dataSourceNumber + ")", e);
+            return null;
+        }
+    }
 
-            buffer.put(outputStream.toByteArray());
+    /**
+     * Returns whether the given bytes fit after the unread data. Must be called holding the lock.
+     * @param bytes serialised message
+     * @return true if there is enough space
+     */
+    private boolean fitsInBuffer(byte[] bytes) {
+        return FRAME_LENGTH_SIZE + bytes.length <= buffer.capacity() - buffer.limit();
+    }
 
-            buffer.flip();
-        } catch (IOException | BufferOverflowException | IllegalArgumentException e) {
-            // Ignore
-        } finally {
-            lock.unlock();
+    /**
+     * Appends the given bytes as a length prefixed frame after the unread data and wakes up
+     * readers. Must be called holding the lock, after checking fitsInBuffer.
+     * @param bytes serialised message
+     */
+    private void appendToBuffer(byte[] bytes) {
+        buffer.position(buffer.limit());
+        buffer.limit(buffer.capacity());
+
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+
+        buffer.flip();
+        dataAvailable.signalAll();
+    }
+
+    /**
+     * Internal method which follows the frames the reader is about to be given, so the frame it ends
+     * part way through is known. Must be called holding the lock, before the bytes are read.
+     * @param length number of bytes about to be read
+     */
+    private void consumeFrames(int length) {
+        int position = buffer.position();
+
+        while (length > 0) {
+            if (partialFrameBytes == 0) {
+                // Frames are appended whole, so the length of the next one is always in the buffer
+                partialFrameBytes = FRAME_LENGTH_SIZE + buffer.getInt(position);
+            }
+
+            int consumed = Math.min(length, partialFrameBytes);
+            partialFrameBytes -= consumed;
+            position += consumed;
+            length -= consumed;
+
+            if (partialFrameBytes == 0) {
+                headerRead = true;
+            }
+        }
+    }
+
+    /**
+     * Drops all unread data, except the rest of the frame the reader is part way through. Must be
+     * called holding the lock.
+     */
+    private void discardBuffer() {
+        buffer.limit(buffer.position() + partialFrameBytes);
+    }
+
+    /**
+     * Drops all unread data, including the rest of the frame the reader is part way through, for
+     * when the extractor has been seeked and starts on a new frame. The HEADER is kept until read.
+     * Must be called holding the lock.
+     */
+    private void flushBuffer() {
+        if (headerRead) {
+            partialFrameBytes = 0;
         }
+        discardBuffer();
     }
 }
\ No newline at end of file
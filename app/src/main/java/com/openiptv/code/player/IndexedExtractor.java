@@ -0,0 +1,177 @@
+package com.openiptv.code.player;
+
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+
+import java.io.IOException;
+
+/**
+ * Wraps the TS extractor of a recording with a RecordingIndex as its SeekMap. The extractor is told
+ * the length of the recording is unknown, so it neither reads the end of the file for the duration
+ * nor builds a binary search seeker; a seek then opens the file at the indexed key frame and the
+ * extractor just carries on from there.
+ *
+ * An index built from a file of another size, a reused DVR id or a recording which has changed,
+ * isn't used: the extractor is left to seek on its own and the index is deleted.
+ */
+class IndexedExtractor implements Extractor {
+    private static final String TAG = IndexedExtractor.class.getSimpleName();
+
+    private final Extractor extractor;
+    private final RecordingIndex index;
+    private final UnknownLengthInput unknownLengthInput = new UnknownLengthInput();
+    // Whether the index matches the recording, known from the first read
+    private Boolean indexValid;
+
+    /**
+     * Constructor for an IndexedExtractor
+     * @param extractor extractor of the recording's container
+     * @param index index of the recording
+     */
+    IndexedExtractor(Extractor extractor, RecordingIndex index) {
+        this.extractor = extractor;
+        this.index = index;
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+        return extractor.sniff(input);
+    }
+
+    @Override
+    public void init(final ExtractorOutput output) {
+        extractor.init(new ExtractorOutput() {
+            @Override
+            public TrackOutput track(int id, int type) {
+                return output.track(id, type);
+            }
+
+            @Override
+            public void endTracks() {
+                output.endTracks();
+            }
+
+            @Override
+            public void seekMap(SeekMap seekMap) {
+                output.seekMap(Boolean.TRUE.equals(indexValid) ? index : seekMap);
+            }
+        });
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
+        if (indexValid == null) {
+            indexValid = input.getLength() == C.LENGTH_UNSET || input.getLength() == index.getFileSize();
+            if (!indexValid) {
+                Log.w(TAG, "Index is of a file of " + index.getFileSize() + " bytes, not " + input.getLength() + ", ignoring it");
+                index.delete();
+            }
+        }
+
+        if (!indexValid) {
+            return extractor.read(input, seekPosition);
+        }
+
+        unknownLengthInput.input = input;
+        return extractor.read(unknownLengthInput, seekPosition);
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        extractor.seek(position, timeUs);
+    }
+
+    @Override
+    public void release() {
+        extractor.release();
+    }
+
+    /**
+     * An ExtractorInput which hides the length of the input it forwards to
+     */
+    private static class UnknownLengthInput implements ExtractorInput {
+        private ExtractorInput input;
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            return input.read(target, offset, length);
+        }
+
+        @Override
+        public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.readFully(target, offset, length, allowEndOfInput);
+        }
+
+        @Override
+        public void readFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            input.readFully(target, offset, length);
+        }
+
+        @Override
+        public int skip(int length) throws IOException, InterruptedException {
+            return input.skip(length);
+        }
+
+        @Override
+        public boolean skipFully(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.skipFully(length, allowEndOfInput);
+        }
+
+        @Override
+        public void skipFully(int length) throws IOException, InterruptedException {
+            input.skipFully(length);
+        }
+
+        @Override
+        public boolean peekFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.peekFully(target, offset, length, allowEndOfInput);
+        }
+
+        @Override
+        public void peekFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            input.peekFully(target, offset, length);
+        }
+
+        @Override
+        public boolean advancePeekPosition(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.advancePeekPosition(length, allowEndOfInput);
+        }
+
+        @Override
+        public void advancePeekPosition(int length) throws IOException, InterruptedException {
+            input.advancePeekPosition(length);
+        }
+
+        @Override
+        public void resetPeekPosition() {
+            input.resetPeekPosition();
+        }
+
+        @Override
+        public long getPeekPosition() {
+            return input.getPeekPosition();
+        }
+
+        @Override
+        public long getPosition() {
+            return input.getPosition();
+        }
+
+        @Override
+        public long getLength() {
+            return C.LENGTH_UNSET;
+        }
+
+        @Override
+        public <E extends Throwable> void setRetryPosition(long position, E e) throws E {
+            input.setRetryPosition(position, e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.openiptv.code.player;
+
+import androidx.annotation.NonNull;
+
+import com.openiptv.code.htsp.HTSPMessage;
+
+/**
+ * Decides whether a video packet is a key frame. The frame type sent by the server decides when
+ * there is one. Packets without one are scanned for the start codes of a random access point, as a
+ * missing frame type doesn't make a packet a key frame. The readers and everything which drops or
+ * indexes packets before they reach a reader decide the same way through here.
+ */
+public final class KeyFrameDetector {
+    // Results of classifying the start codes of a sample
+    private static final int UNDECIDED = 0;
+    private static final int KEY_FRAME = 1;
+    private static final int NOT_KEY_FRAME = 2;
+
+    private static final int AVC_NAL_UNIT_TYPE_NON_IDR = 1;
+    private static final int AVC_NAL_UNIT_TYPE_PARTITION_C = 4;
+    private static final int AVC_NAL_UNIT_TYPE_IDR = 5;
+    private static final int AVC_NAL_UNIT_TYPE_SEI = 6;
+    private static final int AVC_NAL_UNIT_TYPE_SPS = 7;
+    private static final int AVC_SEI_TYPE_RECOVERY_POINT = 6;
+
+    // IRAP pictures are BLA, IDR and CRA, types 16 to 23, and every type below 32 is a slice
+    private static final int HEVC_NAL_UNIT_TYPE_BLA_W_LP = 16;
+    private static final int HEVC_NAL_UNIT_TYPE_RESERVED_IRAP_23 = 23;
+    private static final int HEVC_NAL_UNIT_TYPE_VPS = 32;
+
+    private static final int MPEG2_START_CODE_PICTURE = 0x00;
+    private static final int MPEG2_PICTURE_TYPE_I = 1;
+
+    private KeyFrameDetector() {
+    }
+
+    /**
+     * Decides whether a muxpkt message holds a key frame
+     * @param streamType TVH type of the packet's stream, e.g. H264
+     * @param message muxpkt message
+     * @return true if the packet is a key frame
+     */
+    public static boolean isKeyFrame(String streamType, @NonNull HTSPMessage message) {
+        int frameType = message.getInteger("frametype", HTSPMuxPacket.FRAME_TYPE_UNKNOWN);
+        if (frameType != HTSPMuxPacket.FRAME_TYPE_UNKNOWN) {
+            return frameType == 'I';
+        }
+
+        byte[] payload = message.getByteArray("payload");
+        return isKeyFrame(streamType, frameType, payload, 0, payload.length);
+    }
+
+    /**
+     * Decides whether a sample is a key frame. Samples without a frame type are a key frame unless
+     * their start codes show otherwise, so codecs which can't be scanned keep playing.
+     * @param streamType TVH type of the sample's stream, e.g. H264
+     * @param frameType frame type sent by the server, or HTSPMuxPacket.FRAME_TYPE_UNKNOWN
+     * @param data array holding the sample
+     * @param offset offset of the sample in the array
+     * @param limit end of the sample in the array
+     * @return true if the sample is a key frame
+     */
+    public static boolean isKeyFrame(String streamType, int frameType, byte[] data, int offset, int limit) {
+        if (frameType != HTSPMuxPacket.FRAME_TYPE_UNKNOWN) {
+            return frameType == 'I';
+        }
+
+        // The scans stop at the first slice or picture, so only the few bytes of headers ahead of
+        // it are read
+        int result;
+        switch (streamType) {
+            case "H264":
+                result = scanAvc(data, offset, limit);
+                break;
+            case "HEVC":
+                result = scanHevc(data, offset, limit);
+                break;
+            case "MPEG2VIDEO":
+                result = scanMpeg2(data, offset, limit);
+                break;
+            default:
+                result = UNDECIDED;
+                break;
+        }
+
+        return result != NOT_KEY_FRAME;
+    }
+
+    /**
+     * Internal method which scans an AVC access unit. An IDR slice is a key frame, as is an access
+     * unit carrying its SPS in band along with a recovery point SEI, which is how broadcasts without
+     * IDRs mark their I frames. Any other slice makes the access unit a non key frame.
+     */
+    private static int scanAvc(byte[] data, int offset, int limit) {
+        boolean hasParameterSets = false;
+        boolean hasRecoveryPoint = false;
+
+        for (int header = findStartCode(data, offset, limit); header != -1; header = findStartCode(data, header, limit)) {
+            int nalUnitType = data[header] & 0x1F;
+
+            if (nalUnitType == AVC_NAL_UNIT_TYPE_SPS) {
+                hasParameterSets = true;
+            } else if (nalUnitType == AVC_NAL_UNIT_TYPE_SEI) {
+                // The payload type of the first SEI message, types of 255 and above aren't of interest
+                if (header + 1 < limit && data[header + 1] == AVC_SEI_TYPE_RECOVERY_POINT) {
+                    hasRecoveryPoint = true;
+                }
+            } else if (nalUnitType == AVC_NAL_UNIT_TYPE_IDR) {
+                return KEY_FRAME;
+            } else if (nalUnitType >= AVC_NAL_UNIT_TYPE_NON_IDR && nalUnitType <= AVC_NAL_UNIT_TYPE_PARTITION_C) {
+                return hasParameterSets && hasRecoveryPoint ? KEY_FRAME : NOT_KEY_FRAME;
+            }
+        }
+
+        return UNDECIDED;
+    }
+
+    /**
+     * Internal method which scans an HEVC access unit. The first slice decides it, IRAP slices are
+     * key frames and any other slice isn't. Parameter sets and SEI ahead of it are skipped.
+     */
+    private static int scanHevc(byte[] data, int offset, int limit) {
+        for (int header = findStartCode(data, offset, limit); header != -1; header = findStartCode(data, header, limit)) {
+            int nalUnitType = (data[header] >> 1) & 0x3F;
+
+            if (nalUnitType < HEVC_NAL_UNIT_TYPE_VPS) {
+                return nalUnitType >= HEVC_NAL_UNIT_TYPE_BLA_W_LP && nalUnitType <= HEVC_NAL_UNIT_TYPE_RESERVED_IRAP_23
+                        ? KEY_FRAME : NOT_KEY_FRAME;
+            }
+        }
+
+        return UNDECIDED;
+    }
+
+    /**
+     * Internal method which scans an MPEG-2 picture. The coding type in the picture header decides
+     * it, the sequence and GOP headers ahead of it are skipped.
+     */
+    private static int scanMpeg2(byte[] data, int offset, int limit) {
+        for (int header = findStartCode(data, offset, limit); header != -1; header = findStartCode(data, header, limit)) {
+            if ((data[header] & 0xFF) != MPEG2_START_CODE_PICTURE) {
+                continue;
+            }
+
+            // 10 bits of temporal reference, then 3 of picture coding type
+            if (header + 2 >= limit) {
+                return UNDECIDED;
+            }
+            return ((data[header + 2] >> 3) & 0x07) == MPEG2_PICTURE_TYPE_I ? KEY_FRAME : NOT_KEY_FRAME;
+        }
+
+        return UNDECIDED;
+    }
+
+    /**
+     * Internal method which finds the next Annex B start code of a sample in place
+     * @param data array holding the sample
+     * @param offset where to start looking
+     * @param limit end of the sample in the array
+     * @return offset of the byte following the start code, or -1 if there is none
+     */
+    private static int findStartCode(byte[] data, int offset, int limit) {
+        // A start code is 00 00 01, the NAL unit header follows it
+        for (int i = offset; i + 3 < limit; i++) {
+            if (data[i + 2] != 1) {
+                // Neither this nor the next position can start a start code unless the byte is 0
+                if (data[i + 2] != 0) {
+                    i += 2;
+                }
+                continue;
+            }
+
+            if (data[i] != 0 || data[i + 1] != 0) {
+                continue;
+            }
+
+            return i + 3;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+package com.openiptv.code.player;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Watches live playback for the LiveLoadControl. Rebuffers raise its targets, and the jitter
+ * measured on the subscription is passed on once a second. Rebuffers, the time spent in them and
+ * the latency behind the live edge are reported to the metrics, so the buffer policy can be tuned
+ * from the field; the time to first frame is the FIRST_FRAME_RENDERED tune stage.
+ */
+public class LiveBufferMonitor implements Player.EventListener {
+    private static final String TAG = LiveBufferMonitor.class.getSimpleName();
+
+    private static final long EVALUATION_INTERVAL_MS = 1000;
+
+    private final Handler handler;
+    private final SimpleExoPlayer player;
+    private final HTSPSubscriptionDataSource.Factory dataSourceFactory;
+    private final LiveLoadControl loadControl;
+    private final LiveEdge liveEdge;
+    private final PlaybackMetrics metrics;
+
+    private final Runnable evaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            handler.postDelayed(this, EVALUATION_INTERVAL_MS);
+        }
+    };
+
+    private boolean running = false;
+    private boolean seeking = false;
+    private int lastPlaybackState = Player.STATE_IDLE;
+    private long rebufferStartMs = -1;
+
+    /**
+     * Constructor for a LiveBufferMonitor
+     * @param handler handler of the player's thread
+     * @param player player to monitor
+     * @param dataSourceFactory factory of the subscription data sources
+     * @param loadControl load control of the player
+     * @param liveEdge live edge the player's extractors report to
+     * @param metrics metrics of the player
+     */
+    public LiveBufferMonitor(Handler handler, SimpleExoPlayer player, HTSPSubscriptionDataSource.Factory dataSourceFactory,
+                             LiveLoadControl loadControl, LiveEdge liveEdge, PlaybackMetrics metrics) {
+        this.handler = handler;
+        this.player = player;
+        this.dataSourceFactory = dataSourceFactory;
+        this.loadControl = loadControl;
+        this.liveEdge = liveEdge;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts monitoring a newly tuned subscription. The buffering of the tune itself isn't a rebuffer.
+     */
+    public void start() {
+        lastPlaybackState = Player.STATE_IDLE;
+        rebufferStartMs = -1;
+        seeking = false;
+        loadControl.setLive(true);
+
+        if (!running) {
+            running = true;
+            player.addListener(this);
+            handler.postDelayed(evaluate, EVALUATION_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Stops monitoring, as a recording or trick play is being played.
+     */
+    public void stop() {
+        if (running) {
+            running = false;
+            player.removeListener(this);
+            handler.removeCallbacks(evaluate);
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(int reason) {
+        if (reason == Player.DISCONTINUITY_REASON_SEEK) {
+            // Buffering after a seek is expected
+            seeking = true;
+        }
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        if (playWhenReady && !seeking && lastPlaybackState == Player.STATE_READY && playbackState == Player.STATE_BUFFERING) {
+            // Ran out of media while playing
+            rebufferStartMs = SystemClock.elapsedRealtime();
+            metrics.increment("rebuffers");
+            loadControl.onRebuffer();
+        }
+
+        if (playbackState == Player.STATE_READY) {
+            seeking = false;
+            if (rebufferStartMs != -1) {
+                long rebufferMs = SystemClock.elapsedRealtime() - rebufferStartMs;
+                metrics.add("rebuffer_ms", rebufferMs);
+                Log.d(TAG, "Resumed after rebuffering for " + rebufferMs + "ms");
+                rebufferStartMs = -1;
+            }
+        }
+
+        lastPlaybackState = playbackState;
+    }
+
+    /**
+     * Internal method which passes the jitter on to the load control and reports the latency.
+     */
+    private void evaluate() {
+        HTSPDataSource currentDataSource = dataSourceFactory.getCurrentDataSource();
+        if (!(currentDataSource instanceof HTSPSubscriptionDataSource)) {
+            return;
+        }
+        HTSPSubscriptionDataSource dataSource = (HTSPSubscriptionDataSource) currentDataSource;
+
+        long jitterUs = dataSource.getJitterUs();
+        loadControl.setJitterUs(jitterUs);
+        metrics.set("live_jitter_ms", jitterUs / 1000);
+
+        long latencyMs = getLatencyMs(player, dataSource, liveEdge);
+        if (latencyMs == -1) {
+            return;
+        }
+        metrics.set("live_latency_ms", latencyMs);
+
+        if (DEBUG) {
+            Log.d(TAG, "Live latency " + latencyMs + "ms, jitter " + jitterUs / 1000 + "ms, buffered "
+                    + player.getTotalBufferedDuration() + "ms");
+        }
+    }
+
+    /**
+     * Returns how far playback is behind the newest packet received
+     * @param player player
+     * @param dataSource data source of the subscription being played
+     * @param liveEdge live edge the player's extractors report to
+     * @return latency in ms, or -1 if not playing or nothing has been received
+     */
+    static long getLatencyMs(SimpleExoPlayer player, HTSPSubscriptionDataSource dataSource, LiveEdge liveEdge) {
+        long edgePts = liveEdge.getOutputPts(dataSource.getLargestPts());
+        if (edgePts == C.TIME_UNSET || player.getPlaybackState() != Player.STATE_READY) {
+            return -1;
+        }
+
+        // The player's position is on the extractor's output timeline
+        return Math.max(edgePts / 1000 - player.getCurrentPosition(), 0);
+    }
+}
@@ -0,0 +1,52 @@
+package com.openiptv.code.player;
+
+import com.google.android.exoplayer2.C;
+
+/**
+ * Shared state of where the live edge is on the player's timeline. The extractor rebases the
+ * timestamps of a new subscription onto the timeline already played, so the player's position is
+ * on the extractor's output timeline, while the data source only knows the newest packet it has
+ * received in the subscription's own timestamps. The extractor records its newest sample in both,
+ * which maps what the data source has received but not yet handed over onto the output timeline.
+ */
+public class LiveEdge {
+    private long outputPts = C.TIME_UNSET;
+    private long sourcePts = C.TIME_UNSET;
+
+    /**
+     * Records the newest sample the extractor has output
+     * @param outputPts timestamp of the sample on the output timeline
+     * @param sourcePts timestamp of the sample in the subscription
+     */
+    public synchronized void update(long outputPts, long sourcePts) {
+        this.outputPts = outputPts;
+        this.sourcePts = sourcePts;
+    }
+
+    /**
+     * Forgets the newest sample, as the extractor starts on a new timeline
+     */
+    public synchronized void reset() {
+        outputPts = C.TIME_UNSET;
+        sourcePts = C.TIME_UNSET;
+    }
+
+    /**
+     * Returns the live edge on the output timeline
+     * @param receivedPts timestamp of the newest packet the data source has received, in the
+     *                    subscription, or C.TIME_UNSET
+     * @return pts in microseconds, or C.TIME_UNSET before the first sample
+     */
+    public synchronized long getOutputPts(long receivedPts) {
+        if (outputPts == C.TIME_UNSET) {
+            return C.TIME_UNSET;
+        }
+
+        // Packets of another subscription than the sample are behind it, and count for nothing
+        if (receivedPts == C.TIME_UNSET || receivedPts < sourcePts) {
+            return outputPts;
+        }
+
+        return outputPts + receivedPts - sourcePts;
+    }
+}
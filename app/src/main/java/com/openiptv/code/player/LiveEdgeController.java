@@ -0,0 +1,180 @@
+package com.openiptv.code.player;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Keeps live playback from drifting further than a target distance behind the live edge. Every
+ * rebuffer leaves playback a little further behind, and nothing would otherwise bring it back, so
+ * over a long session the picture drifts well behind the broadcast. Small drifts are corrected by
+ * playing slightly faster than real time, which isn't noticeable; a large backlog is skipped,
+ * seeking inside the player's buffer so playback carries on from the key frame before the new
+ * position. Playback closer to the edge than the target is left alone, how much is buffered there
+ * is the LiveLoadControl's business.
+ *
+ * Only normal playback is corrected. While paused, at another speed, in trick play or replaying
+ * the local timeshift, being behind the live edge is what the viewer asked for.
+ */
+public class LiveEdgeController {
+    private static final String TAG = LiveEdgeController.class.getSimpleName();
+
+    private static final long EVALUATION_INTERVAL_MS = 1000;
+
+    // Drift from the target at which the speed is nudged, and within which it is back to normal
+    private static final long NUDGE_THRESHOLD_MS = 500;
+    private static final long SETTLED_THRESHOLD_MS = 100;
+    private static final float CATCH_UP_SPEED = 1.05f;
+
+    // Drift beyond which the backlog is skipped rather than played through faster
+    private static final long SKIP_THRESHOLD_MS = 10000;
+    private static final long MIN_SKIP_MS = 2000;
+
+    private final Handler handler;
+    private final SimpleExoPlayer player;
+    private final HTSPSubscriptionDataSource.Factory dataSourceFactory;
+    private final LiveLoadControl loadControl;
+    private final LiveEdge liveEdge;
+    private final PlaybackMetrics metrics;
+    private final long targetLatencyMs;
+
+    private final Runnable evaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            handler.postDelayed(this, EVALUATION_INTERVAL_MS);
+        }
+    };
+
+    private boolean running = false;
+    // Speed set by this controller, 1 while not nudging
+    private float nudgeSpeed = 1;
+
+    /**
+     * Constructor for a LiveEdgeController
+     * @param handler handler of the player's thread
+     * @param player player to control
+     * @param dataSourceFactory factory of the subscription data sources
+     * @param loadControl load control of the player, whose buffer targets a skip leaves in place
+     * @param liveEdge live edge the player's extractors report to
+     * @param metrics metrics of the player
+     * @param targetLatencyMs distance to keep behind the live edge at most
+     */
+    public LiveEdgeController(Handler handler, SimpleExoPlayer player, HTSPSubscriptionDataSource.Factory dataSourceFactory,
+                              LiveLoadControl loadControl, LiveEdge liveEdge, PlaybackMetrics metrics, long targetLatencyMs) {
+        this.handler = handler;
+        this.player = player;
+        this.dataSourceFactory = dataSourceFactory;
+        this.loadControl = loadControl;
+        this.liveEdge = liveEdge;
+        this.metrics = metrics;
+        this.targetLatencyMs = targetLatencyMs;
+    }
+
+    /**
+     * Starts controlling a newly tuned subscription.
+     */
+    public void start() {
+        nudgeSpeed = 1;
+
+        if (!running) {
+            running = true;
+            handler.postDelayed(evaluate, EVALUATION_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Stops controlling, as a recording or trick play is being played. A nudged speed is undone.
+     */
+    public void stop() {
+        if (running) {
+            running = false;
+            handler.removeCallbacks(evaluate);
+            setSpeed(1);
+        }
+    }
+
+    /**
+     * Internal method which measures the drift from the target and corrects it.
+     */
+    private void evaluate() {
+        HTSPDataSource currentDataSource = dataSourceFactory.getCurrentDataSource();
+        if (!(currentDataSource instanceof HTSPSubscriptionDataSource)) {
+            return;
+        }
+        HTSPSubscriptionDataSource dataSource = (HTSPSubscriptionDataSource) currentDataSource;
+
+        float speed = player.getPlaybackParameters().speed;
+        if (speed != nudgeSpeed) {
+            // The speed was set elsewhere, by the viewer or on resume
+            nudgeSpeed = 1;
+            if (speed != 1) {
+                return;
+            }
+        }
+
+        long latencyMs = LiveBufferMonitor.getLatencyMs(player, dataSource, liveEdge);
+        if (!player.getPlayWhenReady() || latencyMs == -1 || dataSource.isShiftedLocally()) {
+            setSpeed(1);
+            return;
+        }
+
+        // Never aim closer than the load control starts playback at, or the two would fight
+        long driftMs = latencyMs - Math.max(targetLatencyMs, loadControl.getStartTargetUs() / 1000);
+        metrics.set("live_drift_ms", driftMs);
+
+        if (driftMs > SKIP_THRESHOLD_MS && skip(driftMs)) {
+            return;
+        }
+
+        if (nudgeSpeed == 1) {
+            if (driftMs > NUDGE_THRESHOLD_MS && player.getTotalBufferedDuration() * 1000 > loadControl.getRebufferTargetUs()) {
+                setSpeed(CATCH_UP_SPEED);
+                metrics.increment("live_edge_nudges");
+            }
+        } else if (driftMs < SETTLED_THRESHOLD_MS
+                || player.getTotalBufferedDuration() * 1000 <= loadControl.getRebufferTargetUs()) {
+            // Back on target, or the buffer is running too low to keep catching up
+            setSpeed(1);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Live latency " + latencyMs + "ms, drift " + driftMs + "ms, speed " + nudgeSpeed);
+        }
+    }
+
+    /**
+     * Internal method which skips most of a backlog, keeping enough buffered to not rebuffer.
+     * @param driftMs distance playback is behind the target
+     * @return false if too little is buffered to skip
+     */
+    private boolean skip(long driftMs) {
+        long positionMs = player.getCurrentPosition();
+        long skipToMs = Math.min(positionMs + driftMs, player.getBufferedPosition() - loadControl.getRebufferTargetUs() / 1000);
+        if (skipToMs - positionMs < MIN_SKIP_MS) {
+            return false;
+        }
+
+        Log.d(TAG, "Skipping " + (skipToMs - positionMs) + "ms to get back to the target behind live");
+        metrics.increment("live_edge_skips");
+
+        setSpeed(1);
+        player.seekTo(skipToMs);
+        return true;
+    }
+
+    private void setSpeed(float speed) {
+        if (speed == nudgeSpeed) {
+            return;
+        }
+
+        nudgeSpeed = speed;
+        player.setPlaybackParameters(new PlaybackParameters(speed));
+    }
+}
@@ -0,0 +1,204 @@
+package com.openiptv.code.player;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.Util;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+/**
+ * LoadControl for live HTSP subscriptions. ExoPlayer's default waits for seconds of media before
+ * starting, which suits a file that can be read faster than real time but not a live stream which
+ * only ever arrives in real time. Live playback starts, and restarts after a rebuffer, on targets
+ * of its own, and stops loading at a maximum buffer.
+ *
+ * The start and rebuffer targets adapt to the link: every rebuffer raises them, the measured
+ * jitter of the packets sets a floor under them, and a long spell without rebuffers brings them
+ * back down towards where they started. Recordings are left to a DefaultLoadControl.
+ */
+public class LiveLoadControl implements LoadControl {
+    private static final String TAG = LiveLoadControl.class.getSimpleName();
+
+    // Each rebuffer raises the targets by this much, up to MAX_TARGET_MS
+    private static final float REBUFFER_GROWTH = 1.5f;
+    private static final long MAX_TARGET_MS = 10000;
+    // After this long without a rebuffer the targets are lowered again, by RELAX_FACTOR at a time
+    private static final long RELAX_INTERVAL_MS = 120000;
+    private static final float RELAX_FACTOR = 0.8f;
+    // The start target covers this many times the jitter, so a late packet doesn't stall playback
+    private static final int JITTER_MULTIPLIER = 4;
+
+    private final DefaultLoadControl recordingLoadControl;
+    private final PlaybackMetrics metrics;
+    private final long baseStartTargetUs;
+    private final long baseRebufferTargetUs;
+    private final long maxBufferUs;
+
+    // Read on the playback thread, adapted on the application thread
+    private volatile boolean live = true;
+    private volatile long startTargetUs;
+    private volatile long rebufferTargetUs;
+    private volatile long jitterFloorUs = 0;
+    private volatile long lastAdaptedMs;
+
+    /**
+     * Constructor for a LiveLoadControl
+     * @param recordingLoadControl load control used while playing recordings, whose allocator is shared
+     * @param metrics metrics the targets are reported to
+     * @param startBufferMs media needed to start live playback
+     * @param rebufferBufferMs media needed to resume live playback after a rebuffer
+     * @param maxBufferMs media buffered at most during live playback
+     */
+    public LiveLoadControl(DefaultLoadControl recordingLoadControl, PlaybackMetrics metrics,
+                           int startBufferMs, int rebufferBufferMs, int maxBufferMs) {
+        this.recordingLoadControl = recordingLoadControl;
+        this.metrics = metrics;
+        this.baseStartTargetUs = startBufferMs * 1000L;
+        this.baseRebufferTargetUs = rebufferBufferMs * 1000L;
+        this.maxBufferUs = maxBufferMs * 1000L;
+        this.startTargetUs = baseStartTargetUs;
+        this.rebufferTargetUs = baseRebufferTargetUs;
+        this.lastAdaptedMs = SystemClock.elapsedRealtime();
+        reportTargets();
+    }
+
+    /**
+     * Sets whether a live subscription or a recording is being played
+     * @param live true for a live subscription
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    /**
+     * Raises the targets after playback ran out of media.
+     */
+    public synchronized void onRebuffer() {
+        startTargetUs = Math.min((long) (startTargetUs * REBUFFER_GROWTH), MAX_TARGET_MS * 1000);
+        rebufferTargetUs = Math.min((long) (rebufferTargetUs * REBUFFER_GROWTH), MAX_TARGET_MS * 1000);
+        lastAdaptedMs = SystemClock.elapsedRealtime();
+
+        Log.d(TAG, "Rebuffered, raising targets to start " + startTargetUs / 1000 + "ms, rebuffer " + rebufferTargetUs / 1000 + "ms");
+        reportTargets();
+    }
+
+    /**
+     * Sets the jitter measured on the subscription, which the start and rebuffer targets must cover
+     * @param jitterUs jitter in microseconds
+     */
+    public void setJitterUs(long jitterUs) {
+        jitterFloorUs = Math.min(jitterUs * JITTER_MULTIPLIER, MAX_TARGET_MS * 1000);
+    }
+
+    /**
+     * Returns the media currently needed to start live playback
+     * @return target in microseconds
+     */
+    public long getStartTargetUs() {
+        return Math.max(startTargetUs, jitterFloorUs);
+    }
+
+    /**
+     * Returns the media currently needed to resume live playback after a rebuffer
+     * @return target in microseconds
+     */
+    public long getRebufferTargetUs() {
+        return Math.max(rebufferTargetUs, jitterFloorUs);
+    }
+
+    /**
+     * Internal method which lowers the targets towards where they started once playback has gone a
+     * while without a rebuffer.
+     */
+    private synchronized void maybeRelax() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs - lastAdaptedMs < RELAX_INTERVAL_MS) {
+            return;
+        }
+        lastAdaptedMs = nowMs;
+
+        if (startTargetUs == baseStartTargetUs && rebufferTargetUs == baseRebufferTargetUs) {
+            return;
+        }
+
+        startTargetUs = Math.max((long) (startTargetUs * RELAX_FACTOR), baseStartTargetUs);
+        rebufferTargetUs = Math.max((long) (rebufferTargetUs * RELAX_FACTOR), baseRebufferTargetUs);
+
+        Log.d(TAG, "No rebuffers, lowering targets to start " + startTargetUs / 1000 + "ms, rebuffer " + rebufferTargetUs / 1000 + "ms");
+        reportTargets();
+    }
+
+    private void reportTargets() {
+        metrics.set("live_start_target_ms", startTargetUs / 1000);
+        metrics.set("live_rebuffer_target_ms", rebufferTargetUs / 1000);
+    }
+
+    @Override
+    public void onPrepared() {
+        recordingLoadControl.onPrepared();
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        recordingLoadControl.onTracksSelected(renderers, trackGroups, trackSelections);
+    }
+
+    @Override
+    public void onStopped() {
+        recordingLoadControl.onStopped();
+    }
+
+    @Override
+    public void onReleased() {
+        recordingLoadControl.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return recordingLoadControl.getAllocator();
+    }
+
+    @Override
+    public long getBackBufferDurationUs() {
+        return recordingLoadControl.getBackBufferDurationUs();
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe() {
+        return recordingLoadControl.retainBackBufferFromKeyframe();
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+        // Also keeps the recording load control's idea of whether it is loading up to date
+        boolean continueLoading = recordingLoadControl.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+        if (!live) {
+            return continueLoading;
+        }
+
+        maybeRelax();
+
+        // Live media only arrives in real time, so there is no reason to stop short of the maximum
+        // unless the allocator is full
+        return bufferedDurationUs < maxBufferUs && (continueLoading || bufferedDurationUs < getRebufferTargetUs());
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if (!live) {
+            return recordingLoadControl.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+        }
+
+        long targetUs = rebuffering ? getRebufferTargetUs() : getStartTargetUs();
+        return targetUs <= 0
+                || Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed) >= targetUs
+                // The buffer can't grow any more, so play what there is
+                || bufferedDurationUs >= maxBufferUs;
+    }
+}
@@ -0,0 +1,416 @@
+package com.openiptv.code.player;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.C;
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPException;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.Subscriber;
+import com.openiptv.code.htsp.SubscriptionHealth;
+import com.openiptv.code.htsp.SubscriptionPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Records a channel to a file on this device. The recorder has its own subscription, so it can
+ * record while the same or another channel is being watched over the same connection.
+ *
+ * Messages are handed from the connection's thread to a writer thread through a bounded queue, so
+ * a slow disk never holds up playback; if the queue fills up packets are dropped, and video resumes
+ * at the next key frame. The writer serialises each message in the framing HTSPSubscriptionDataSource
+ * gives the extractor, so a recording can be played back by the same extractor, and writes it
+ * through a large buffer in sequential writes. The position and time of every video key frame is
+ * kept, and saved as a RecordingIndex alongside once the recording stops, which is what makes the
+ * recording seekable.
+ */
+public class LocalRecorder implements Subscriber.Listener {
+    private static final String TAG = LocalRecorder.class.getSimpleName();
+
+    public static final String RECORDING_EXTENSION = ".htsp";
+    public static final String INDEX_EXTENSION = ".idx";
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_INDEX_SIZE = 1024;
+    // How long stop waits for the queue to be written out
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    // Queued by stop, the writer finishes once it gets to it
+    private static final HTSPMessage END_OF_STREAM = new HTSPMessage();
+
+    private final BaseConnection connection;
+    private final String streamProfile;
+    private final SubscriptionPolicy policy;
+    private final File file;
+    private final File indexFile;
+    private final BlockingQueue<HTSPMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private Subscriber subscriber;
+    private Thread writerThread;
+    private volatile boolean isStopped = false;
+
+    // Type of each video stream by index, only touched on the connection's thread
+    private final Map<Integer, String> videoStreams = new HashMap<>();
+    private boolean droppingUntilKeyFrame = false;
+
+    // Written on the writer thread
+    private volatile long bytesWritten = 0;
+    private volatile long firstPts = C.TIME_UNSET;
+    private volatile long lastPts = C.TIME_UNSET;
+    private volatile int droppedPackets = 0;
+    private volatile IOException writeError;
+
+    /**
+     * Constructor for a LocalRecorder
+     * @param connection BaseConnection to subscribe on, which may be shared with playback
+     * @param streamProfile stream profile to use with TVHeadEnd
+     * @param policy parameters to subscribe with
+     * @param file file to record to, the index is written next to it
+     */
+    public LocalRecorder(BaseConnection connection, String streamProfile, SubscriptionPolicy policy, File file) {
+        this.connection = connection;
+        this.streamProfile = streamProfile;
+        this.policy = policy;
+        this.file = file;
+        this.indexFile = getIndexFile(file);
+    }
+
+    /**
+     * Returns the index file of a recording
+     * @param file recording file
+     * @return index file
+     */
+    public static File getIndexFile(File file) {
+        String name = file.getName();
+        if (name.endsWith(RECORDING_EXTENSION)) {
+            name = name.substring(0, name.length() - RECORDING_EXTENSION.length());
+        }
+
+        return new File(file.getParentFile(), name + INDEX_EXTENSION);
+    }
+
+    /**
+     * Opens the files and subscribes to a channel
+     * @param channelId TVH channelId
+     * @throws IOException if the files could not be opened
+     * @throws HTSPException if there is no connection made
+     */
+    public synchronized void start(long channelId) throws IOException, HTSPException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        final FileOutputStream output = new FileOutputStream(file);
+
+        writerThread = new Thread(() -> write(output.getChannel()), TAG + "-" + channelId);
+        writerThread.start();
+
+        subscriber = connection.getSubscriptionManager().createSubscriber();
+        subscriber.addSubscriptionListener(this);
+        try {
+            subscriber.subscribe(channelId, streamProfile, policy);
+        } catch (HTSPException e) {
+            stop();
+            throw e;
+        }
+
+        Log.i(TAG, "Recording channel " + channelId + " to " + file);
+    }
+
+    /**
+     * Unsubscribes, and waits for everything received to be written
+     * @return true if the recording was written completely
+     */
+    public synchronized boolean stop() {
+        if (isStopped) {
+            return writeError == null;
+        }
+        isStopped = true;
+
+        if (subscriber != null) {
+            subscriber.removeSubscriptionListener(this);
+            subscriber.unsubscribe();
+            subscriber = null;
+        }
+
+        if (writerThread != null) {
+            try {
+                // The writer is draining the queue, so there is room soon enough
+                if (!queue.offer(END_OF_STREAM, STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    writerThread.interrupt();
+                }
+                writerThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Log.i(TAG, "Stopped recording to " + file + ", " + bytesWritten + " bytes, " + getDurationUs() / 1000 + "ms, " + droppedPackets + " packets dropped");
+
+        return writeError == null && (writerThread == null || !writerThread.isAlive());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns how many packets were dropped because the disk couldn't keep up
+     * @return dropped packets
+     */
+    public int getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Returns the length of what has been recorded so far
+     * @return duration in microseconds, 0 if nothing has been recorded
+     */
+    public long getDurationUs() {
+        long first = firstPts;
+        long last = lastPts;
+        if (first == C.TIME_UNSET || last == C.TIME_UNSET) {
+            return 0;
+        }
+
+        return last - first;
+    }
+
+    // Subscription.Listener Methods
+    @Override
+    public void onSubscriptionStart(@NonNull HTSPMessage message) {
+        videoStreams.clear();
+        for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+            String type = stream.getString("type");
+            if ("H264".equals(type) || "HEVC".equals(type) || "MPEG2VIDEO".equals(type)) {
+                videoStreams.put(stream.getInteger("index"), type);
+            }
+        }
+
+        // Video starts at a key frame
+        droppingUntilKeyFrame = !videoStreams.isEmpty();
+        enqueue(message);
+    }
+
+    @Override
+    public void onMuxpkt(@NonNull HTSPMessage message) {
+        String videoType = videoStreams.get(message.getInteger("stream"));
+
+        if (videoType != null) {
+            if (droppingUntilKeyFrame && !KeyFrameDetector.isKeyFrame(videoType, message)) {
+                droppedPackets++;
+                return;
+            }
+            droppingUntilKeyFrame = false;
+        }
+
+        if (!enqueue(message) && videoType != null) {
+            // Later frames reference this one
+            droppingUntilKeyFrame = true;
+        }
+    }
+
+    @Override
+    public void onSubscriptionStatus(@NonNull HTSPMessage message) {
+        String status = message.getString("status", null);
+        if (status != null) {
+            Log.w(TAG, "Recording subscription status " + status + " for " + file);
+        }
+    }
+
+    @Override
+    public void onSubscriptionStop(@NonNull HTSPMessage message) {
+        Log.w(TAG, "Server stopped the recording subscription for " + file);
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HTSPMessage message) {
+        // Recordings are never skipped
+    }
+
+    @Override
+    public void onSubscriptionHealth(@NonNull SubscriptionHealth health) {
+        if (DEBUG) {
+            Log.v(TAG, "Recording subscription health " + health);
+        }
+    }
+
+    /**
+     * Internal method which hands a message to the writer without blocking
+     * @param message message to write
+     * @return true if queued, false if dropped
+     */
+    private boolean enqueue(@NonNull HTSPMessage message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+
+        droppedPackets++;
+        if (droppedPackets == 1 || DEBUG) {
+            Log.w(TAG, "Disk not keeping up, dropping packets for " + file);
+        }
+        return false;
+    }
+
+    /**
+     * Internal method run on the writer thread, which writes queued messages until stopped, then
+     * saves the index
+     * @param channel recording file
+     */
+    private void write(FileChannel channel) {
+        ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        long[] indexTimesUs = new long[INITIAL_INDEX_SIZE];
+        long[] indexPositions = new long[INITIAL_INDEX_SIZE];
+        int indexSize = 0;
+        Map<Integer, String> writtenVideoStreams = new HashMap<>();
+        long position = 0;
+
+        try {
+            writeBuffer.put(HTSPSubscriptionDataSource.HEADER);
+            position += HTSPSubscriptionDataSource.HEADER.length;
+
+            while (true) {
+                HTSPMessage message = queue.take();
+                if (message == END_OF_STREAM) {
+                    break;
+                }
+
+                byte[] bytes = serializeMessage(message);
+
+                if ("subscriptionStart".equals(message.getString("method", null))) {
+                    writtenVideoStreams.clear();
+                    for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+                        String type = stream.getString("type");
+                        if ("H264".equals(type) || "HEVC".equals(type) || "MPEG2VIDEO".equals(type)) {
+                            writtenVideoStreams.put(stream.getInteger("index"), type);
+                        }
+                    }
+                } else {
+                    long pts = message.getLong("pts", C.TIME_UNSET);
+                    String videoType = writtenVideoStreams.get(message.getInteger("stream"));
+
+                    if (pts != C.TIME_UNSET) {
+                        if (firstPts == C.TIME_UNSET) {
+                            firstPts = pts;
+                        }
+                        if (lastPts == C.TIME_UNSET || pts > lastPts) {
+                            lastPts = pts;
+                        }
+
+                        if (videoType != null && KeyFrameDetector.isKeyFrame(videoType, message)
+                                && (indexSize == 0 || pts - firstPts > indexTimesUs[indexSize - 1])) {
+                            if (indexSize == indexTimesUs.length) {
+                                indexTimesUs = Arrays.copyOf(indexTimesUs, indexSize * 2);
+                                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                            }
+                            // Times start at the first packet, as the extractor plays them back
+                            indexTimesUs[indexSize] = pts - firstPts;
+                            indexPositions[indexSize] = position;
+                            indexSize++;
+                        }
+                    }
+                }
+
+                if (writeBuffer.remaining() < HTSPSubscriptionDataSource.FRAME_LENGTH_SIZE + bytes.length) {
+                    flush(channel, writeBuffer);
+                }
+
+                writeBuffer.putInt(bytes.length);
+                if (bytes.length <= writeBuffer.remaining()) {
+                    writeBuffer.put(bytes);
+                } else {
+                    // Bigger than the buffer, written as it is
+                    flush(channel, writeBuffer);
+                    ByteBuffer frame = ByteBuffer.wrap(bytes);
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                }
+
+                position += HTSPSubscriptionDataSource.FRAME_LENGTH_SIZE + bytes.length;
+                bytesWritten = position;
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Recording to " + file + " interrupted, " + queue.size() + " messages not written");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed writing recording to " + file, e);
+            writeError = e;
+        } finally {
+            try {
+                flush(channel, writeBuffer);
+                channel.force(true);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed finishing recording to " + file, e);
+                writeError = e;
+            }
+
+            close(channel);
+            queue.clear();
+        }
+
+        if (indexSize > 0 && !new RecordingIndex(getDurationUs(), bytesWritten, indexTimesUs, indexPositions, indexSize).save(indexFile)) {
+            Log.w(TAG, "Recording to " + file + " saved without an index");
+        }
+    }
+
+    /**
+     * Internal method which writes out a buffer, leaving it empty
+     * @param channel file to write to
+     * @param buffer buffer to write, in write mode
+     * @throws IOException if the write failed
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close recording file", e);
+        }
+    }
+
+    /**
+     * Helper method which serialises a given HTSPMessage, as HTSPSubscriptionDataSource does.
+     * @param message stream data message
+     * @return serialised message
+     * @throws IOException if it could not be serialised
+     */
+    private static byte[] serializeMessage(@NonNull HTSPMessage message) throws IOException {
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+             ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)
+        ) {
+            objectOutput.writeUnshared(message);
+            objectOutput.flush();
+
+            return outputStream.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.openiptv.code.player;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import java.io.IOException;
+
+/**
+ * Plays back a recording made by LocalRecorder with the HTSP extractor. The file holds the frames
+ * of a subscription as HTSPSubscriptionDataSource hands them to the extractor, so all this adds is
+ * what a file needs and a subscription doesn't: sample times starting at 0, the RecordingIndex
+ * saved alongside as the SeekMap, and skipping the HEADER when a seek goes back to the start.
+ */
+class LocalRecordingExtractor implements Extractor {
+    private final Extractor extractor;
+    private final RecordingIndex index;
+    private boolean started = false;
+    // Time of the first sample of the recording, which plays at 0
+    private long firstSampleTimeUs = C.TIME_UNSET;
+
+    /**
+     * Constructor for a LocalRecordingExtractor
+     * @param extractor HTSP extractor
+     * @param index index of the recording, or null if it has none
+     */
+    LocalRecordingExtractor(Extractor extractor, RecordingIndex index) {
+        this.extractor = extractor;
+        this.index = index;
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+        return extractor.sniff(input);
+    }
+
+    @Override
+    public void init(final ExtractorOutput output) {
+        extractor.init(new ExtractorOutput() {
+            @Override
+            public TrackOutput track(int id, int type) {
+                return new RebasingTrackOutput(output.track(id, type));
+            }
+
+            @Override
+            public void endTracks() {
+                output.endTracks();
+            }
+
+            @Override
+            public void seekMap(SeekMap seekMap) {
+                // The HTSP extractor's own SeekMap leaves seeking to the server
+                output.seekMap(index != null ? index : new SeekMap.Unseekable(C.TIME_UNSET));
+            }
+        });
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
+        if (!started) {
+            started = true;
+        } else if (input.getPosition() < HTSPSubscriptionDataSource.HEADER.length) {
+            // The extractor only expects the HEADER once
+            input.skipFully((int) (HTSPSubscriptionDataSource.HEADER.length - input.getPosition()));
+        }
+
+        return extractor.read(input, seekPosition);
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        extractor.seek(position, timeUs);
+    }
+
+    @Override
+    public void release() {
+        extractor.release();
+    }
+
+    /**
+     * A TrackOutput which moves sample times so the recording starts at 0
+     */
+    private class RebasingTrackOutput implements TrackOutput {
+        private final TrackOutput trackOutput;
+
+        RebasingTrackOutput(TrackOutput trackOutput) {
+            this.trackOutput = trackOutput;
+        }
+
+        @Override
+        public void format(Format format) {
+            trackOutput.format(format);
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return trackOutput.sampleData(input, length, allowEndOfInput);
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            trackOutput.sampleData(data, length);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset, CryptoData cryptoData) {
+            if (firstSampleTimeUs == C.TIME_UNSET) {
+                firstSampleTimeUs = timeUs;
+            }
+
+            trackOutput.sampleMetadata(Math.max(timeUs - firstSampleTimeUs, 0), flags, size, offset, cryptoData);
+        }
+    }
+}
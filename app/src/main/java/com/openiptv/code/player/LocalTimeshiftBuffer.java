@@ -0,0 +1,277 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * A client-side timeshift of the current subscription. Frames are appended, in the same length
+ * prefixed format the data source hands the extractor, to a memory-mapped segment file used as a
+ * ring, so the newest frames overwrite the oldest. Video key frames are indexed by PTS, so a seek
+ * within the window can be played back from the file without asking the server.
+ *
+ * Positions are logical, they only ever grow; the file offset is the position modulo the capacity.
+ * Not thread safe, the data source guards it with its own lock.
+ */
+public class LocalTimeshiftBuffer {
+    private static final String TAG = LocalTimeshiftBuffer.class.getSimpleName();
+    private static final String FILE_PREFIX = "timeshift-";
+    private static final int FRAME_LENGTH_SIZE = 4;
+    // Key frames come every second or so, far more than the file can hold
+    private static final int MAX_INDEX_ENTRIES = 4096;
+
+    private static final AtomicInteger fileCount = new AtomicInteger();
+    // Buffers of finished sessions, kept for the next session instead of mapping a new file
+    private static final List<LocalTimeshiftBuffer> recycled = new ArrayList<>();
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer mappedBuffer;
+    private final long capacity;
+    private final byte[] lengthScratch = new byte[FRAME_LENGTH_SIZE];
+
+    // Sparse index of key frames, a ring of positions and their PTS in the order appended
+    private final long[] indexPositions = new long[MAX_INDEX_ENTRIES];
+    private final long[] indexPts = new long[MAX_INDEX_ENTRIES];
+    private int indexStart = 0;
+    private int indexSize = 0;
+
+    private long head = 0;
+    private long lastPts = C.TIME_UNSET;
+
+    private LocalTimeshiftBuffer(File file, long capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.setLength(capacity);
+            mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an empty buffer, reusing one recycled by an earlier session if it is the same size.
+     * @param context application context, the file is kept in its cache directory
+     * @param capacity size of the file in bytes
+     * @return buffer
+     * @throws IOException if the file couldn't be created or mapped
+     */
+    public static LocalTimeshiftBuffer obtain(Context context, long capacity) throws IOException {
+        synchronized (recycled) {
+            for (int i = 0; i < recycled.size(); i++) {
+                if (recycled.get(i).capacity == capacity) {
+                    LocalTimeshiftBuffer buffer = recycled.remove(i);
+                    buffer.reset();
+                    return buffer;
+                }
+            }
+
+            // A size is no longer in use, free its files
+            for (LocalTimeshiftBuffer buffer : recycled) {
+                buffer.delete();
+            }
+            recycled.clear();
+        }
+
+        File file = new File(context.getCacheDir(), FILE_PREFIX + fileCount.incrementAndGet());
+        Log.d(TAG, "Mapping " + (capacity / (1024 * 1024)) + "MB local timeshift at " + file);
+        return new LocalTimeshiftBuffer(file, capacity);
+    }
+
+    /**
+     * Hands the buffer back for the next session to use. The buffer must not be used after.
+     */
+    public void recycle() {
+        synchronized (recycled) {
+            recycled.add(this);
+        }
+    }
+
+    /**
+     * Forgets everything appended, as the stream is no longer continuous.
+     */
+    public void reset() {
+        head = 0;
+        lastPts = C.TIME_UNSET;
+        indexStart = 0;
+        indexSize = 0;
+    }
+
+    /**
+     * Returns whether a frame can be appended without overwriting anything from a position on
+     * @param length frame length, excluding the length prefix
+     * @param protectFrom oldest position which must be kept
+     * @return true if it fits
+     */
+    public boolean canAppend(int length, long protectFrom) {
+        return head + FRAME_LENGTH_SIZE + length - capacity <= protectFrom;
+    }
+
+    /**
+     * Appends a frame, overwriting the oldest frames if the file is full
+     * @param frame frame bytes
+     * @param pts PTS of the frame, or C.TIME_UNSET
+     * @param isKeyFrame whether the frame is a video key frame, which is indexed
+     */
+    public void append(byte[] frame, long pts, boolean isKeyFrame) {
+        if (FRAME_LENGTH_SIZE + frame.length > capacity) {
+            return;
+        }
+
+        long frameStart = head;
+        long newHead = head + FRAME_LENGTH_SIZE + frame.length;
+
+        // Drop the index entries of the frames about to be overwritten
+        while (indexSize > 0 && indexPositions[indexStart] < newHead - capacity) {
+            indexStart = (indexStart + 1) % MAX_INDEX_ENTRIES;
+            indexSize--;
+        }
+
+        lengthScratch[0] = (byte) (frame.length >>> 24);
+        lengthScratch[1] = (byte) (frame.length >>> 16);
+        lengthScratch[2] = (byte) (frame.length >>> 8);
+        lengthScratch[3] = (byte) frame.length;
+        write(head, lengthScratch, 0, FRAME_LENGTH_SIZE);
+        write(head + FRAME_LENGTH_SIZE, frame, 0, frame.length);
+        head = newHead;
+
+        if (pts != C.TIME_UNSET) {
+            if (isKeyFrame) {
+                if (indexSize == MAX_INDEX_ENTRIES) {
+                    indexStart = (indexStart + 1) % MAX_INDEX_ENTRIES;
+                    indexSize--;
+                }
+                int entry = (indexStart + indexSize) % MAX_INDEX_ENTRIES;
+                indexPositions[entry] = frameStart;
+                indexPts[entry] = pts;
+                indexSize++;
+            }
+
+            if (lastPts == C.TIME_UNSET || pts > lastPts) {
+                lastPts = pts;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the last key frame at or before a time
+     * @param timeUs time to find
+     * @return position, or C.POSITION_UNSET if the time isn't within the buffer
+     */
+    public long findKeyFrame(long timeUs) {
+        if (indexSize == 0 || timeUs < indexPts[indexStart] || timeUs > lastPts) {
+            return C.POSITION_UNSET;
+        }
+
+        // Binary search the index, which is in PTS order
+        int low = 0;
+        int high = indexSize - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (indexPts[(indexStart + mid) % MAX_INDEX_ENTRIES] <= timeUs) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Found key frame at " + indexPts[(indexStart + low) % MAX_INDEX_ENTRIES] + " for " + timeUs);
+        }
+
+        return indexPositions[(indexStart + low) % MAX_INDEX_ENTRIES];
+    }
+
+    /**
+     * Reads appended bytes
+     * @param position position to read from
+     * @param target array to read into
+     * @param offset offset in target
+     * @param length maximum number of bytes to read
+     * @return number of bytes read, 0 if position is the head
+     */
+    public int read(long position, byte[] target, int offset, int length) {
+        int available = (int) Math.min(length, head - position);
+        if (available <= 0) {
+            return 0;
+        }
+
+        int physical = (int) (position % capacity);
+        int first = (int) Math.min(available, capacity - physical);
+
+        mappedBuffer.position(physical);
+        mappedBuffer.get(target, offset, first);
+        if (first < available) {
+            mappedBuffer.position(0);
+            mappedBuffer.get(target, offset + first, available - first);
+        }
+
+        return available;
+    }
+
+    /**
+     * Returns the position the next frame is appended at
+     * @return head position
+     */
+    public long getHead() {
+        return head;
+    }
+
+    /**
+     * Returns the PTS of the newest frame appended
+     * @return PTS, or C.TIME_UNSET if empty
+     */
+    public long getLastPts() {
+        return lastPts;
+    }
+
+    /**
+     * Returns the size of the file
+     * @return capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    private void write(long position, byte[] source, int offset, int length) {
+        int physical = (int) (position % capacity);
+        int first = (int) Math.min(length, capacity - physical);
+
+        mappedBuffer.position(physical);
+        mappedBuffer.put(source, offset, first);
+        if (first < length) {
+            mappedBuffer.position(0);
+            mappedBuffer.put(source, offset + first, length - first);
+        }
+    }
+
+    private void delete() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + file, e);
+        }
+
+        // The mapping is only released once the buffer is garbage collected
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.openiptv.code.player;
+
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Plays a subscription back from its local timeshift. While live, every packet is appended to the
+ * file; a seek within it switches to reading from the file, during which packets keep being
+ * appended behind the ones played back, until playback catches up with the newest of them.
+ *
+ * Not thread safe, the data source calls it holding its own lock.
+ */
+class LocalTimeshiftReplay {
+    private static final String TAG = LocalTimeshiftReplay.class.getSimpleName();
+
+    // The server is throttled once less than a quarter of the file is left before the oldest unread
+    // frame, and resumed once half of it is free
+    private static final int THROTTLE_DIVISOR = 4;
+    private static final int RESUME_DIVISOR = 2;
+
+    /**
+     * Pauses and resumes the server while the file is nearly full of unread frames.
+     */
+    interface Throttle {
+        /**
+         * Asks the server to stop sending, if it can timeshift and isn't throttled already
+         * @return true if the server was throttled now
+         */
+        boolean throttle();
+
+        /**
+         * Asks the server to send at the requested speed again, if it was throttled
+         * @return true if the server was resumed now
+         */
+        boolean resume();
+    }
+
+    private final LocalTimeshiftBuffer timeshift;
+    private final Throttle throttle;
+    private final PlaybackMetrics metrics;
+    private final int dataSourceNumber;
+    private boolean replaying = false;
+    private long replayPosition = 0;
+    // Whether playback is behind the server since a local seek
+    private boolean shifted = false;
+
+    /**
+     * Constructor for a LocalTimeshiftReplay
+     * @param timeshift local timeshift of the subscription
+     * @param throttle pauses and resumes the server
+     * @param metrics metrics of the player
+     * @param dataSourceNumber number of the data source, for logging
+     */
+    LocalTimeshiftReplay(LocalTimeshiftBuffer timeshift, Throttle throttle, PlaybackMetrics metrics, int dataSourceNumber) {
+        this.timeshift = timeshift;
+        this.throttle = throttle;
+        this.metrics = metrics;
+        this.dataSourceNumber = dataSourceNumber;
+    }
+
+    /**
+     * Seeks within the local timeshift, if the position is in it. The server isn't told, it keeps
+     * sending live packets which are appended behind the ones played back.
+     * @param timeUs absolute position to seek to
+     * @return true if the seek is played back locally
+     */
+    boolean seek(long timeUs) {
+        long position = timeshift.findKeyFrame(timeUs);
+        if (position == C.POSITION_UNSET) {
+            return false;
+        }
+
+        replaying = true;
+        replayPosition = position;
+        shifted = true;
+        metrics.increment("local_seeks");
+
+        if (DEBUG) {
+            Log.d(TAG, "Seeking locally to " + timeUs + ", " + (timeshift.getHead() - position) + " bytes behind (" + dataSourceNumber + ")");
+        }
+
+        updateFlowControl();
+        return true;
+    }
+
+    /**
+     * Reads from the local timeshift while playing back from it. Once the last frame appended has
+     * been read, isReplaying returns false and reads continue from the data source's buffer.
+     * @param target array to read into
+     * @param offset offset in target
+     * @param readLength maximum number of bytes to read
+     * @return number of bytes read
+     */
+    int read(byte[] target, int offset, int readLength) {
+        int length = timeshift.read(replayPosition, target, offset, readLength);
+        replayPosition += length;
+
+        if (replayPosition == timeshift.getHead()) {
+            // Packets are appended under the data source's lock too, so the next one goes to its buffer
+            Log.d(TAG, "Local timeshift caught up, reading from the subscription (" + dataSourceNumber + ")");
+            replaying = false;
+            metrics.increment("local_catch_ups");
+        } else {
+            updateFlowControl();
+        }
+
+        return length;
+    }
+
+    /**
+     * Appends a packet received while live, so a later seek can be played back from it
+     * @param bytes serialised message
+     * @param pts PTS of the packet
+     * @param isKeyFrame whether the packet is a video key frame
+     */
+    void append(byte[] bytes, long pts, boolean isKeyFrame) {
+        timeshift.append(bytes, pts, isKeyFrame);
+    }
+
+    /**
+     * Appends a packet received while playing back. A frame which would overwrite ones not yet
+     * read is dropped.
+     * @param bytes serialised message
+     * @param pts PTS of the packet
+     * @param isKeyFrame whether the packet is a video key frame
+     * @return true if appended, false on an overrun
+     */
+    boolean appendWhileReplaying(byte[] bytes, long pts, boolean isKeyFrame) {
+        if (!timeshift.canAppend(bytes.length, replayPosition)) {
+            metrics.increment("local_overruns");
+            return false;
+        }
+
+        timeshift.append(bytes, pts, isKeyFrame);
+        return true;
+    }
+
+    /**
+     * Applies backpressure while playing back, based on how much of the file is left before the
+     * oldest unread frame. Frames are dropped by the data source once the file is full anyway.
+     */
+    void updateFlowControl() {
+        long capacity = timeshift.getCapacity();
+        long free = capacity - (timeshift.getHead() - replayPosition);
+
+        if (free < capacity / THROTTLE_DIVISOR) {
+            if (throttle.throttle()) {
+                Log.d(TAG, "Local timeshift nearly full, throttling subscription (" + dataSourceNumber + ")");
+            }
+        } else if (free >= capacity / RESUME_DIVISOR && throttle.resume()) {
+            Log.d(TAG, "Local timeshift drained, resuming subscription (" + dataSourceNumber + ")");
+        }
+    }
+
+    /**
+     * Returns whether reads are served from the local timeshift
+     * @return true while playing back
+     */
+    boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Returns whether there is anything left to play back
+     * @return true if a read won't block
+     */
+    boolean hasUnreadData() {
+        return replayPosition < timeshift.getHead();
+    }
+
+    /**
+     * Returns whether playback is behind the subscription after a local seek
+     * @return true if shifted locally
+     */
+    boolean isShifted() {
+        return shifted;
+    }
+
+    /**
+     * Returns the PTS of the newest packet appended, which is where the subscription is
+     * @return PTS, or C.TIME_UNSET if empty
+     */
+    long getLastPts() {
+        return timeshift.getLastPts();
+    }
+
+    /**
+     * Empties the local timeshift, and stops playing back from it
+     */
+    void reset() {
+        timeshift.reset();
+        replaying = false;
+        shifted = false;
+    }
+
+    /**
+     * Stops playing back, keeping the file for the next channel
+     */
+    void release() {
+        timeshift.recycle();
+        replaying = false;
+        shifted = false;
+    }
+}
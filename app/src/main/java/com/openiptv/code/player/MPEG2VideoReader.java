@@ -10,7 +10,7 @@ import com.openiptv.code.htsp.HTSPMessage;
  */
 public class MPEG2VideoReader extends VideoReader {
     public MPEG2VideoReader(Context context) {
-        super(context, MimeTypes.VIDEO_MPEG2);
+        super(context, MimeTypes.VIDEO_MPEG2, "MPEG2VIDEO");
     }
 
     /**
@@ -0,0 +1,401 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.openiptv.code.epg.Channel;
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPException;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.Subscriber;
+import com.openiptv.code.htsp.SubscriptionHealth;
+import com.openiptv.code.htsp.SubscriptionPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Keeps low weight background subscriptions to the channels the user is most likely to tune to
+ * next, so a channel change can take over a subscription that is already streaming instead of
+ * waiting for the server to tune and send the next key frame.
+ */
+public class PreSubscriptionManager {
+    private static final String TAG = PreSubscriptionManager.class.getSimpleName();
+
+    private static final int MAX_RECENT_CHANNELS = 5;
+
+    /**
+     * A background subscription which buffers the latest GOP of its channel, until it is promoted
+     * to a Listener that plays it.
+     */
+    public static class WarmSubscription implements Subscriber.Listener {
+        private final Subscriber subscriber;
+        private final long channelId;
+        private final long maxBytes;
+        private final List<HTSPMessage> gop = new ArrayList<>();
+        // Type of each video stream by index
+        private final Map<Integer, String> videoStreams = new HashMap<>();
+        private HTSPMessage subscriptionStart;
+        private Subscriber.Listener promotedTo;
+        private long gopBytes = 0;
+        private boolean stopped = false;
+
+        WarmSubscription(Subscriber subscriber, long channelId, long maxBytes) {
+            this.subscriber = subscriber;
+            this.channelId = channelId;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Returns the underlying subscriber
+         * @return subscriber
+         */
+        public Subscriber getSubscriber() {
+            return subscriber;
+        }
+
+        /**
+         * Returns the TVH channelId of this subscription
+         * @return channelId
+         */
+        public long getChannelId() {
+            return channelId;
+        }
+
+        /**
+         * Hands this subscription to a new Listener. The buffered subscriptionStart and GOP are
+         * replayed first, every later message is forwarded as it arrives.
+         * @param listener new owner of the subscription
+         * @param weight TVH subscription weight of the new owner
+         */
+        public synchronized void promote(@NonNull Subscriber.Listener listener, int weight) {
+            Log.d(TAG, "Promoting pre-subscription to channel " + channelId + " with " + gop.size() + " buffered packets");
+
+            if (subscriptionStart != null) {
+                listener.onSubscriptionStart(subscriptionStart);
+            }
+            for (HTSPMessage message : gop) {
+                listener.onMuxpkt(message);
+            }
+
+            gop.clear();
+            gopBytes = 0;
+            promotedTo = listener;
+
+            subscriber.setWeight(weight);
+        }
+
+        /**
+         * Stops the background subscription.
+         */
+        synchronized void release() {
+            subscriber.removeSubscriptionListener(this);
+            subscriber.unsubscribe();
+            gop.clear();
+            gopBytes = 0;
+        }
+
+        synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        @Override
+        public synchronized void onSubscriptionStart(@NonNull HTSPMessage message) {
+            if (promotedTo != null) {
+                promotedTo.onSubscriptionStart(message);
+                return;
+            }
+
+            subscriptionStart = message;
+            videoStreams.clear();
+            for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+                String type = stream.getString("type");
+                if ("H264".equals(type) || "HEVC".equals(type) || "MPEG2VIDEO".equals(type)) {
+                    videoStreams.put(stream.getInteger("index"), type);
+                }
+            }
+
+            gop.clear();
+            gopBytes = 0;
+        }
+
+        @Override
+        public synchronized void onSubscriptionStatus(@NonNull HTSPMessage message) {
+            if (promotedTo != null) {
+                promotedTo.onSubscriptionStatus(message);
+            }
+        }
+
+        @Override
+        public synchronized void onSubscriptionSkip(@NonNull HTSPMessage message) {
+            if (promotedTo != null) {
+                promotedTo.onSubscriptionSkip(message);
+            }
+        }
+
+        @Override
+        public synchronized void onSubscriptionHealth(@NonNull SubscriptionHealth health) {
+            if (promotedTo != null) {
+                promotedTo.onSubscriptionHealth(health);
+            }
+        }
+
+        @Override
+        public synchronized void onSubscriptionStop(@NonNull HTSPMessage message) {
+            if (promotedTo != null) {
+                promotedTo.onSubscriptionStop(message);
+                return;
+            }
+
+            Log.d(TAG, "Pre-subscription to channel " + channelId + " was stopped by the server");
+            stopped = true;
+            gop.clear();
+            gopBytes = 0;
+        }
+
+        @Override
+        public synchronized void onMuxpkt(@NonNull HTSPMessage message) {
+            if (promotedTo != null) {
+                promotedTo.onMuxpkt(message);
+                return;
+            }
+
+            String videoType = videoStreams.get(message.getInteger("stream"));
+
+            if (videoType != null && KeyFrameDetector.isKeyFrame(videoType, message)) {
+                // A new GOP has started, everything before it is no longer needed
+                gop.clear();
+                gopBytes = 0;
+            } else if (gop.isEmpty() && !videoStreams.isEmpty()) {
+                // Wait for the next key frame, nothing before it is playable
+                return;
+            }
+
+            gop.add(message);
+            gopBytes += message.getByteArray("payload").length;
+
+            if (gopBytes > maxBytes) {
+                if (DEBUG) {
+                    Log.d(TAG, "GOP for channel " + channelId + " exceeds " + maxBytes + " bytes, waiting for next key frame");
+                }
+                gop.clear();
+                gopBytes = 0;
+            }
+        }
+    }
+
+    private final Context context;
+    private final BaseConnection connection;
+    private final String streamProfile;
+    private final SubscriptionPolicy policy;
+    private final int maxWarmSubscriptions;
+    private final long memoryBudgetBytes;
+    private final Map<Long, WarmSubscription> warmSubscriptions = new HashMap<>();
+    private final LinkedList<Long> recentChannels = new LinkedList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private boolean released = false;
+
+    /**
+     * Constructor for a PreSubscriptionManager
+     * @param context application context
+     * @param connection BaseConnection the background subscriptions are made on
+     * @param streamProfile stream profile to use with TVHeadEnd
+     * @param maxWarmSubscriptions maximum number of background subscriptions, each uses a tuner
+     * @param memoryBudgetBytes maximum number of bytes buffered across all background subscriptions
+     */
+    public PreSubscriptionManager(Context context, BaseConnection connection, String streamProfile, int maxWarmSubscriptions, long memoryBudgetBytes) {
+        this(context, connection, streamProfile, SubscriptionPolicy.PREVIEW, maxWarmSubscriptions, memoryBudgetBytes);
+    }
+
+    /**
+     * Constructor for a PreSubscriptionManager
+     * @param context application context
+     * @param connection BaseConnection the background subscriptions are made on
+     * @param streamProfile stream profile to use with TVHeadEnd
+     * @param policy parameters to make the background subscriptions with
+     * @param maxWarmSubscriptions maximum number of background subscriptions, each uses a tuner
+     * @param memoryBudgetBytes maximum number of bytes buffered across all background subscriptions
+     */
+    public PreSubscriptionManager(Context context, BaseConnection connection, String streamProfile, SubscriptionPolicy policy, int maxWarmSubscriptions, long memoryBudgetBytes) {
+        this.context = context;
+        this.connection = connection;
+        this.streamProfile = streamProfile;
+        this.policy = policy;
+        this.maxWarmSubscriptions = maxWarmSubscriptions;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Takes the background subscription for a channel, if there is one. The caller becomes
+     * responsible for promoting and unsubscribing it.
+     * @param channelId TVH channelId
+     * @return the warm subscription, or null if the channel was not pre-subscribed
+     */
+    public synchronized WarmSubscription claim(long channelId) {
+        if (released) {
+            return null;
+        }
+
+        WarmSubscription warmSubscription = warmSubscriptions.remove(channelId);
+
+        if (warmSubscription != null && warmSubscription.isStopped()) {
+            warmSubscription.release();
+            return null;
+        }
+
+        return warmSubscription;
+    }
+
+    /**
+     * Notifies the manager that a channel is now playing, so the background subscriptions can be
+     * moved to its neighbours.
+     * @param channelId TVH channelId now playing
+     */
+    public synchronized void onTuned(final long channelId) {
+        if (released) {
+            return;
+        }
+
+        recentChannels.remove(channelId);
+        recentChannels.addFirst(channelId);
+        while (recentChannels.size() > MAX_RECENT_CHANNELS) {
+            recentChannels.removeLast();
+        }
+
+        // Querying the TvProvider shouldn't hold up the tune
+        executor.execute(() -> updateWarmSubscriptions(channelId));
+    }
+
+    /**
+     * Stops all background subscriptions.
+     */
+    public synchronized void release() {
+        released = true;
+        executor.shutdownNow();
+
+        for (WarmSubscription warmSubscription : warmSubscriptions.values()) {
+            warmSubscription.release();
+        }
+    }
+
+    /**
+     * Internal method which subscribes to the likely next channels and drops the rest.
+     * @param currentChannelId TVH channelId now playing
+     */
+    private void updateWarmSubscriptions(long currentChannelId) {
+        List<Long> candidates = getCandidateChannels(currentChannelId);
+
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+
+            Iterator<Map.Entry<Long, WarmSubscription>> iterator = warmSubscriptions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                WarmSubscription warmSubscription = iterator.next().getValue();
+                if (!candidates.contains(warmSubscription.getChannelId()) || warmSubscription.isStopped()) {
+                    warmSubscription.release();
+                    iterator.remove();
+                }
+            }
+
+            long maxBytesPerSubscription = memoryBudgetBytes / maxWarmSubscriptions;
+
+            for (Long channelId : candidates) {
+                if (warmSubscriptions.containsKey(channelId)) {
+                    continue;
+                }
+
+                Subscriber subscriber = connection.getSubscriptionManager().createSubscriber();
+                WarmSubscription warmSubscription = new WarmSubscription(subscriber, channelId, maxBytesPerSubscription);
+                subscriber.addSubscriptionListener(warmSubscription);
+
+                try {
+                    subscriber.subscribe(channelId, streamProfile, policy);
+                    warmSubscriptions.put(channelId, warmSubscription);
+                    Log.d(TAG, "Pre-subscribed to channel " + channelId);
+                } catch (HTSPException e) {
+                    Log.w(TAG, "Unable to pre-subscribe to channel " + channelId, e);
+                    subscriber.removeSubscriptionListener(warmSubscription);
+                }
+            }
+        }
+    }
+
+    /**
+     * Internal method which orders the channels most likely to be tuned to next: the channels
+     * above and below the current one, followed by recently watched channels.
+     * @param currentChannelId TVH channelId now playing
+     * @return up to maxWarmSubscriptions TVH channelIds
+     */
+    private List<Long> getCandidateChannels(long currentChannelId) {
+        List<Long> candidates = new ArrayList<>();
+        List<Long> lineup = getChannelLineup();
+        int index = lineup.indexOf(currentChannelId);
+
+        if (index != -1 && lineup.size() > 1) {
+            candidates.add(lineup.get((index + 1) % lineup.size()));
+            long previous = lineup.get((index - 1 + lineup.size()) % lineup.size());
+            if (!candidates.contains(previous)) {
+                candidates.add(previous);
+            }
+        }
+
+        synchronized (this) {
+            for (Long channelId : recentChannels) {
+                if (channelId != currentChannelId && !candidates.contains(channelId)) {
+                    candidates.add(channelId);
+                }
+            }
+        }
+
+        if (candidates.size() > maxWarmSubscriptions) {
+            return new ArrayList<>(candidates.subList(0, maxWarmSubscriptions));
+        }
+        return candidates;
+    }
+
+    /**
+     * Internal method which reads the TVH channelIds from the TvProvider, ordered by display number.
+     * @return TVH channelIds in display order
+     */
+    private List<Long> getChannelLineup() {
+        List<long[]> channels = new ArrayList<>();
+        String[] projection = {TvContract.Channels.COLUMN_SERVICE_ID, TvContract.Channels.COLUMN_DISPLAY_NUMBER};
+
+        try (Cursor cursor = context.getContentResolver().query(Channel.buildChannelsUri(), projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long displayNumber;
+                try {
+                    displayNumber = Long.parseLong(cursor.getString(1));
+                } catch (NumberFormatException | NullPointerException e) {
+                    displayNumber = Long.MAX_VALUE;
+                }
+                channels.add(new long[]{cursor.getInt(0), displayNumber});
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to read channel lineup", e);
+        }
+
+        Collections.sort(channels, (a, b) -> Long.compare(a[1], b[1]));
+
+        List<Long> lineup = new ArrayList<>();
+        for (long[] channel : channels) {
+            lineup.add(channel[0]);
+        }
+        return lineup;
+    }
+}
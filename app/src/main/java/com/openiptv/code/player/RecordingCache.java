@@ -0,0 +1,249 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * A bounded cache of recording chunks on disk, shared by every player. Each chunk is a file named
+ * after its recording key and offset. The key names the server as well as the recording, as DVR ids
+ * are only unique on one server, and the size of the recording file, so a recording deleted and
+ * its id reused doesn't return the old one's chunks. When the cache is over its size the least
+ * recently used chunks are deleted. Chunks are written on a background thread, so the connection's
+ * thread never waits for the disk.
+ */
+public class RecordingCache {
+    private static final String TAG = RecordingCache.class.getSimpleName();
+    private static final String DIRECTORY = "recordings";
+
+    private static RecordingCache instance;
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // Chunk name to size, in least recently used order
+    private final LinkedHashMap<String, Long> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long sizeBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private RecordingCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+        }
+
+        // Pick up the chunks of earlier runs, oldest first
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                chunks.put(file.getName(), file.length());
+                sizeBytes += file.length();
+            }
+        }
+
+        trim();
+    }
+
+    /**
+     * Returns the cache, resized to the current setting
+     * @param context application context, the chunks are kept in its cache directory
+     * @param maxBytes size of the cache in bytes
+     * @return cache
+     */
+    public static synchronized RecordingCache getInstance(Context context, long maxBytes) {
+        if (instance == null) {
+            instance = new RecordingCache(new File(context.getCacheDir(), DIRECTORY), maxBytes);
+        } else {
+            instance.setMaxBytes(maxBytes);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns the key of a recording's chunks
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param recordingId TVH recording id
+     * @param fileSize size of the recording file when opened
+     * @return recording key
+     */
+    public static String getRecordingKey(String serverKey, int recordingId, long fileSize) {
+        return serverKey + "-" + recordingId + "-" + fileSize;
+    }
+
+    /**
+     * Returns whether a chunk is cached, without touching the disk
+     * @param recordingKey key of the recording, from getRecordingKey
+     * @param offset offset of the chunk
+     * @return true if cached
+     */
+    public synchronized boolean contains(String recordingKey, long offset) {
+        return chunks.containsKey(getName(recordingKey, offset));
+    }
+
+    /**
+     * Reads a chunk, and marks it as recently used, which counts as a hit
+     * @param recordingKey key of the recording, from getRecordingKey
+     * @param offset offset of the chunk
+     * @return chunk, or null if it isn't cached
+     */
+    public byte[] get(String recordingKey, long offset) {
+        String name = getName(recordingKey, offset);
+        Long size;
+
+        synchronized (this) {
+            size = chunks.get(name);
+            if (size == null) {
+                return null;
+            }
+        }
+
+        File file = new File(directory, name);
+        byte[] data = new byte[size.intValue()];
+
+        try (FileInputStream input = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int length = input.read(data, read, data.length - read);
+                if (length < 0) {
+                    throw new IOException("Chunk " + name + " is truncated");
+                }
+                read += length;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached chunk " + name, e);
+            remove(name);
+            return null;
+        }
+
+        // Keeps the order across runs
+        file.setLastModified(System.currentTimeMillis());
+
+        synchronized (this) {
+            hits++;
+        }
+
+        return data;
+    }
+
+    /**
+     * Writes a chunk read from the server in the background, which counts as a miss. Only whole
+     * chunks should be cached, the last chunk of a recording in progress is still growing.
+     * @param recordingKey key of the recording, from getRecordingKey
+     * @param offset offset of the chunk
+     * @param data chunk
+     */
+    public void put(final String recordingKey, final long offset, final byte[] data) {
+        synchronized (this) {
+            misses++;
+            if (maxBytes <= 0 || chunks.containsKey(getName(recordingKey, offset))) {
+                return;
+            }
+        }
+
+        writer.execute(() -> {
+            String name = getName(recordingKey, offset);
+            File file = new File(directory, name);
+
+            try (FileOutputStream output = new FileOutputStream(file)) {
+                output.write(data);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to cache chunk " + name, e);
+                file.delete();
+                return;
+            }
+
+            synchronized (this) {
+                Long previous = chunks.put(name, (long) data.length);
+                sizeBytes += data.length - (previous != null ? previous : 0);
+                trim();
+            }
+        });
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of reads served from disk
+     * @return hit rate, from 0 to 1
+     */
+    public synchronized float getHitRate() {
+        return hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+    }
+
+    /**
+     * Returns the number of chunks deleted to keep the cache within its size
+     * @return evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    private synchronized void remove(String name) {
+        Long size = chunks.remove(name);
+        if (size != null) {
+            sizeBytes -= size;
+        }
+        new File(directory, name).delete();
+    }
+
+    /**
+     * Internal method which deletes the least recently used chunks until the cache fits. Must be
+     * called holding the lock.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = chunks.entrySet().iterator();
+
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            sizeBytes -= eldest.getValue();
+            evictions++;
+
+            if (!new File(directory, eldest.getKey()).delete() && DEBUG) {
+                Log.w(TAG, "Unable to delete cached chunk " + eldest.getKey());
+            }
+        }
+    }
+
+    private static String getName(String recordingKey, long offset) {
+        return recordingKey + "-" + offset;
+    }
+}
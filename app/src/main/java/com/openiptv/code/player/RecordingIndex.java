@@ -0,0 +1,224 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * A key frame index of a server recording, mapping times to the byte positions of the video key
+ * frames at or before them. Used as the SeekMap of the recording, so a seek opens the file right at
+ * a key frame instead of ExoPlayer searching the file for one.
+ *
+ * Times are relative to the first PTS of the recording, as ExoPlayer's TS extractor reports them.
+ * The index is saved to the app's files directory, one file per recording of each server: the
+ * duration and the size of the file indexed, then the time and position of each entry, as longs.
+ * DVR ids are reused once a recording is deleted, so an index is only used for a file of the size
+ * it was built from. Recordings made on this device by LocalRecorder keep their index next to them.
+ */
+public class RecordingIndex implements SeekMap {
+    private static final String TAG = RecordingIndex.class.getSimpleName();
+    private static final String DIRECTORY = "recording-index";
+    private static final String EXTENSION = ".idx";
+
+    private final long durationUs;
+    private final long fileSize;
+    private final long[] timesUs;
+    private final long[] positions;
+    private final int size;
+    // File the index was loaded from, null if it was built
+    private File file;
+
+    /**
+     * Constructor for a RecordingIndex
+     * @param durationUs duration of the recording
+     * @param fileSize size of the recording file indexed
+     * @param timesUs entry times, ascending
+     * @param positions entry positions
+     * @param size number of entries used in the arrays
+     */
+    public RecordingIndex(long durationUs, long fileSize, long[] timesUs, long[] positions, int size) {
+        this.durationUs = durationUs;
+        this.fileSize = fileSize;
+        this.timesUs = timesUs;
+        this.positions = positions;
+        this.size = size;
+    }
+
+    /**
+     * Returns the index file of a recording
+     * @param context application context
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param recordingId TVH recording id
+     * @return index file
+     */
+    public static File getFile(Context context, String serverKey, int recordingId) {
+        return new File(new File(context.getFilesDir(), DIRECTORY), serverKey + "-" + recordingId + EXTENSION);
+    }
+
+    /**
+     * Returns whether a recording has been indexed
+     * @param context application context
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param recordingId TVH recording id
+     * @return true if an index is saved
+     */
+    public static boolean exists(Context context, String serverKey, int recordingId) {
+        return getFile(context, serverKey, recordingId).isFile();
+    }
+
+    /**
+     * Reads the saved index of a recording
+     * @param context application context
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param recordingId TVH recording id
+     * @return index, or null if the recording hasn't been indexed
+     */
+    public static RecordingIndex load(Context context, String serverKey, int recordingId) {
+        return load(getFile(context, serverKey, recordingId));
+    }
+
+    /**
+     * Reads a saved index
+     * @param file index file
+     * @return index, or null if there is no index
+     */
+    public static RecordingIndex load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long durationUs = input.readLong();
+            long fileSize = input.readLong();
+            int size = (int) ((file.length() - 16) / 16);
+            long[] timesUs = new long[size];
+            long[] positions = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                timesUs[i] = input.readLong();
+                positions[i] = input.readLong();
+            }
+
+            if (DEBUG) {
+                Log.d(TAG, "Loaded " + size + " index entries from " + file.getName());
+            }
+
+            if (size == 0) {
+                return null;
+            }
+
+            RecordingIndex index = new RecordingIndex(durationUs, fileSize, timesUs, positions, size);
+            index.file = file;
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read index " + file.getName(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index of a recording, replacing the file at once so a reader never sees half an index
+     * @param context application context
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param recordingId TVH recording id
+     * @return true if saved
+     */
+    public boolean save(Context context, String serverKey, int recordingId) {
+        return save(getFile(context, serverKey, recordingId));
+    }
+
+    /**
+     * Saves the index, replacing the file at once so a reader never sees half an index
+     * @param file index file
+     * @return true if saved
+     */
+    public boolean save(File file) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return false;
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeLong(durationUs);
+            output.writeLong(fileSize);
+            for (int i = 0; i < size; i++) {
+                output.writeLong(timesUs[i]);
+                output.writeLong(positions[i]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save index " + file.getName(), e);
+            temporary.delete();
+            return false;
+        }
+
+        return temporary.renameTo(file);
+    }
+
+    /**
+     * Deletes the saved index, as it doesn't match the recording any more
+     */
+    public void delete() {
+        if (file != null && file.delete()) {
+            Log.d(TAG, "Deleted stale index " + file.getName());
+        }
+    }
+
+    /**
+     * Returns the size of the recording file indexed
+     * @return size in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of entries
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    @Override
+    public SeekPoints getSeekPoints(long timeUs) {
+        int entry = Arrays.binarySearch(timesUs, 0, size, timeUs);
+        if (entry < 0) {
+            // The entry before the insertion point, or the first if the time is before all of them
+            entry = Math.max(0, -entry - 2);
+        }
+
+        SeekPoint seekPoint = new SeekPoint(timesUs[entry], positions[entry]);
+        if (timesUs[entry] == timeUs || entry == size - 1) {
+            return new SeekPoints(seekPoint);
+        }
+
+        return new SeekPoints(seekPoint, new SeekPoint(timesUs[entry + 1], positions[entry + 1]));
+    }
+}
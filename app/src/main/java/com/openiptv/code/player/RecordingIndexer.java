@@ -0,0 +1,390 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPException;
+import com.openiptv.code.htsp.HTSPMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.openiptv.code.Constants.DEBUG;
+import static com.openiptv.code.Constants.UNIQUE_INDEX_SEQ_ID_BASE;
+
+/**
+ * Builds the RecordingIndex of server recordings in the background. The recording is read with the
+ * HTSP file API, one small chunk at a time, and its TS packets are scanned for video PES packets
+ * flagged as random access points. Recordings which aren't TS, or don't flag their key frames, end
+ * up without an index and keep being searched by ExoPlayer.
+ *
+ * Reads are paced across every indexer, so all indexing together reads at most READ_SIZE every
+ * READ_INTERVAL_MS and playback on the same connection keeps most of the bandwidth.
+ */
+public class RecordingIndexer {
+    private static final String TAG = RecordingIndexer.class.getSimpleName();
+    private static final AtomicInteger nextSeq = new AtomicInteger(UNIQUE_INDEX_SEQ_ID_BASE);
+    // Recordings being indexed by any indexer, by server and id, so two connections don't index the same one
+    private static final Set<String> indexing = new HashSet<>();
+
+    // 512KB/s, read in chunks small enough not to hold up the packets of a stream for long
+    private static final int READ_SIZE = 64 * 1024;
+    private static final long READ_INTERVAL_MS = 125;
+    private static final int TIMEOUT_MS = 10000;
+    // When the next read of any indexer may be sent
+    private static final Object pacingLock = new Object();
+    private static long nextReadMs = 0;
+    // Key frames closer than this to the previous entry are left out, which keeps the index compact
+    private static final long MIN_ENTRY_INTERVAL_US = 1000000;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final long PTS_WRAP = 1L << 33;
+
+    private final Context context;
+    private final BaseConnection connection;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Constructor for a RecordingIndexer
+     * @param context application context
+     * @param connection BaseConnection used for reading recordings
+     */
+    public RecordingIndexer(Context context, BaseConnection connection) {
+        this.context = context;
+        this.connection = connection;
+    }
+
+    /**
+     * Queues a recording to be indexed, unless it already is or is being indexed
+     * @param recordingId TVH recording id
+     */
+    public void index(final int recordingId) {
+        final String serverKey = connection.getServerKey();
+        if (RecordingIndex.exists(context, serverKey, recordingId)) {
+            return;
+        }
+
+        final String indexingKey = serverKey + "-" + recordingId;
+        synchronized (indexing) {
+            if (!indexing.add(indexingKey)) {
+                return;
+            }
+        }
+
+        executor.execute(() -> {
+            try {
+                build(serverKey, recordingId);
+            } finally {
+                synchronized (indexing) {
+                    indexing.remove(indexingKey);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops indexing, abandoning the recording being indexed
+     */
+    public void release() {
+        executor.shutdownNow();
+    }
+
+    private void build(String serverKey, int recordingId) {
+        if (RecordingIndex.exists(context, serverKey, recordingId)) {
+            return;
+        }
+
+        Log.d(TAG, "Indexing recording " + recordingId);
+        long startMs = System.currentTimeMillis();
+
+        Scanner scanner = new Scanner();
+        int fileId = -1;
+        long position = 0;
+
+        try {
+            fileId = open(recordingId);
+
+            byte[] carry = new byte[TS_PACKET_SIZE];
+            int carryLength = 0;
+            long carryPosition = 0;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!awaitReadSlot()) {
+                    break;
+                }
+
+                HTSPMessage request = new HTSPMessage();
+                request.put("method", "fileRead");
+                request.put("id", fileId);
+                request.put("size", (long) READ_SIZE);
+                HTSPMessage response = send(request);
+
+                byte[] data = response.containsKey("data") ? response.getByteArray("data") : new byte[0];
+                if (data.length == 0) {
+                    break;
+                }
+
+                // Complete the packet split across the previous read first
+                int offset = 0;
+                if (carryLength > 0) {
+                    offset = Math.min(TS_PACKET_SIZE - carryLength, data.length);
+                    System.arraycopy(data, 0, carry, carryLength, offset);
+                    carryLength += offset;
+                    if (carryLength == TS_PACKET_SIZE) {
+                        scanner.scan(carry, 0, carryPosition);
+                        carryLength = 0;
+                    }
+                }
+
+                while (offset + TS_PACKET_SIZE <= data.length) {
+                    if (!scanner.scan(data, offset, position + offset)) {
+                        // Lost sync, skip a byte at a time until packets line up again
+                        offset++;
+                        continue;
+                    }
+                    offset += TS_PACKET_SIZE;
+                }
+
+                if (offset < data.length) {
+                    carryLength = data.length - offset;
+                    carryPosition = position + offset;
+                    System.arraycopy(data, offset, carry, 0, carryLength);
+                }
+
+                position += data.length;
+                if (data.length < READ_SIZE) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to index recording " + recordingId + ": " + e.getMessage());
+            return;
+        } finally {
+            close(fileId);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        RecordingIndex index = scanner.getIndex(position);
+        if (index.size() < 2) {
+            Log.d(TAG, "Recording " + recordingId + " has no key frames to index");
+            return;
+        }
+
+        if (index.save(context, serverKey, recordingId)) {
+            Log.d(TAG, "Indexed recording " + recordingId + ", " + index.size() + " entries in "
+                    + (System.currentTimeMillis() - startMs) + "ms");
+        }
+    }
+
+    /**
+     * Internal method which waits until the next read may be sent, keeping all indexers together
+     * to the read rate
+     * @return false if interrupted
+     */
+    private static boolean awaitReadSlot() {
+        long readMs;
+        synchronized (pacingLock) {
+            readMs = Math.max(System.currentTimeMillis(), nextReadMs);
+            nextReadMs = readMs + READ_INTERVAL_MS;
+        }
+
+        long delayMs = readMs - System.currentTimeMillis();
+        if (delayMs <= 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(delayMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private int open(int recordingId) throws IOException {
+        HTSPMessage request = new HTSPMessage();
+        request.put("method", "fileOpen");
+        request.put("file", "dvr/" + recordingId);
+
+        HTSPMessage response = send(request);
+        if (!response.containsKey("id")) {
+            throw new IOException("No file id");
+        }
+
+        return response.getInteger("id");
+    }
+
+    private void close(int fileId) {
+        if (fileId == -1) {
+            return;
+        }
+
+        HTSPMessage request = new HTSPMessage();
+        request.put("method", "fileClose");
+        request.put("id", fileId);
+        request.put("seq", nextSeq.getAndIncrement());
+
+        try {
+            connection.getHTSPMessageDispatcher().sendMessage(request);
+        } catch (HTSPException e) {
+            // The file is closed along with the connection
+        }
+    }
+
+    /**
+     * Internal method which sends a request with a seq of its own and waits for the reply
+     * @param request request
+     * @return reply
+     * @throws IOException if there is no reply, or it is an error
+     */
+    private HTSPMessage send(HTSPMessage request) throws IOException {
+        request.put("seq", nextSeq.getAndIncrement());
+
+        HTSPMessage response;
+        try {
+            response = connection.getHTSPMessageDispatcher().sendMessage(request, TIMEOUT_MS);
+        } catch (HTSPException e) {
+            throw new IOException("HTSP not connected", e);
+        }
+
+        if (response == null) {
+            throw new IOException("No response to " + request.getString("method"));
+        }
+        if (response.containsKey("error")) {
+            throw new IOException(response.getString("error"));
+        }
+
+        return response;
+    }
+
+    /**
+     * Finds the key frames in a sequence of TS packets
+     */
+    private static class Scanner {
+        private long[] timesUs = new long[1024];
+        private long[] positions = new long[1024];
+        private int size = 0;
+
+        private int videoPid = -1;
+        private long firstPts = -1;
+        private long lastPts = -1;
+        private long ptsOffset = 0;
+
+        /**
+         * Scans a TS packet
+         * @param packet array holding the packet
+         * @param offset offset of the packet in the array
+         * @param position position of the packet in the recording
+         * @return false if there is no packet at the offset
+         */
+        boolean scan(byte[] packet, int offset, long position) {
+            if ((packet[offset] & 0xFF) != TS_SYNC_BYTE) {
+                return false;
+            }
+
+            boolean unitStart = (packet[offset + 1] & 0x40) != 0;
+            int adaptationFieldControl = (packet[offset + 3] >> 4) & 0x03;
+            if (!unitStart || (adaptationFieldControl & 0x01) == 0) {
+                return true;
+            }
+
+            int pid = ((packet[offset + 1] & 0x1F) << 8) | (packet[offset + 2] & 0xFF);
+            int payload = offset + 4;
+            boolean randomAccess = false;
+            if ((adaptationFieldControl & 0x02) != 0) {
+                int adaptationFieldLength = packet[offset + 4] & 0xFF;
+                randomAccess = adaptationFieldLength > 0 && (packet[offset + 5] & 0x40) != 0;
+                payload += 1 + adaptationFieldLength;
+            }
+
+            // PES start code, stream id, length, flags, header length and the PTS
+            if (payload + 14 > offset + TS_PACKET_SIZE
+                    || packet[payload] != 0 || packet[payload + 1] != 0 || packet[payload + 2] != 1
+                    || (packet[payload + 7] & 0x80) == 0) {
+                return true;
+            }
+
+            long pts = unwrap(readPts(packet, payload + 9));
+            if (firstPts == -1) {
+                firstPts = pts;
+            }
+            lastPts = Math.max(lastPts, pts);
+
+            int streamId = packet[payload + 3] & 0xFF;
+            boolean video = streamId >= 0xE0 && streamId <= 0xEF;
+            if (video && videoPid == -1) {
+                videoPid = pid;
+            }
+
+            if (pid == videoPid && randomAccess) {
+                long timeUs = toUs(pts - firstPts);
+                if (size == 0 || timeUs - timesUs[size - 1] >= MIN_ENTRY_INTERVAL_US) {
+                    add(timeUs, position);
+                }
+            }
+
+            return true;
+        }
+
+        RecordingIndex getIndex(long fileSize) {
+            return new RecordingIndex(firstPts == -1 ? 0 : toUs(lastPts - firstPts), fileSize, timesUs, positions, size);
+        }
+
+        private void add(long timeUs, long position) {
+            if (size == 0 && timeUs > 0) {
+                // Seeks before the first key frame start from the beginning
+                add(0, 0);
+            }
+
+            if (size == timesUs.length) {
+                timesUs = Arrays.copyOf(timesUs, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+
+            timesUs[size] = timeUs;
+            positions[size] = position;
+            size++;
+
+            if (DEBUG && size % 1000 == 0) {
+                Log.d(TAG, size + " key frames indexed");
+            }
+        }
+
+        /**
+         * Internal method which keeps PTS growing across the 33 bit wrap
+         * @param pts PTS read from the stream
+         * @return PTS since the start of the recording
+         */
+        private long unwrap(long pts) {
+            long unwrapped = pts + ptsOffset;
+            if (lastPts != -1 && unwrapped < lastPts - PTS_WRAP / 2) {
+                ptsOffset += PTS_WRAP;
+                unwrapped += PTS_WRAP;
+            }
+            return unwrapped;
+        }
+
+        private static long readPts(byte[] data, int offset) {
+            return ((long) (data[offset] & 0x0E) << 29)
+                    | ((data[offset + 1] & 0xFF) << 22)
+                    | ((data[offset + 2] & 0xFE) << 14)
+                    | ((data[offset + 3] & 0xFF) << 7)
+                    | ((data[offset + 4] & 0xFF) >> 1);
+        }
+
+        private static long toUs(long pts) {
+            return pts * 100 / 9;
+        }
+    }
+}
@@ -86,6 +86,8 @@ public abstract class SourceReader {
     private int trackType;
     private String sourceType;
     protected TrackOutput trackOutput;
+    // Reset around each payload, so delivering a sample allocates nothing
+    protected final ParsableByteArray sampleScratch = new ParsableByteArray();
     private Context context;
 
 
@@ -107,54 +109,89 @@ public abstract class SourceReader {
      */
     public void buildTrackOutput(ExtractorOutput extractorOutput, HTSPMessage streamMessage)
     {
-        int index = streamMessage.getInteger("index");
+        buildTrackOutput(extractorOutput, streamMessage, streamMessage.getInteger("index"));
+    }
 
+    /**
+     * Set the format type from a htsp message an extractor output, on a given track
+     * @param extractorOutput
+     * @param streamMessage
+     * @param trackId id of the track to output to, a track that already exists is reused
+     */
+    public void buildTrackOutput(ExtractorOutput extractorOutput, HTSPMessage streamMessage, int trackId)
+    {
         sourceType = streamMessage.getString("type");
-        trackOutput = extractorOutput.track(index, trackType);
-        trackOutput.format(buildTrackFormat(streamMessage, index));
+        trackOutput = extractorOutput.track(trackId, trackType);
+        trackOutput.format(buildTrackFormat(streamMessage, trackId));
     }
 
     protected abstract Format buildTrackFormat(HTSPMessage message, int index);
 
     /**
-     * extract stream data from a htsp message
-     * @param streamMessage the message that has been received from the TVHeadend Server
-     * @return If the message is successfully extracted, return true.
+     * extract stream data from a mux packet, without allocating
+     * @param packet the packet that has been received from the TVHeadend Server
+     * @return If the packet is successfully extracted, return true.
      */
-    public boolean extract(HTSPMessage streamMessage)
+    public boolean extract(HTSPMuxPacket packet)
     {
-        byte[] payload = streamMessage.getByteArray("payload");
-
-        if(payload == null || payload.length == 0)
+        if(packet.payload == null || packet.payloadLength == 0)
         {
             // Error extracting stream from HTSPMessage
             return false;
         }
 
-        long pts = streamMessage.getLong("pts");
-        int frameType = streamMessage.getInteger("frametype", -1);
         int flags = 0;
 
-        /**
-         * If the track is a video track and of frameType "I" Or -1
-         */
-        if(trackType == C.TRACK_TYPE_VIDEO)
-        {
-            if(frameType == 'I' || frameType == -1)
-            {
-                flags |= C.BUFFER_FLAG_KEY_FRAME;
-            }
-        }
-        else
+        if(isKeyFrame(packet))
         {
             flags |= C.BUFFER_FLAG_KEY_FRAME;
         }
-        trackOutput.sampleData(new ParsableByteArray(payload), payload.length);
-        trackOutput.sampleMetadata(pts, flags, payload.length, 0, null);
+
+        sampleScratch.reset(packet.payload, packet.payloadOffset + packet.payloadLength);
+        sampleScratch.setPosition(packet.payloadOffset);
+
+        trackOutput.sampleData(sampleScratch, packet.payloadLength);
+        trackOutput.sampleMetadata(packet.pts, flags, packet.payloadLength, 0, null);
 
         return true;
     }
 
+    /**
+     * Outputs an empty, decode only sample. Tracks whose stream is filtered out on the server get
+     * these instead of samples, so the player doesn't treat them as having nothing buffered.
+     * @param timeUs timestamp the track is buffered to
+     */
+    public void outputPlaceholder(long timeUs)
+    {
+        trackOutput.sampleMetadata(timeUs, C.BUFFER_FLAG_KEY_FRAME | C.BUFFER_FLAG_DECODE_ONLY, 0, 0, null);
+    }
+
+    /**
+     * Returns whether the given packet holds a sample that can be decoded on its own.
+     * Every non video sample is a key frame.
+     * @param packet the packet that has been received from the TVHeadend Server
+     * @return true if the sample is a key frame
+     */
+    public boolean isKeyFrame(HTSPMuxPacket packet)
+    {
+        if(trackType != C.TRACK_TYPE_VIDEO)
+        {
+            return true;
+        }
+
+        // If the track is a video track and of frameType "I" Or -1
+        return packet.frameType == 'I' || packet.frameType == HTSPMuxPacket.FRAME_TYPE_UNKNOWN;
+    }
+
+    /**
+     * Returns the ExoPlayer track type of this reader
+     * @return track type, one of the C.TRACK_TYPE_* constants
+     */
+    public int getTrackType()
+    {
+        return trackType;
+    }
+
     /**
      * Converts Presentation timestamp to framerate
      * @param frameDuration
@@ -0,0 +1,161 @@
+package com.openiptv.code.player;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.google.android.exoplayer2.C;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Decides which streams of a subscription the server should send. Only the tracks selected in
+ * the player are enabled, subtitles only while captions are on and video only while not playing
+ * audio only; everything else is filtered out on the server. The extractor reports how the
+ * subscription's streams map onto the player's tracks, the player reports what is selected.
+ */
+public class StreamFilter {
+    private static final String TAG = StreamFilter.class.getSimpleName();
+
+    /**
+     * Sends a filter to the current subscription.
+     */
+    public interface Sender {
+        void filterStreams(List<Integer> enable, List<Integer> disable);
+    }
+
+    private final Sender sender;
+    // Stream index of the current subscription to the track id it feeds
+    private final SparseIntArray trackIdsByStream = new SparseIntArray();
+    private final SparseIntArray trackTypes = new SparseIntArray();
+    // Streams of the current subscription which feed no track
+    private final Set<Integer> unusedStreams = new HashSet<>();
+    private final Set<Integer> disabledTrackIds = new HashSet<>();
+    private Set<Integer> selectedTrackIds;
+    private boolean captionsEnabled = true;
+    private boolean videoEnabled = true;
+    private Set<Integer> lastDisabledStreams = new HashSet<>();
+
+    /**
+     * Constructor for a StreamFilter
+     * @param sender sends the filter to the current subscription
+     */
+    public StreamFilter(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Forgets the selection, as a new channel is being tuned. Nothing is filtered until the new
+     * tracks have been selected.
+     */
+    public synchronized void reset() {
+        selectedTrackIds = null;
+        disabledTrackIds.clear();
+        trackIdsByStream.clear();
+        trackTypes.clear();
+        unusedStreams.clear();
+        lastDisabledStreams = new HashSet<>();
+    }
+
+    /**
+     * Called by the extractor whenever a subscriptionStart has been mapped onto tracks. A new
+     * subscription sends every stream, so the filter is sent again.
+     * @param streamTrackIds stream index to track id, for streams which feed a track
+     * @param streamTrackTypes stream index to C.TRACK_TYPE_*, for streams which feed a track
+     * @param unused stream indices which feed no track
+     */
+    public synchronized void onStreamsMapped(SparseIntArray streamTrackIds, SparseIntArray streamTrackTypes, Set<Integer> unused) {
+        trackIdsByStream.clear();
+        trackTypes.clear();
+        for (int i = 0; i < streamTrackIds.size(); i++) {
+            trackIdsByStream.put(streamTrackIds.keyAt(i), streamTrackIds.valueAt(i));
+            trackTypes.put(streamTrackIds.keyAt(i), streamTrackTypes.get(streamTrackIds.keyAt(i)));
+        }
+
+        unusedStreams.clear();
+        unusedStreams.addAll(unused);
+
+        lastDisabledStreams = new HashSet<>();
+        apply();
+    }
+
+    /**
+     * Called by the player whenever the track selection changes.
+     * @param trackIds ids of the selected tracks
+     */
+    public synchronized void setSelectedTracks(Set<Integer> trackIds) {
+        selectedTrackIds = new HashSet<>(trackIds);
+        apply();
+    }
+
+    /**
+     * Turns subtitle streams on or off.
+     * @param enabled whether captions are shown
+     */
+    public synchronized void setCaptionsEnabled(boolean enabled) {
+        captionsEnabled = enabled;
+        apply();
+    }
+
+    /**
+     * Turns video streams on or off.
+     * @param enabled false to play audio only
+     */
+    public synchronized void setVideoEnabled(boolean enabled) {
+        videoEnabled = enabled;
+        apply();
+    }
+
+    /**
+     * Returns whether a track is currently filtered out on the server
+     * @param trackId track id
+     * @return true if the track receives no samples
+     */
+    public synchronized boolean isTrackDisabled(int trackId) {
+        return disabledTrackIds.contains(trackId);
+    }
+
+    /**
+     * Internal method which works out the streams to disable, and sends the filter if it changed.
+     */
+    private void apply() {
+        if (selectedTrackIds == null || trackIdsByStream.size() == 0) {
+            return;
+        }
+
+        List<Integer> enable = new ArrayList<>();
+        Set<Integer> disable = new HashSet<>(unusedStreams);
+        disabledTrackIds.clear();
+
+        for (int i = 0; i < trackIdsByStream.size(); i++) {
+            int streamIndex = trackIdsByStream.keyAt(i);
+            int trackId = trackIdsByStream.valueAt(i);
+            int trackType = trackTypes.get(streamIndex);
+            boolean enabled = selectedTrackIds.contains(trackId)
+                    && (trackType != C.TRACK_TYPE_TEXT || captionsEnabled)
+                    && (trackType != C.TRACK_TYPE_VIDEO || videoEnabled);
+
+            if (enabled) {
+                enable.add(streamIndex);
+            } else {
+                disable.add(streamIndex);
+                disabledTrackIds.add(trackId);
+            }
+        }
+
+        if (disable.equals(lastDisabledStreams)) {
+            return;
+        }
+        lastDisabledStreams = disable;
+
+        if (DEBUG) {
+            Log.d(TAG, "Filtering streams, enabled " + enable + ", disabled " + disable);
+        }
+
+        sender.filterStreams(enable, new ArrayList<>(disable));
+    }
+}
@@ -0,0 +1,164 @@
+package com.openiptv.code.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.openiptv.code.htsp.HTSPMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * The streams each channel last started with, kept in memory and in the app's cache directory.
+ * On tune the data source hands the extractor the cached streams ahead of the server's reply, so
+ * the tracks are built and the decoders configured while the subscription is still starting. The
+ * real subscriptionStart is then mapped onto those tracks, correcting anything that changed.
+ *
+ * Streams are keyed by the server, channel and stream profile, as a transcoding profile changes
+ * them. The directory is read in the background when the cache is created, so a tune never waits
+ * on the disk; a channel whose streams haven't been read yet is a miss.
+ */
+public class StreamFormatCache {
+    private static final String TAG = StreamFormatCache.class.getSimpleName();
+    private static final String DIRECTORY = "stream-formats";
+
+    // Set on the subscriptionStart messages made from the cache, so they are told from the server's
+    public static final String CACHED_KEY = "cached";
+
+    private static StreamFormatCache instance;
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // Key of a channel to its streams
+    private final Map<String, HTSPMessage> channels = new HashMap<>();
+
+    private StreamFormatCache(File directory) {
+        this.directory = directory;
+        writer.execute(this::loadAll);
+    }
+
+    /**
+     * Returns the cache
+     * @param context application context, the streams are kept in its cache directory
+     * @return cache
+     */
+    public static synchronized StreamFormatCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new StreamFormatCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns the key of a channel's streams
+     * @param serverKey key of the server, from BaseConnection.getServerKey
+     * @param channelId TVH channelId
+     * @param streamProfile stream profile subscribed with
+     * @return key
+     */
+    public static String getKey(String serverKey, long channelId, String streamProfile) {
+        return (serverKey + "-" + channelId + "-" + streamProfile).replaceAll("[^A-Za-z0-9._@-]", "_");
+    }
+
+    /**
+     * Returns a subscriptionStart with the streams a channel last started with, without touching
+     * the disk
+     * @param key key of the channel, from getKey
+     * @return message marked with CACHED_KEY, or null if the channel hasn't been seen
+     */
+    public HTSPMessage get(String key) {
+        synchronized (channels) {
+            return channels.get(key);
+        }
+    }
+
+    /**
+     * Records the streams of a subscriptionStart from the server, and saves them in the background
+     * @param key key of the channel, from getKey
+     * @param subscriptionStart subscriptionStart message
+     */
+    public void put(final String key, HTSPMessage subscriptionStart) {
+        if (!subscriptionStart.containsKey("streams") || subscriptionStart.containsKey(CACHED_KEY)) {
+            return;
+        }
+
+        final HTSPMessage message = new HTSPMessage();
+        message.put("method", "subscriptionStart");
+        message.put("streams", subscriptionStart.get("streams"));
+        message.put(CACHED_KEY, 1);
+
+        synchronized (channels) {
+            channels.put(key, message);
+        }
+
+        writer.execute(() -> save(key, message));
+    }
+
+    /**
+     * Internal method which reads every saved channel into memory, keeping any put meanwhile
+     */
+    private void loadAll() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            HTSPMessage message = load(file);
+            if (message != null) {
+                synchronized (channels) {
+                    if (!channels.containsKey(file.getName())) {
+                        channels.put(file.getName(), message);
+                    }
+                }
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Loaded streams of " + files.length + " channels");
+        }
+    }
+
+    private HTSPMessage load(File file) {
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (HTSPMessage) input.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Discarding unreadable streams " + file.getName(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void save(String key, HTSPMessage message) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return;
+        }
+
+        File file = new File(directory, key);
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeObject(message);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save streams " + key, e);
+            file.delete();
+            return;
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Saved streams " + key);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.openiptv.code.player;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.ProfileManager;
+import com.openiptv.code.player.utils.DecoderCapabilities;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks a stream profile for each channel that the device can decode in hardware. The video codec
+ * of each channel is learnt from its first subscriptionStart on the server, as channel ids of
+ * different servers and accounts collide. If the device has no hardware
+ * decoder for it, a transcoding profile on the server is used instead.
+ */
+public class StreamProfileSelector {
+    private static final String TAG = StreamProfileSelector.class.getSimpleName();
+
+    // Output codecs to transcode to, preferring the most efficient the device can decode
+    private static final String[] TRANSCODE_CODECS = {"HEVC", "H264", "MPEG2VIDEO"};
+
+    // Video codec of each channel seen, by server key and channel id, shared by every player in the
+    // process
+    private static final Map<String, String> channelCodecs = new HashMap<>();
+
+    private final ProfileManager profileManager;
+    private final String serverKey;
+
+    /**
+     * Constructor for a StreamProfileSelector
+     * @param connection connection to the server, which lists the profiles available on it
+     */
+    public StreamProfileSelector(@NonNull BaseConnection connection) {
+        this.profileManager = connection.getProfileManager();
+        this.serverKey = connection.getServerKey();
+    }
+
+    /**
+     * Returns the profile to subscribe to a channel with.
+     * @param channelId TVH channelId
+     * @param preferredProfile profile that would otherwise be used
+     * @return a profile the device can decode in hardware, or preferredProfile
+     */
+    public String selectProfile(long channelId, @NonNull String preferredProfile) {
+        String channelCodec;
+        synchronized (channelCodecs) {
+            channelCodec = channelCodecs.get(getKey(channelId));
+        }
+
+        if (channelCodec == null) {
+            // Nothing is known about the channel yet
+            return preferredProfile;
+        }
+
+        String outputCodec = getProfileVideoCodec(preferredProfile);
+        if (outputCodec == null) {
+            outputCodec = channelCodec;
+        }
+
+        if (DecoderCapabilities.hasHardwareDecoder(outputCodec)) {
+            return preferredProfile;
+        }
+
+        for (String codec : TRANSCODE_CODECS) {
+            if (!DecoderCapabilities.hasHardwareDecoder(codec)) {
+                continue;
+            }
+
+            for (String profile : profileManager.getProfiles()) {
+                if (codec.equals(getProfileVideoCodec(profile))) {
+                    Log.i(TAG, "No hardware decoder for " + outputCodec + " on channel " + channelId + ", using profile " + profile);
+                    return profile;
+                }
+            }
+        }
+
+        Log.w(TAG, "No hardware decoder for " + outputCodec + " on channel " + channelId + ", and no transcoding profile to avoid it");
+        return preferredProfile;
+    }
+
+    /**
+     * Returns the video codec a channel of this server was last seen with
+     * @param channelId TVH channelId
+     * @return TVH stream type, or null if the channel hasn't been seen
+     */
+    public String getChannelCodec(long channelId) {
+        synchronized (channelCodecs) {
+            return channelCodecs.get(getKey(channelId));
+        }
+    }
+
+    /**
+     * Records the video codec of a channel from its subscriptionStart.
+     * @param channelId TVH channelId
+     * @param message subscriptionStart message
+     */
+    public void onSubscriptionStart(long channelId, @NonNull HTSPMessage message) {
+        for (HTSPMessage stream : message.getHtspMessageArray("streams")) {
+            String type = stream.getString("type");
+            if (DecoderCapabilities.getVideoMimeType(type) != null) {
+                synchronized (channelCodecs) {
+                    channelCodecs.put(getKey(channelId), type);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Internal method which returns the key of a channel of this selector's server
+     * @param channelId TVH channelId
+     * @return key
+     */
+    private String getKey(long channelId) {
+        return serverKey + "-" + channelId;
+    }
+
+    /**
+     * Internal method which guesses the video codec a profile outputs from its name, as
+     * getProfiles only describes profiles by name.
+     * @param profile profile name
+     * @return TVH stream type, or null if the profile passes the channel's video through
+     */
+    static String getProfileVideoCodec(String profile) {
+        String name = profile.toLowerCase(Locale.ENGLISH);
+
+        if (name.contains("hevc") || name.contains("h265") || name.contains("x265")) {
+            return "HEVC";
+        }
+        if (name.contains("h264") || name.contains("avc") || name.contains("x264")) {
+            return "H264";
+        }
+        if (name.contains("mpeg2")) {
+            return "MPEG2VIDEO";
+        }
+
+        return null;
+    }
+}
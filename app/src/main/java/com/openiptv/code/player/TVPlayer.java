@@ -7,7 +7,6 @@ import android.media.tv.TvTrackInfo;
 import android.net.Uri;
 import android.os.Handler;
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Display;
@@ -21,13 +20,16 @@ import android.widget.Toast;
 
 
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.RendererCapabilities;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.ts.TsExtractor;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.TrackGroup;
@@ -39,34 +41,58 @@ import com.google.android.exoplayer2.trackselection.MappingTrackSelector;
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.ui.SubtitleView;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.FileDataSource;
 import com.google.android.exoplayer2.util.MimeTypes;
-import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoListener;
 
-import com.openiptv.code.DatabaseActions;
-import com.openiptv.code.TVHeadendAccount;
+import com.openiptv.code.PreferenceUtils;
 import com.openiptv.code.R;
-
+import com.openiptv.code.epg.Channel;
 import com.openiptv.code.epg.RecordedProgram;
+
 import com.openiptv.code.htsp.BaseConnection;
 import com.openiptv.code.htsp.HTSPException;
-import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.SubscriptionPolicy;
+import com.openiptv.code.player.utils.PlaybackMetrics;
 import com.openiptv.code.player.utils.TimeshiftUtils;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.openiptv.code.Constants.DEBUG;
-
-public class TVPlayer implements Player.EventListener {
+import static com.openiptv.code.Constants.DEFAULT_STREAM_PROFILE;
+import static com.openiptv.code.Constants.PREFERENCE_ADAPTIVE_PROFILES;
+import static com.openiptv.code.Constants.PREFERENCE_LEGACY_TRICK_PLAY;
+import static com.openiptv.code.Constants.PREFERENCE_LIVE_LATENCY_TARGET;
+import static com.openiptv.code.Constants.PREFERENCE_LOCAL_TIMESHIFT_SIZE;
+import static com.openiptv.code.Constants.PREFERENCE_RECORDING_CACHE_SIZE;
+import static com.openiptv.code.Constants.PREFERENCE_PRE_SUBSCRIPTIONS;
+import static com.openiptv.code.Constants.PREFERENCE_PRE_SUBSCRIPTION_MEMORY;
+import static com.openiptv.code.Constants.PREFERENCE_STREAM_PROFILE;
+import static com.openiptv.code.Constants.PREFERENCE_ZAPPING_MODE;
+
+public class TVPlayer implements Player.EventListener, VideoListener {
     private SimpleExoPlayer player;
     private Context context;
     private Surface surface;
     private MediaSource mediaSource;
     private BaseConnection connection;
     private HTSPDataSource.Factory htspSubscriptionDataSourceFactory;
+    private HTSPDataSource.Factory htspFileDataSourceFactory;
+    private RecordingIndexer recordingIndexer;
     private HTSPDataSource dataSource;
     private ExtractorsFactory extractorsFactory;
+    private ExtractorsFactory htspExtractorsFactory;
+    private PlaybackMetrics metrics;
+    private PreSubscriptionManager preSubscriptionManager;
+    private AdaptiveProfileController adaptiveProfileController;
+    private LiveLoadControl liveLoadControl;
+    private LiveBufferMonitor liveBufferMonitor;
+    private LiveEdgeController liveEdgeController;
+    private StreamFilter streamFilter;
 
     private View overlayView;
     private View subtitleView;
@@ -78,9 +104,28 @@ public class TVPlayer implements Player.EventListener {
     private ExtendedTrackSelector trackSelector;
     private float currentVolume;
     private TimeshiftUtils.Rewinder rewinder;
+    private TimeshiftUtils.TrickPlayMeter trickPlayMeter;
+    private TrickPlay trickPlay;
+    private boolean legacyTrickPlay;
+    private boolean zappingMode;
+    // Audio only was asked for, as opposed to following from having no surface
+    private boolean audioOnlyRequested;
+    private boolean audioOnly;
 
     private static final String TAG = TVPlayer.class.getSimpleName();
 
+    // Start-up buffer used when zapping, ExoPlayer's default waits for 2.5s of media
+    private static final int ZAPPING_BUFFER_FOR_PLAYBACK_MS = 500;
+    private static final int ZAPPING_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS = 2000;
+    // Live buffer targets, which the LiveLoadControl raises after rebuffers
+    private static final int LIVE_BUFFER_FOR_PLAYBACK_MS = 1500;
+    private static final int LIVE_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS = 3000;
+    private static final int LIVE_MAX_BUFFER_MS = 30000;
+    private static final int DEFAULT_PRE_SUBSCRIPTION_MEMORY_MB = 16;
+    private static final int DEFAULT_LOCAL_TIMESHIFT_SIZE_MB = 64;
+    private static final int DEFAULT_RECORDING_CACHE_SIZE_MB = 256;
+    private static final int DEFAULT_LIVE_LATENCY_TARGET_S = 5;
+
     /**
      * This interface is used to listen for changes to the available tracks. Primarily used in
      * TVInputService
@@ -104,20 +149,101 @@ public class TVPlayer implements Player.EventListener {
         Log.d("TVPlayer", "Created!");
         this.context = context;
 
+        PreferenceUtils preferenceUtils = new PreferenceUtils(context);
+        zappingMode = preferenceUtils.getBoolean(PREFERENCE_ZAPPING_MODE);
+        legacyTrickPlay = preferenceUtils.getBoolean(PREFERENCE_LEGACY_TRICK_PLAY);
+        int preSubscriptions = preferenceUtils.getStringAsInteger(PREFERENCE_PRE_SUBSCRIPTIONS, 0);
+        metrics = new PlaybackMetrics();
+
+        String streamProfile = preferenceUtils.getString(PREFERENCE_STREAM_PROFILE);
+        if (TextUtils.isEmpty(streamProfile)) {
+            streamProfile = DEFAULT_STREAM_PROFILE;
+        }
+
+        // Adaptive switching needs at least two profiles to step between
+        List<String> adaptiveProfiles = parseProfiles(preferenceUtils.getString(PREFERENCE_ADAPTIVE_PROFILES));
+        int initialLevel = Math.max(adaptiveProfiles.indexOf(streamProfile), 0);
+        if (adaptiveProfiles.size() > 1) {
+            streamProfile = adaptiveProfiles.get(initialLevel);
+        }
+
         trackSelector = new ExtendedTrackSelector(context);
-        this.player = new SimpleExoPlayer.Builder(context)
-                .setTrackSelector(trackSelector)
-                .build();
+        SimpleExoPlayer.Builder builder = new SimpleExoPlayer.Builder(context)
+                .setTrackSelector(trackSelector);
+
+        DefaultLoadControl.Builder recordingLoadControl = new DefaultLoadControl.Builder();
+        if (zappingMode) {
+            recordingLoadControl.setBufferDurationsMs(
+                    DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+                    DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+                    ZAPPING_BUFFER_FOR_PLAYBACK_MS,
+                    ZAPPING_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+        }
+        liveLoadControl = new LiveLoadControl(recordingLoadControl.createDefaultLoadControl(), metrics,
+                zappingMode ? ZAPPING_BUFFER_FOR_PLAYBACK_MS : LIVE_BUFFER_FOR_PLAYBACK_MS,
+                zappingMode ? ZAPPING_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS : LIVE_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
+                LIVE_MAX_BUFFER_MS);
+        builder.setLoadControl(liveLoadControl);
+
+        this.player = builder.build();
 
         this.player.addListener(this);
+        this.player.addVideoListener(this);
         this.connection = connection;
 
-        htspSubscriptionDataSourceFactory = new HTSPSubscriptionDataSource.Factory(context, connection, "htsp");
+        if (preSubscriptions > 0) {
+            long memoryBudget = preferenceUtils.getStringAsInteger(PREFERENCE_PRE_SUBSCRIPTION_MEMORY, DEFAULT_PRE_SUBSCRIPTION_MEMORY_MB) * 1024L * 1024L;
+            preSubscriptionManager = new PreSubscriptionManager(context, connection, streamProfile,
+                    SubscriptionPolicy.fromPreferences(context, SubscriptionPolicy.Use.PREVIEW), preSubscriptions, memoryBudget);
+        }
+
+        HTSPSubscriptionDataSource.Factory subscriptionDataSourceFactory = new HTSPSubscriptionDataSource.Factory(context, connection, streamProfile)
+                .setMetrics(metrics)
+                .setPreSubscriptionManager(preSubscriptionManager)
+                .setProfileSelector(new StreamProfileSelector(connection))
+                .setPolicy(SubscriptionPolicy.fromPreferences(context, SubscriptionPolicy.Use.LIVE))
+                .setLocalTimeshiftSize(preferenceUtils.getStringAsInteger(PREFERENCE_LOCAL_TIMESHIFT_SIZE, DEFAULT_LOCAL_TIMESHIFT_SIZE_MB) * 1024L * 1024L);
+        if (zappingMode) {
+            // Tracks and decoders are set up from the channel's last streams while it is tuning
+            subscriptionDataSourceFactory.setStreamFormatCache(StreamFormatCache.getInstance(context));
+        }
+        htspSubscriptionDataSourceFactory = subscriptionDataSourceFactory;
+        LiveEdge liveEdge = new LiveEdge();
+        liveBufferMonitor = new LiveBufferMonitor(new Handler(), player, subscriptionDataSourceFactory, liveLoadControl, liveEdge, metrics);
+        int liveLatencyTarget = preferenceUtils.getStringAsInteger(PREFERENCE_LIVE_LATENCY_TARGET, DEFAULT_LIVE_LATENCY_TARGET_S);
+        if (liveLatencyTarget > 0) {
+            liveEdgeController = new LiveEdgeController(new Handler(), player, subscriptionDataSourceFactory, liveLoadControl, liveEdge, metrics, liveLatencyTarget * 1000L);
+        }
+        long recordingCacheSize = preferenceUtils.getStringAsInteger(PREFERENCE_RECORDING_CACHE_SIZE, DEFAULT_RECORDING_CACHE_SIZE_MB) * 1024L * 1024L;
+        RecordingCache recordingCache = recordingCacheSize > 0 ? RecordingCache.getInstance(context, recordingCacheSize) : null;
+        htspFileDataSourceFactory = new HTSPFileDataSource.Factory(context, connection, metrics, recordingCache);
+        recordingIndexer = new RecordingIndexer(context, connection);
+
+        if (adaptiveProfiles.size() > 1) {
+            Log.d(TAG, "Adaptive stream profiles " + adaptiveProfiles + ", starting on " + streamProfile);
+            adaptiveProfileController = new AdaptiveProfileController(new Handler(), player, connection,
+                    subscriptionDataSourceFactory, metrics, adaptiveProfiles, initialLevel);
+        }
+
+        // Streams the player isn't using are filtered out on the server, to save bandwidth
+        streamFilter = new StreamFilter((enable, disable) -> {
+            HTSPDataSource currentDataSource = subscriptionDataSourceFactory.getCurrentDataSource();
+            if (currentDataSource instanceof HTSPSubscriptionDataSource) {
+                ((HTSPSubscriptionDataSource) currentDataSource).filterStreams(enable, disable);
+            }
+        });
+
         extractorsFactory = new ExtendedExtractorsFactory(context);
+        trickPlay = new TrickPlay();
+        htspExtractorsFactory = new HTSPExtractorsFactory(context, metrics, zappingMode)
+                .setStreamFilter(streamFilter)
+                .setTrickPlay(trickPlay)
+                .setLiveEdge(liveEdge);
 
         listeners = new ArrayList<>();
 
         rewinder = new TimeshiftUtils.Rewinder(new Handler(), player, this);
+        trickPlayMeter = new TimeshiftUtils.TrickPlayMeter(player, metrics);
     }
 
     /**
@@ -128,9 +254,45 @@ public class TVPlayer implements Player.EventListener {
         this.surface = surface;
         player.setVideoSurface(surface);
 
+        // Nothing can show the video without a surface, so only the audio is received and decoded
+        updateAudioOnly();
+
         return true;
     }
 
+    /**
+     * Plays audio only, for radio channels and listening in the background. The video stream is
+     * filtered out on the server and the video renderer disabled; when turned off again video
+     * resumes on its next key frame. Audio only is also used whenever there is no surface.
+     * @param audioOnly whether to play audio only
+     */
+    public void setAudioOnly(boolean audioOnly) {
+        audioOnlyRequested = audioOnly;
+        updateAudioOnly();
+    }
+
+    /**
+     * Internal method which applies audio only, if asked for or without a surface
+     */
+    private void updateAudioOnly() {
+        boolean audioOnly = audioOnlyRequested || surface == null;
+        if (audioOnly == this.audioOnly) {
+            return;
+        }
+        this.audioOnly = audioOnly;
+
+        Log.d(TAG, audioOnly ? "Playing audio only" : "Playing video");
+        streamFilter.setVideoEnabled(!audioOnly);
+
+        DefaultTrackSelector.ParametersBuilder parameters = trackSelector.buildUponParameters();
+        for (int i = 0; i < player.getRendererCount(); i++) {
+            if (player.getRendererType(i) == C.TRACK_TYPE_VIDEO) {
+                parameters.setRendererDisabled(i, audioOnly);
+            }
+        }
+        trackSelector.setParameters(parameters);
+    }
+
     /**
      * Prepares the ExoPlayer MediaSource. Can be either a recording or Live TV Stream. Currently the
      * recording implementation is hard-coded, and can only play ONE stream.
@@ -138,19 +300,91 @@ public class TVPlayer implements Player.EventListener {
      * @param recording is this source a recording
      */
     public void prepare(Uri channelUri, boolean recording) {
+        boolean wasLive = mediaSource != null && !this.recording;
         this.recording = recording;
 
         if (!recording) {
+            metrics.startTune();
+            streamFilter.reset();
+            trickPlay.stop();
 
-            mediaSource = new ProgressiveMediaSource.Factory(htspSubscriptionDataSourceFactory, extractorsFactory).createMediaSource(channelUri);
+            if (wasLive && switchChannel(channelUri)) {
+                return;
+            }
+
+            // TV Provider channel URIs are always HTSP subscriptions, so skip sniffing
+            ExtractorsFactory liveExtractorsFactory = "content".equals(channelUri.getScheme()) ? htspExtractorsFactory : extractorsFactory;
+            mediaSource = new ProgressiveMediaSource.Factory(htspSubscriptionDataSourceFactory, liveExtractorsFactory).createMediaSource(channelUri);
+
+            if (adaptiveProfileController != null) {
+                adaptiveProfileController.start();
+            }
+            liveBufferMonitor.start();
+            if (liveEdgeController != null) {
+                liveEdgeController.start();
+            }
 
         } else {
 
+            liveBufferMonitor.stop();
+            if (liveEdgeController != null) {
+                liveEdgeController.stop();
+            }
+            liveLoadControl.setLive(false);
             mediaSource = buildRecordingMediaSource(channelUri);
         }
         player.prepare(mediaSource);
     }
 
+    /**
+     * Internal method which moves live playback to another channel without preparing the player
+     * again. The data source swaps its subscription, and a seek to 0 drops what the player buffered
+     * of the old channel; the player, its renderers and decoders, the data source buffer and the
+     * extractor are all kept. Only done when zapping mode is on and the new channel's video is known
+     * to be compatible, otherwise the caller prepares the player as usual.
+     * @param channelUri TV Provider uri of the channel to switch to
+     * @return true if switched
+     */
+    private boolean switchChannel(Uri channelUri)
+    {
+        if (!zappingMode || !"content".equals(channelUri.getScheme())) {
+            return false;
+        }
+
+        int state = player.getPlaybackState();
+        if (state == Player.STATE_IDLE || state == Player.STATE_ENDED) {
+            return false;
+        }
+
+        HTSPDataSource currentDataSource = htspSubscriptionDataSourceFactory.getCurrentDataSource();
+        Integer channelId = Channel.getChannelIdFromChannelUri(context, channelUri);
+        if (!(currentDataSource instanceof HTSPSubscriptionDataSource) || channelId == null
+                || !((HTSPSubscriptionDataSource) currentDataSource).canSwitchChannel(channelId)) {
+            return false;
+        }
+
+        try {
+            ((HTSPSubscriptionDataSource) currentDataSource).switchChannel(channelId);
+        } catch (HTSPException e) {
+            Log.w(TAG, "Unable to switch channel in place, preparing the player", e);
+            return false;
+        }
+
+        rewinder.reset();
+        player.setPlaybackParameters(new PlaybackParameters(1));
+        player.seekTo(0);
+
+        if (adaptiveProfileController != null) {
+            adaptiveProfileController.start();
+        }
+        liveBufferMonitor.start();
+        if (liveEdgeController != null) {
+            liveEdgeController.start();
+        }
+
+        return true;
+    }
+
     /**
      * Start the TVPlayer
      */
@@ -163,7 +397,21 @@ public class TVPlayer implements Player.EventListener {
      */
     public void stop() {
         Log.d(TAG, "Released TVPlayer");
+        trickPlayMeter.stop();
+        metrics.log();
+        if (adaptiveProfileController != null)
+        {
+            adaptiveProfileController.stop();
+        }
+        liveBufferMonitor.stop();
+        if (liveEdgeController != null) {
+            liveEdgeController.stop();
+        }
         player.release();
+        if (preSubscriptionManager != null)
+        {
+            preSubscriptionManager.release();
+        }
         //connection.stop();
         if (surface != null)
         {
@@ -173,6 +421,9 @@ public class TVPlayer implements Player.EventListener {
         {
             dataSource.release(); // Releasing the dataSource fixes duplication of subscriptions.
         }
+        // Closes the recording on the server
+        htspFileDataSourceFactory.releaseCurrentDataSource();
+        recordingIndexer.release();
         if(mediaSource != null)
         {
             mediaSource.releaseSource(null);
@@ -185,7 +436,9 @@ public class TVPlayer implements Player.EventListener {
     public void resume() {
         if(rewinder.isRunning()) {
             rewinder.stop();
+            trickPlayMeter.stop();
         }
+        stopTrickPlay();
         player.setPlaybackParameters(new PlaybackParameters(1));
 
 
@@ -207,7 +460,9 @@ public class TVPlayer implements Player.EventListener {
         player.setPlayWhenReady(false);
         if(rewinder.isRunning()) {
             rewinder.stop();
+            trickPlayMeter.stop();
         }
+        stopTrickPlay();
 
         dataSource = htspSubscriptionDataSourceFactory.getCurrentDataSource();
         if (dataSource != null) {
@@ -216,8 +471,9 @@ public class TVPlayer implements Player.EventListener {
     }
 
     /**
-     * Sets the PlayBackParams for the DataSource AND ExoPlayer. Currently only FAST FORWARD can be
-     * implemented due to Clock Limitations. FAST REWIND is being worked on using a runnable.
+     * Sets the PlayBackParams for the DataSource AND ExoPlayer. Live rewind and fast-forward above
+     * 2x use keyframe-only trick play, unless the legacy Rewinder is selected. Recordings rewind
+     * with the Rewinder, which seeks ExoPlayer in small steps.
      * @param playbackParams to set
      */
     public void setPlaybackParams(PlaybackParams playbackParams)
@@ -225,12 +481,20 @@ public class TVPlayer implements Player.EventListener {
         player.setPlayWhenReady(false);
         if(rewinder.isRunning()) {
             rewinder.stop();
+            trickPlayMeter.stop();
         }
 
+        if (!recording && !legacyTrickPlay && TrickPlay.isTrickPlaySpeed(playbackParams.getSpeed())) {
+            startTrickPlay(playbackParams.getSpeed());
+            return;
+        }
+        stopTrickPlay();
+
         if(recording)
         {
             if(playbackParams.getSpeed() < 1)
             {
+                trickPlayMeter.start("rewinder");
                 rewinder.start(playbackParams.getSpeed());
             }
             else {
@@ -248,6 +512,7 @@ public class TVPlayer implements Player.EventListener {
             if(playbackParams.getSpeed() < 1)
             {
                 dataSource.setSpeed(AndroidTVSpeedToTVH(playbackParams.getSpeed()));
+                trickPlayMeter.start("rewinder");
                 rewinder.start(playbackParams.getSpeed());
             }
             else {
@@ -258,6 +523,79 @@ public class TVPlayer implements Player.EventListener {
         }
     }
 
+    /**
+     * Internal method which starts keyframe-only trick play, or changes its speed. The player
+     * seeks to where it is, so nothing buffered at the old speed is played, and from then on the
+     * server sends at the trick play speed and only key frames are kept.
+     * @param speed Android TV playback speed
+     */
+    private void startTrickPlay(float speed) {
+        dataSource = htspSubscriptionDataSourceFactory.getCurrentDataSource();
+        if (!(dataSource instanceof HTSPSubscriptionDataSource)) {
+            Log.w(TAG, "Unable to start trick play, no HtspDataSource available");
+            return;
+        }
+
+        long positionMs = player.getCurrentPosition();
+        if (trickPlay.isActive() && trickPlay.getSourcePositionUs() != C.TIME_UNSET) {
+            // The player's position is on the trick play timeline, carry on from the frame shown
+            positionMs = trickPlay.getSourcePositionUs() / 1000;
+        }
+
+        trickPlay.setSpeed(speed);
+        Log.d(TAG, "Starting trick play at " + trickPlay.getSpeed() + "x from " + positionMs + "ms");
+
+        ((HTSPSubscriptionDataSource) dataSource).setKeyframesOnly(true);
+        dataSource.setSpeed(trickPlay.getServerSpeed());
+        trickPlayMeter.start("keyframe");
+
+        if (adaptiveProfileController != null) {
+            // Trick play says nothing about the link, and a new subscription would lose the timeshift
+            adaptiveProfileController.stop();
+        }
+        // Buffering on key frames alone isn't a rebuffer, and trick play sets its own speed
+        liveBufferMonitor.stop();
+        if (liveEdgeController != null) {
+            liveEdgeController.stop();
+        }
+
+        player.setPlaybackParameters(new PlaybackParameters(1));
+        player.seekTo(positionMs);
+        player.setPlayWhenReady(true);
+    }
+
+    /**
+     * Internal method which stops trick play, if active, and seeks back to the last key frame
+     * shown so normal playback carries on from there. The server's speed is left to the caller.
+     */
+    private void stopTrickPlay() {
+        if (!trickPlay.isActive()) {
+            return;
+        }
+
+        long sourcePositionUs = trickPlay.getSourcePositionUs();
+        trickPlay.stop();
+        trickPlayMeter.stop();
+
+        dataSource = htspSubscriptionDataSourceFactory.getCurrentDataSource();
+        if (dataSource instanceof HTSPSubscriptionDataSource) {
+            ((HTSPSubscriptionDataSource) dataSource).setKeyframesOnly(false);
+        }
+
+        Log.d(TAG, "Stopping trick play at " + sourcePositionUs + "us");
+        if (sourcePositionUs != C.TIME_UNSET) {
+            player.seekTo(sourcePositionUs / 1000);
+        }
+
+        if (adaptiveProfileController != null) {
+            adaptiveProfileController.start();
+        }
+        liveBufferMonitor.start();
+        if (liveEdgeController != null) {
+            liveEdgeController.start();
+        }
+    }
+
     /**
      * Returns the start position for the TV Input / ExoPlayer
      * @return startPosition
@@ -302,7 +640,17 @@ public class TVPlayer implements Player.EventListener {
                 //Log.d(TAG, "Calculated CurrentPos R: " + rewinder.getCurrentPos());
                 return rewinder.getCurrentPos();
             }
+            if (trickPlay.isActive() && trickPlay.getSourcePositionUs() != C.TIME_UNSET) {
+                return getTimeshiftStartPosition() + trickPlay.getSourcePositionUs() / 1000;
+            }
             long offset = dataSource.getTimeshiftOffsetPts();
+            if (dataSource instanceof HTSPSubscriptionDataSource && ((HTSPSubscriptionDataSource) dataSource).isShiftedLocally()) {
+                // The subscription is still where it was, playback is behind it by what was seeked back locally
+                long endPts = ((HTSPSubscriptionDataSource) dataSource).getLocalTimeshiftEndPts();
+                if (endPts != C.TIME_UNSET) {
+                    offset -= Math.max(endPts - player.getCurrentPosition() * 1000, 0);
+                }
+            }
             //Log.d(TAG, "Calculated CurrentPos: " + Math.max((System.currentTimeMillis() + (offset / 1000)), getTimeshiftStartPosition()));
             return Math.max((System.currentTimeMillis() + (offset / 1000)), getTimeshiftStartPosition());
 
@@ -314,8 +662,9 @@ public class TVPlayer implements Player.EventListener {
     }
 
     /**
-     * Seeks the DataSource AND ExoPlayer by the given timeMs. The actual seek time is calculated by
-     * the current position and offset.
+     * Seeks ExoPlayer by the given timeMs. The actual seek time is calculated by the current
+     * position and offset. ExoPlayer reopens the DataSource at the new position, which skips the
+     * subscription and waits for the server to acknowledge it.
      * @param timeMs to seek
      */
     public void seek(long timeMs)
@@ -325,14 +674,6 @@ public class TVPlayer implements Player.EventListener {
             long seekPts = (timeMs * 1000) - dataSource.getTimeshiftStartTime();
             seekPts = Math.max(seekPts, dataSource.getTimeshiftStartPts()) / 1000;
 
-            dataSource.seek(seekPts);
-
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
             player.seekTo(seekPts);
         } else {
             Log.w(TAG, "Unable to seek, no HtspDataSource available");
@@ -341,6 +682,19 @@ public class TVPlayer implements Player.EventListener {
         //resume();
     }
 
+    @Override
+    public void onRenderedFirstFrame() {
+        metrics.markTuneStage(PlaybackMetrics.TuneStage.FIRST_FRAME_RENDERED);
+    }
+
+    /**
+     * Returns the playback metrics, including the latency of each tune stage
+     * @return metrics
+     */
+    public PlaybackMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void onLoadingChanged(boolean isLoading) {
         if (isLoading && !recording) {
@@ -438,6 +792,7 @@ public class TVPlayer implements Player.EventListener {
 
         List<TvTrackInfo> tracks = new ArrayList<>();
         SparseArray<String> selectedTracks = new SparseArray<>();
+        Set<Integer> selectedTrackIds = new HashSet<>();
 
         for (int renderersIndex = 0; renderersIndex < currentMappedTrackInfo.getRendererCount(); renderersIndex++) {
 
@@ -458,6 +813,8 @@ public class TVPlayer implements Player.EventListener {
                                 boolean selected = trackSelection != null && trackSelection.getTrackGroup() == trackGroup && trackSelection.indexOf(trackIndex) != C.INDEX_UNSET;
 
                                 if (selected) {
+                                    addTrackId(selectedTrackIds, format.id);
+
                                     int trackType = MimeTypes.getTrackType(format.sampleMimeType);
 
                                     switch (trackType) {
@@ -479,11 +836,37 @@ public class TVPlayer implements Player.EventListener {
             }
         }
 
+        if (!recording) {
+            streamFilter.setSelectedTracks(selectedTrackIds);
+        }
+
         // Notify all Listeners that the tracks have been changed
         for(Listener listener : listeners)
             listener.onTracks(tracks, selectedTracks);
     }
 
+    /**
+     * Internal method which adds the track id of an HTSP stream's format to a set. Formats of
+     * other extractors don't use integer ids, and are ignored.
+     * @param trackIds set to add to
+     * @param formatId id of the format
+     */
+    private static void addTrackId(Set<Integer> trackIds, String formatId) {
+        try {
+            trackIds.add(Integer.parseInt(formatId));
+        } catch (NumberFormatException e) {
+            // Not an HTSP stream
+        }
+    }
+
+    /**
+     * Turns subtitles on or off. Subtitle streams are only received from the server while on.
+     * @param enabled whether captions are shown
+     */
+    public void setCaptionEnabled(boolean enabled) {
+        streamFilter.setCaptionsEnabled(enabled);
+    }
+
     /**
      * Create the TvTrackInfo object for a given Format
      * @param format to parse into TvTrackInfo object
@@ -533,33 +916,86 @@ public class TVPlayer implements Player.EventListener {
         return builder.build();
     }
 
-    private MediaSource buildRecordingMediaSource(Uri recordingUri)
+    /**
+     * Internal Helper Method which splits a comma separated list of TVH stream profiles
+     * @param profiles comma separated profiles, may be empty
+     * @return profile names, in the order given
+     */
+    private static List<String> parseProfiles(String profiles)
     {
-        HTSPMessage message = new HTSPMessage();
-        message.put("method", "getTicket");
-        message.put("dvrId", RecordedProgram.getRecordingIdFromRecordingUri(context, recordingUri).toString());
+        List<String> result = new ArrayList<>();
 
-        HTSPMessage response = null;
-        try {
-            response = connection.getHTSPMessageDispatcher().sendMessage(message, 2000);
-        } catch (HTSPException e) {
-            e.printStackTrace();
+        if (profiles != null) {
+            for (String profile : profiles.split(",")) {
+                if (!profile.trim().isEmpty() && !result.contains(profile.trim())) {
+                    result.add(profile.trim());
+                }
+            }
         }
 
-        TVHeadendAccount account = new TVHeadendAccount(DatabaseActions.activeAccount);
-        String url = "http://"+account.getHostname() + ":" + "9981" + response.getString("path");
+        return result;
+    }
 
-        Log.d(TAG, "Recording Url: " + url);
+    /**
+     * Builds the MediaSource of a recording, read with the HTSP file API over the player's connection.
+     * An indexed recording seeks with its key frame index, otherwise indexing it is started in the
+     * background once it has finished recording.
+     * @param recordingUri TvProvider uri of the recording
+     * @return media source
+     */
+    private MediaSource buildRecordingMediaSource(Uri recordingUri)
+    {
+        recStartTime = System.currentTimeMillis();
 
-        byte[] toEncrypt = (account.getUsername() + ":" + account.getPassword()).getBytes();
-        DefaultHttpDataSourceFactory dataSourceFactory = new DefaultHttpDataSourceFactory(Util.getUserAgent(context, "OpenIPTV").replace("ExoPlayerLib", "Blah"));
+        Uri localRecording = RecordedProgram.getLocalRecordingFromRecordingUri(context, recordingUri);
+        if (localRecording != null) {
+            return buildLocalRecordingMediaSource(localRecording);
+        }
 
-        dataSourceFactory.getDefaultRequestProperties().set("Authorization", "Basic " + Base64.encodeToString(toEncrypt, Base64.DEFAULT));
-        ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
+        ExtractorsFactory recordingExtractorsFactory = new DefaultExtractorsFactory();
+        Integer recordingId = RecordedProgram.getRecordingIdFromRecordingUri(context, recordingUri);
+        if (recordingId != null) {
+            RecordingIndex index = RecordingIndex.load(context, connection.getServerKey(), recordingId);
+            if (index != null) {
+                Log.d(TAG, "Seeking recording " + recordingId + " with " + index.size() + " indexed key frames");
+                recordingExtractorsFactory = new ExtractorsFactory() {
+                    @Override
+                    public Extractor[] createExtractors() {
+                        return new Extractor[] {new IndexedExtractor(new TsExtractor(), index)};
+                    }
+                };
+            } else if (RecordedProgram.isRecordingFinished(context, recordingUri)) {
+                recordingIndexer.index(recordingId);
+            }
+        }
 
-        recStartTime = System.currentTimeMillis();
+        return new ProgressiveMediaSource.Factory(htspFileDataSourceFactory, recordingExtractorsFactory).createMediaSource(recordingUri);
+    }
+
+    /**
+     * Builds the MediaSource of a recording made on this device by LocalRecorder, read from its file
+     * by the HTSP extractor and seeking with the index saved alongside.
+     * @param fileUri file uri of the recording
+     * @return media source
+     */
+    private MediaSource buildLocalRecordingMediaSource(Uri fileUri)
+    {
+        File file = new File(fileUri.getPath());
+        RecordingIndex loadedIndex = RecordingIndex.load(LocalRecorder.getIndexFile(file));
+        if (loadedIndex != null && loadedIndex.getFileSize() != file.length()) {
+            Log.w(TAG, "Index of local recording " + file + " doesn't match it, playing it unseekable");
+            loadedIndex = null;
+        }
+
+        final RecordingIndex index = loadedIndex;
+        ExtractorsFactory localExtractorsFactory = new ExtractorsFactory() {
+            @Override
+            public Extractor[] createExtractors() {
+                return new Extractor[] {new LocalRecordingExtractor(new HTSPSubscriptionDataExtractor(context, metrics, false), index)};
+            }
+        };
 
-        return new ProgressiveMediaSource.Factory(dataSourceFactory, extractorsFactory).createMediaSource(Uri.parse(url));
+        return new ProgressiveMediaSource.Factory(new FileDataSource.Factory(), localExtractorsFactory).createMediaSource(fileUri);
     }
   
     public boolean selectTrack(int type, String track)
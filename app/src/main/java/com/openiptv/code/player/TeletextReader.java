@@ -4,16 +4,10 @@ import android.content.Context;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.extractor.ExtractorOutput;
-import com.google.android.exoplayer2.extractor.TrackOutput;
-import com.google.android.exoplayer2.text.ssa.SsaDecoder;
 import com.google.android.exoplayer2.util.MimeTypes;
-import com.google.android.exoplayer2.util.ParsableByteArray;
-import com.google.android.exoplayer2.util.Util;
 import com.openiptv.code.htsp.HTSPMessage;
 
 import java.util.Arrays;
-import java.util.Locale;
 
 public class TeletextReader extends SourceReader {
     // TODO
@@ -21,8 +15,12 @@ public class TeletextReader extends SourceReader {
     static byte[] SUBTITLE_PREFIX = new byte[]{49, 10, 48, 48, 58, 48, 48, 58, 48, 48, 44, 48, 48, 48, 32, 45, 45, 62, 32, 48, 48, 58, 48, 48, 58, 48, 48, 44, 48, 48, 48, 10}; //Length of 20
     static byte[] TIME_CODE_EMPTY = new byte[]{32, 32, 32, 32, 32, 32, 32, 32, 32, 32, 32, 32}; //Length of 12
 
-    private Context context;
-    private TrackOutput trackOutput;
+    // Where the end time code is in SUBTITLE_PREFIX
+    private static final int END_TIME_CODE_OFFSET = 19;
+    private static final int TIME_CODE_LENGTH = 12;
+
+    // Sample being built, starts with SUBTITLE_PREFIX and only grows, so a cue allocates nothing
+    private byte[] sample = Arrays.copyOf(SUBTITLE_PREFIX, SUBTITLE_PREFIX.length + 256);
 
     /**
      * Set the track type
@@ -33,52 +31,58 @@ public class TeletextReader extends SourceReader {
         super(context, C.TRACK_TYPE_TEXT);
     }
 
-    private static void setTeletextEndTimeCode(byte[] teletext, long timestampUs) {
-        byte[] subtitleData;
+    /**
+     * Writes an SRT time code, HH:MM:SS,mmm, in place
+     * @param target array to write to
+     * @param offset offset of the time code in the array
+     * @param timestampUs time, 0 or C.TIME_UNSET leave the time code blank
+     */
+    private static void writeTimeCode(byte[] target, int offset, long timestampUs) {
         if (timestampUs == 0 || timestampUs == C.TIME_UNSET) {
-            subtitleData = TIME_CODE_EMPTY;
-        } else {
-            int hours = (int) (timestampUs / (long) (3600 * 1000 * 1000));
-            timestampUs -= hours * 3600 * 1000 * 1000;
-            int minutes = (int) (timestampUs / (long) (600 * 1000 * 100));
-            timestampUs -= minutes * 600 * 1000 * 100;
-            int seconds = (int) (timestampUs / (long) (1000000));
-            timestampUs -= seconds * 1000000;
-            int milliseconds = (int) (timestampUs / (long) (1000));
-
-            subtitleData = Util.getUtf8Bytes(String.format(Locale.ENGLISH, "%02d:%02d:%02d,%03d", hours, minutes, seconds, milliseconds));
+            System.arraycopy(TIME_CODE_EMPTY, 0, target, offset, TIME_CODE_LENGTH);
+            return;
         }
-        System.arraycopy(subtitleData, 0, teletext, 19, 12);
-    }
 
-    @Override
-    public boolean extract(HTSPMessage streamMessage) {
-        long timestampSubtitleUs = streamMessage.getLong("pts");
-        long subtitleDuration = streamMessage.getInteger("duration");
-        byte[] subtitleData = Util.getUtf8Bytes(new String(streamMessage.getByteArray("payload")));
-
-        int lengthOfSubtitle = SUBTITLE_PREFIX.length + subtitleData.length;
+        long milliseconds = timestampUs / 1000;
+        long seconds = milliseconds / 1000;
+        long minutes = seconds / 60;
+        // Two digits are all there is room for
+        long hours = Math.min(minutes / 60, 99);
+
+        writeDigits(target, offset, hours, 2);
+        target[offset + 2] = ':';
+        writeDigits(target, offset + 3, minutes % 60, 2);
+        target[offset + 5] = ':';
+        writeDigits(target, offset + 6, seconds % 60, 2);
+        target[offset + 8] = ',';
+        writeDigits(target, offset + 9, milliseconds % 1000, 3);
+    }
 
-        byte[] subtitleSample = Arrays.copyOf(SUBTITLE_PREFIX, lengthOfSubtitle);
-        System.arraycopy(subtitleData, 0, subtitleSample, SUBTITLE_PREFIX.length, subtitleData.length);
+    private static void writeDigits(byte[] target, int offset, long value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
 
-        setTeletextEndTimeCode(subtitleSample, subtitleDuration);
+    @Override
+    public boolean extract(HTSPMuxPacket packet) {
+        // The payload is UTF-8 already, so it is copied in as it is
+        int lengthOfSubtitle = SUBTITLE_PREFIX.length + packet.payloadLength;
+        if (sample.length < lengthOfSubtitle) {
+            sample = Arrays.copyOf(sample, Math.max(lengthOfSubtitle, sample.length * 2));
+        }
 
-        trackOutput.sampleData(new ParsableByteArray(subtitleSample), lengthOfSubtitle);
+        System.arraycopy(packet.payload, packet.payloadOffset, sample, SUBTITLE_PREFIX.length, packet.payloadLength);
+        writeTimeCode(sample, END_TIME_CODE_OFFSET, packet.duration);
 
-        trackOutput.sampleMetadata(timestampSubtitleUs, C.BUFFER_FLAG_KEY_FRAME, lengthOfSubtitle, 0, null);
+        sampleScratch.reset(sample, lengthOfSubtitle);
+        trackOutput.sampleData(sampleScratch, lengthOfSubtitle);
+        trackOutput.sampleMetadata(packet.pts, C.BUFFER_FLAG_KEY_FRAME, lengthOfSubtitle, 0, null);
 
         return true;
     }
 
-    @Override
-    public void buildTrackOutput(ExtractorOutput extractorOutput, HTSPMessage streamMessage) {
-        int index = streamMessage.getInteger("index");
-
-        trackOutput = extractorOutput.track(index, C.TRACK_TYPE_TEXT);
-        trackOutput.format(buildTrackFormat(streamMessage, index));
-    }
-
     @Override
     protected Format buildTrackFormat(HTSPMessage message, int index) {
         return Format.createTextSampleFormat(Integer.toString(index), MimeTypes.APPLICATION_SUBRIP, C.SELECTION_FLAG_AUTOSELECT, message.getString("language", "undefined"), null);
@@ -0,0 +1,100 @@
+package com.openiptv.code.player;
+
+import com.google.android.exoplayer2.C;
+
+/**
+ * Shared state of keyframe-only trick play, for rewind and fast-forward above 2x. While active
+ * the server plays the timeshift at the trick play speed and only key frames are kept. The
+ * extractor retimes them onto a timeline that plays at normal speed, so the decoder sees one
+ * continuous stream of independently decodable frames rather than a flush per step.
+ */
+public class TrickPlay {
+    // The fastest the server plays a timeshift, in either direction
+    private static final int MAX_SERVER_SPEED = 3200;
+    // Speeds above this are played with every frame through ExoPlayer
+    private static final float MAX_NORMAL_SPEED = 2;
+
+    private volatile float speed = 1;
+    private volatile long sourcePositionUs = C.TIME_UNSET;
+    private volatile int frameCount = 0;
+
+    /**
+     * Returns whether a speed is played with keyframe-only trick play
+     * @param speed Android TV playback speed
+     * @return true for rewind, and for fast-forward above 2x
+     */
+    public static boolean isTrickPlaySpeed(float speed) {
+        return speed < 0 || speed > MAX_NORMAL_SPEED;
+    }
+
+    /**
+     * Starts trick play, or changes its speed. Takes effect at the next extractor seek.
+     * @param speed Android TV playback speed, negative to rewind
+     */
+    public void setSpeed(float speed) {
+        this.speed = (float) getServerSpeed(speed) / 100;
+        this.frameCount = 0;
+    }
+
+    /**
+     * Stops trick play. Takes effect at the next extractor seek.
+     */
+    public void stop() {
+        speed = 1;
+        sourcePositionUs = C.TIME_UNSET;
+    }
+
+    /**
+     * Returns whether trick play is active
+     * @return true while rewinding or fast-forwarding with key frames
+     */
+    public boolean isActive() {
+        return speed != 1;
+    }
+
+    /**
+     * Returns the speed the server plays at, which is what the key frames are paced by
+     * @return speed, 1 when trick play isn't active
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Returns the TVH speed of the current trick play speed
+     * @return TVH speed, 100 being 1x
+     */
+    public int getServerSpeed() {
+        return Math.round(speed * 100);
+    }
+
+    /**
+     * Returns the position in the subscription of the key frame shown last, which is where
+     * normal playback carries on from
+     * @return position in microseconds, or C.TIME_UNSET if no key frame was shown yet
+     */
+    public long getSourcePositionUs() {
+        return sourcePositionUs;
+    }
+
+    /**
+     * Returns the number of key frames output since trick play started
+     * @return frame count
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Called by the extractor for each key frame it outputs.
+     * @param sourcePts timestamp of the key frame in the subscription
+     */
+    void onFrameOutput(long sourcePts) {
+        sourcePositionUs = sourcePts;
+        frameCount++;
+    }
+
+    private static int getServerSpeed(float speed) {
+        return Math.max(-MAX_SERVER_SPEED, Math.min(MAX_SERVER_SPEED, Math.round(speed * 100)));
+    }
+}
@@ -13,15 +13,18 @@ public abstract class VideoReader extends SourceReader {
     protected List<byte[]> initializationData;
 
     private String videoType;
+    private final String streamType;
 
     /**
      * Create a new VideoStream reader
      * @param context
      * @param videoType Format of the video to read
+     * @param streamType TVH type of the stream, e.g. H264
      */
-    public VideoReader(Context context, String videoType) {
+    public VideoReader(Context context, String videoType, String streamType) {
         super(context, C.TRACK_TYPE_VIDEO);
         this.videoType = videoType;
+        this.streamType = streamType;
         this.initializationData = null;
     }
 
@@ -50,4 +53,16 @@ public abstract class VideoReader extends SourceReader {
     }
 
     protected abstract void buildInitializationData(HTSPMessage message);
+
+    /**
+     * Decides whether a video packet is a key frame, from its frame type or, without one, from its
+     * start codes
+     * @param packet the packet that has been received from the TVHeadend Server
+     * @return true if the sample is a key frame
+     */
+    @Override
+    public boolean isKeyFrame(HTSPMuxPacket packet) {
+        return KeyFrameDetector.isKeyFrame(streamType, packet.frameType, packet.payload,
+                packet.payloadOffset, packet.payloadOffset + packet.payloadLength);
+    }
 }
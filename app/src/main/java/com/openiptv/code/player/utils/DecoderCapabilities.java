@@ -0,0 +1,127 @@
+package com.openiptv.code.player.utils;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Probes the device's decoders once per process, to find which of the video codecs TVHeadEnd
+ * sends can be decoded in hardware.
+ */
+public class DecoderCapabilities {
+    private static final String TAG = DecoderCapabilities.class.getSimpleName();
+
+    private static final String[] VIDEO_MIME_TYPES = {
+            MimeTypes.VIDEO_MPEG2,
+            MimeTypes.VIDEO_H264,
+            MimeTypes.VIDEO_H265
+    };
+
+    private static Set<String> hardwareMimeTypes;
+
+    private DecoderCapabilities() {
+    }
+
+    /**
+     * Returns whether the device has a hardware decoder for a TVH stream type.
+     * @param streamType TVH stream type, e.g. H264
+     * @return true if a hardware decoder exists, or if the stream type isn't video
+     */
+    public static boolean hasHardwareDecoder(String streamType) {
+        String mimeType = getVideoMimeType(streamType);
+        if (mimeType == null) {
+            return true;
+        }
+
+        return getHardwareMimeTypes().contains(mimeType);
+    }
+
+    /**
+     * Returns the mime type of a TVH video stream type
+     * @param streamType TVH stream type
+     * @return mime type, or null if the stream type isn't video
+     */
+    public static String getVideoMimeType(String streamType) {
+        if (streamType == null) {
+            return null;
+        }
+
+        switch (streamType) {
+            case "MPEG2VIDEO":
+                return MimeTypes.VIDEO_MPEG2;
+            case "H264":
+                return MimeTypes.VIDEO_H264;
+            case "HEVC":
+                return MimeTypes.VIDEO_H265;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Internal method which probes MediaCodecList on first use.
+     * @return video mime types with a hardware decoder
+     */
+    private static synchronized Set<String> getHardwareMimeTypes() {
+        if (hardwareMimeTypes != null) {
+            return hardwareMimeTypes;
+        }
+
+        Set<String> mimeTypes = new HashSet<>();
+
+        try {
+            for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (codecInfo.isEncoder() || !isHardware(codecInfo)) {
+                    continue;
+                }
+
+                for (String mimeType : VIDEO_MIME_TYPES) {
+                    for (String supportedType : codecInfo.getSupportedTypes()) {
+                        if (supportedType.equalsIgnoreCase(mimeType)) {
+                            mimeTypes.add(mimeType);
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Some devices throw while listing codecs, assume everything is supported
+            Log.w(TAG, "Unable to list decoders", e);
+            for (String mimeType : VIDEO_MIME_TYPES) {
+                mimeTypes.add(mimeType);
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Hardware video decoders: " + mimeTypes);
+        }
+
+        hardwareMimeTypes = mimeTypes;
+        return hardwareMimeTypes;
+    }
+
+    /**
+     * Internal method which decides whether a decoder runs in hardware. Before Android Q this is
+     * judged by the name, software decoders come from the platform's own codec packages.
+     * @param codecInfo decoder
+     * @return true if the decoder is hardware accelerated
+     */
+    private static boolean isHardware(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+
+        String name = codecInfo.getName().toLowerCase();
+        return !name.startsWith("omx.google.")
+                && !name.startsWith("c2.android.")
+                && !name.startsWith("omx.ffmpeg.")
+                && !name.contains(".sw.");
+    }
+}
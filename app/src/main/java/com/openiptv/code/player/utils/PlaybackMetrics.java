@@ -0,0 +1,178 @@
+package com.openiptv.code.player.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.openiptv.code.Constants.DEBUG;
+
+/**
+ * Collects playback counters and tune latency timings for a single TVPlayer. Every stage of a
+ * tune is timed from the moment the tune was requested, so slow stages can be spotted in the log.
+ */
+public class PlaybackMetrics {
+    private static final String TAG = PlaybackMetrics.class.getSimpleName();
+
+    /**
+     * The stages a live tune goes through, in the order they are expected to happen.
+     */
+    public enum TuneStage {
+        TUNE_REQUESTED,
+        SUBSCRIBE_SENT,
+        SUBSCRIPTION_START,
+        FIRST_PACKET,
+        TRACKS_BUILT,
+        FIRST_KEYFRAME,
+        FIRST_FRAME_RENDERED
+    }
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final long[] tuneStageTimes = new long[TuneStage.values().length];
+
+    public PlaybackMetrics() {
+        Arrays.fill(tuneStageTimes, -1);
+    }
+
+    /**
+     * Resets the tune timings and starts timing a new tune.
+     */
+    public synchronized void startTune() {
+        Arrays.fill(tuneStageTimes, -1);
+        tuneStageTimes[TuneStage.TUNE_REQUESTED.ordinal()] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records that a tune stage has been reached. Only the first occurrence of each stage per tune
+     * is recorded.
+     * @param stage tune stage reached
+     */
+    public synchronized void markTuneStage(TuneStage stage) {
+        long tuneStart = tuneStageTimes[TuneStage.TUNE_REQUESTED.ordinal()];
+
+        if (tuneStart == -1 || tuneStageTimes[stage.ordinal()] != -1) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        tuneStageTimes[stage.ordinal()] = now;
+
+        long latency = now - tuneStart;
+        set("tune_" + stage.name().toLowerCase() + "_ms", latency);
+
+        if (DEBUG) {
+            Log.d(TAG, "Tune stage " + stage.name() + " reached after " + latency + "ms");
+        }
+
+        if (stage == TuneStage.FIRST_FRAME_RENDERED) {
+            increment("tunes");
+            Log.i(TAG, "Tune completed in " + latency + "ms " + getTuneSummary());
+        }
+    }
+
+    /**
+     * Returns the time taken to reach a given stage of the current tune.
+     * @param stage tune stage
+     * @return latency in ms, or -1 if the stage has not been reached
+     */
+    public synchronized long getTuneStageLatency(TuneStage stage) {
+        long tuneStart = tuneStageTimes[TuneStage.TUNE_REQUESTED.ordinal()];
+        long stageTime = tuneStageTimes[stage.ordinal()];
+
+        if (tuneStart == -1 || stageTime == -1) {
+            return -1;
+        }
+
+        return stageTime - tuneStart;
+    }
+
+    /**
+     * Increments a named counter by one.
+     * @param name counter name
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds a delta to a named counter.
+     * @param name counter name
+     * @param delta amount to add
+     */
+    public void add(String name, long delta) {
+        getCounter(name).addAndGet(delta);
+    }
+
+    /**
+     * Sets a named value, used for gauges such as latencies.
+     * @param name counter name
+     * @param value new value
+     */
+    public void set(String name, long value) {
+        getCounter(name).set(value);
+    }
+
+    /**
+     * Returns the current value of a named counter.
+     * @param name counter name
+     * @return value, or 0 if it has never been set
+     */
+    public long get(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            return 0;
+        }
+        return counter.get();
+    }
+
+    /**
+     * Returns a sorted copy of all counters.
+     * @return counter name to value
+     */
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes all counters to the log.
+     */
+    public void log() {
+        Log.i(TAG, "Playback metrics: " + getSnapshot());
+    }
+
+    private AtomicLong getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    private String getTuneSummary() {
+        StringBuilder summary = new StringBuilder("[");
+        long previous = tuneStageTimes[TuneStage.TUNE_REQUESTED.ordinal()];
+
+        for (TuneStage stage : TuneStage.values()) {
+            long stageTime = tuneStageTimes[stage.ordinal()];
+            if (stage == TuneStage.TUNE_REQUESTED || stageTime == -1) {
+                continue;
+            }
+            if (summary.length() > 1) {
+                summary.append(", ");
+            }
+            summary.append(stage.name()).append("=+").append(stageTime - previous).append("ms");
+            previous = stageTime;
+        }
+
+        return summary.append("]").toString();
+    }
+}
@@ -1,9 +1,13 @@
 package com.openiptv.code.player.utils;
 
 import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
 import com.openiptv.code.player.TVPlayer;
 
 public class TimeshiftUtils {
@@ -83,4 +87,76 @@ public class TimeshiftUtils {
             return currentPos;
         }
     }
+
+    /**
+     * Measures a rewind or fast-forward session, so the Rewinder and keyframe trick play can be
+     * compared. Records the frames rendered per second, and the CPU time the process used as a
+     * share of one core.
+     */
+    public static class TrickPlayMeter {
+        private final static String TAG = TrickPlayMeter.class.getSimpleName();
+        final private SimpleExoPlayer player;
+        final private PlaybackMetrics metrics;
+        private String mode;
+        private long startMs;
+        private long startCpuMs;
+        private int startFrames;
+
+        public TrickPlayMeter(SimpleExoPlayer player, PlaybackMetrics metrics) {
+            this.player = player;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Starts measuring a session, ending any session in progress
+         * @param mode name of the trick play mode, used in the metric names
+         */
+        public void start(String mode) {
+            stop();
+
+            this.mode = mode;
+            startMs = SystemClock.elapsedRealtime();
+            startCpuMs = Process.getElapsedCpuTime();
+            startFrames = getRenderedFrames();
+        }
+
+        /**
+         * Stops measuring, and records the session's metrics
+         */
+        public void stop() {
+            if (mode == null) {
+                return;
+            }
+
+            long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+            if (elapsedMs > 0) {
+                long cpuMs = Process.getElapsedCpuTime() - startCpuMs;
+                // The counters start again if the renderer was re-enabled
+                int frames = Math.max(getRenderedFrames() - startFrames, 0);
+
+                // Kept in tenths, counters are whole numbers
+                long framesPerSecondX10 = frames * 10000L / elapsedMs;
+                long cpuPercentX10 = cpuMs * 1000 / elapsedMs;
+
+                metrics.increment("trickplay_" + mode + "_sessions");
+                metrics.set("trickplay_" + mode + "_fps_x10", framesPerSecondX10);
+                metrics.set("trickplay_" + mode + "_cpu_percent_x10", cpuPercentX10);
+
+                Log.d(TAG, "Trick play " + mode + " for " + elapsedMs + "ms: " + (framesPerSecondX10 / 10f) + " fps, "
+                        + (cpuPercentX10 / 10f) + "% cpu");
+            }
+
+            mode = null;
+        }
+
+        private int getRenderedFrames() {
+            DecoderCounters counters = player.getVideoDecoderCounters();
+            if (counters == null) {
+                return 0;
+            }
+
+            counters.ensureUpdated();
+            return counters.renderedOutputBufferCount;
+        }
+    }
 }
@@ -0,0 +1,427 @@
+import android.net.Uri;
+import android.os.Build;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.openiptv.code.htsp.BaseConnection;
+import com.openiptv.code.htsp.ConnectionInfo;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.player.HTSPExtractorsFactory;
+import com.openiptv.code.player.HTSPSubscriptionDataSource;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static org.awaitility.Awaitility.await;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class HTSPSubscriptionDataSourceTest {
+    private static final int VIDEO_STREAM = 1;
+    // Small enough for the reader to be given frames in pieces
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int SMALL_FRAME_SIZE = 256 * 1024;
+    // Three of these fill the buffer past its high watermark, the fourth doesn't fit
+    private static final int LARGE_FRAME_SIZE = 2560 * 1024;
+    // Each of these is a tenth of the buffer, so eight pass its high watermark and nine its critical
+    private static final int GOP_FRAME_SIZE = 1024 * 1024;
+    private static final int DELTA_FRAME_SIZE = 1024;
+    private static final long SEEK_TIME_US = 60000000;
+
+    /**
+     * DataSource which gives at most READ_SIZE bytes per read, as the network would.
+     */
+    private static class SplittingDataSource implements DataSource {
+        private final DataSource dataSource;
+
+        SplittingDataSource(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            // Ignore
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) {
+            return C.LENGTH_UNSET;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return dataSource.read(buffer, offset, Math.min(readLength, READ_SIZE));
+        }
+
+        @Override
+        public Uri getUri() {
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return dataSource.getResponseHeaders();
+        }
+
+        @Override
+        public void close() {
+            // Ignore
+        }
+    }
+
+    /**
+     * TrackOutput which keeps the time and size of every sample.
+     */
+    private static class RecordingTrackOutput implements TrackOutput {
+        final List<Long> sampleTimesUs = new ArrayList<>();
+        final List<Integer> sampleSizes = new ArrayList<>();
+
+        @Override
+        public void format(Format format) {
+            // Ignore
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.skip(length);
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            data.skipBytes(length);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset, CryptoData cryptoData) {
+            sampleTimesUs.add(timeUs);
+            sampleSizes.add(size);
+        }
+    }
+
+    private static class RecordingExtractorOutput implements ExtractorOutput {
+        final RecordingTrackOutput trackOutput = new RecordingTrackOutput();
+
+        @Override
+        public TrackOutput track(int id, int type) {
+            return trackOutput;
+        }
+
+        @Override
+        public void endTracks() {
+            // Ignore
+        }
+
+        @Override
+        public void seekMap(SeekMap seekMap) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Tests that a backlog discarded while the reader is part way through a frame leaves the rest
+     * of that frame in place, so the extractor carries on with whole frames.
+     *
+     * Expected Result: the frame being read and the key frame which overflowed the buffer are
+     * extracted, the backlog between them isn't
+     */
+    @Test
+    public void testDiscardKeepsFrameBeingRead() throws IOException, InterruptedException {
+        BaseConnection connection = new BaseConnection(new ConnectionInfo("localhost", 9982, "test", "test", "test", "23"));
+        HTSPSubscriptionDataSource dataSource = (HTSPSubscriptionDataSource)
+                new HTSPSubscriptionDataSource.Factory(getApplicationContext(), connection, "pass").createDataSource();
+
+        RecordingExtractorOutput output = new RecordingExtractorOutput();
+        Extractor extractor = new HTSPExtractorsFactory(getApplicationContext(), new PlaybackMetrics(), false).createExtractors()[0];
+        extractor.init(output);
+        ExtractorInput input = new DefaultExtractorInput(new SplittingDataSource(dataSource), 0, C.LENGTH_UNSET);
+        PositionHolder positionHolder = new PositionHolder();
+
+        dataSource.onSubscriptionStart(buildSubscriptionStart());
+        dataSource.onMuxpkt(buildKeyFrame(0, SMALL_FRAME_SIZE));
+
+        // Stop half way through the first key frame
+        while (input.getPosition() < SMALL_FRAME_SIZE / 2) {
+            assertThat(extractor.read(input, positionHolder)).isEqualTo(Extractor.RESULT_CONTINUE);
+        }
+        assertThat(output.trackOutput.sampleTimesUs).isEmpty();
+
+        // The last of these doesn't fit, so the ones before it are discarded
+        for (int i = 1; i <= 4; i++) {
+            dataSource.onMuxpkt(buildKeyFrame(i * 40000, LARGE_FRAME_SIZE));
+        }
+
+        while (extractor.read(input, positionHolder) != Extractor.RESULT_END_OF_INPUT) {
+            // Read everything
+        }
+
+        assertThat(output.trackOutput.sampleTimesUs).containsExactly(0L, 160000L).inOrder();
+        assertThat(output.trackOutput.sampleSizes).containsExactly(SMALL_FRAME_SIZE, LARGE_FRAME_SIZE).inOrder();
+
+        dataSource.release();
+    }
+
+    /**
+     * Tests that the buffer filling past its high watermark drops B frames only, and that they are
+     * buffered again once it has drained below its low watermark.
+     *
+     * Expected Result: the one B frame sent above the high watermark is missing, everything else
+     * is read back in order
+     */
+    @Test
+    public void testHighWatermarkDropsBFrames() throws IOException, ClassNotFoundException {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        HTSPSubscriptionDataSource dataSource = createDataSource(metrics);
+
+        dataSource.onSubscriptionStart(buildSubscriptionStart());
+        for (int i = 0; i < 8; i++) {
+            dataSource.onMuxpkt(buildFrame(i * 40000, 'I', GOP_FRAME_SIZE));
+        }
+
+        dataSource.onMuxpkt(buildFrame(320000, 'B', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(360000, 'P', DELTA_FRAME_SIZE));
+        assertThat(metrics.get("flow_high_watermark")).isEqualTo(1L);
+        assertThat(metrics.get("flow_dropped_packets")).isEqualTo(1L);
+
+        // Below the low watermark once half the key frames have been read
+        assertThat(readPts(dataSource, 4)).containsExactly(0L, 40000L, 80000L, 120000L).inOrder();
+        dataSource.onMuxpkt(buildFrame(400000, 'B', DELTA_FRAME_SIZE));
+        assertThat(metrics.get("flow_recoveries")).isEqualTo(1L);
+
+        assertThat(readPts(dataSource, Integer.MAX_VALUE))
+                .containsExactly(160000L, 200000L, 240000L, 280000L, 360000L, 400000L).inOrder();
+        assertThat(metrics.get("flow_dropped_packets")).isEqualTo(1L);
+
+        dataSource.release();
+    }
+
+    /**
+     * Tests that the buffer filling past its critical watermark drops the rest of the GOP, key
+     * frames included until it is back below its high watermark, and that the next key frame
+     * then resynchronises video with only B frames dropped, as it is still above the low watermark.
+     *
+     * Expected Result: nothing between the critical watermark and the resynchronising key frame is
+     * read back, nor the B frame after it
+     */
+    @Test
+    public void testCriticalWatermarkResyncsOnKeyFrame() throws IOException, ClassNotFoundException {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        HTSPSubscriptionDataSource dataSource = createDataSource(metrics);
+
+        dataSource.onSubscriptionStart(buildSubscriptionStart());
+        for (int i = 0; i < 9; i++) {
+            dataSource.onMuxpkt(buildFrame(i * 40000, 'I', GOP_FRAME_SIZE));
+        }
+
+        dataSource.onMuxpkt(buildFrame(360000, 'P', DELTA_FRAME_SIZE));
+        assertThat(metrics.get("flow_dropped_gops")).isEqualTo(1L);
+        // Still above the high watermark, so even a key frame is dropped
+        dataSource.onMuxpkt(buildFrame(400000, 'I', GOP_FRAME_SIZE));
+
+        // Between the low and high watermarks once a third of the key frames have been read
+        assertThat(readPts(dataSource, 3)).containsExactly(0L, 40000L, 80000L).inOrder();
+        dataSource.onMuxpkt(buildFrame(440000, 'P', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(480000, 'I', GOP_FRAME_SIZE));
+        assertThat(metrics.get("flow_resyncs")).isEqualTo(1L);
+        dataSource.onMuxpkt(buildFrame(520000, 'B', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(560000, 'P', DELTA_FRAME_SIZE));
+
+        assertThat(readPts(dataSource, Integer.MAX_VALUE))
+                .containsExactly(120000L, 160000L, 200000L, 240000L, 280000L, 320000L, 480000L, 560000L).inOrder();
+        assertThat(metrics.get("flow_dropped_packets")).isEqualTo(4L);
+
+        dataSource.release();
+    }
+
+    /**
+     * Tests that a seek drops what was buffered, discards the packets the server sends until it
+     * acknowledges the skip, and then resumes video on the first key frame.
+     *
+     * Expected Result: only the key frame after the acknowledgement and the frame following it are
+     * read back
+     */
+    @Test
+    public void testSkipDiscardsStalePackets() throws Exception {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        HTSPSubscriptionDataSource dataSource = createDataSource(metrics);
+
+        dataSource.onSubscriptionStart(buildSubscriptionStart());
+        dataSource.onMuxpkt(buildFrame(0, 'I', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(40000, 'P', DELTA_FRAME_SIZE));
+
+        Thread seeker = new Thread(() -> dataSource.seekTo(SEEK_TIME_US));
+        seeker.start();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> metrics.get("seeks") == 1L);
+
+        // Sent before the server skipped
+        dataSource.onMuxpkt(buildFrame(80000, 'I', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(120000, 'P', DELTA_FRAME_SIZE));
+        assertThat(metrics.get("seek_stale_packets")).isEqualTo(2L);
+        assertThat(seeker.isAlive()).isTrue();
+
+        dataSource.onSubscriptionSkip(buildSubscriptionSkip());
+        seeker.join(1000);
+        assertThat(seeker.isAlive()).isFalse();
+        assertThat(metrics.get("seek_ack_timeouts")).isEqualTo(0L);
+
+        // Nothing decodes until the first key frame at the new position
+        dataSource.onMuxpkt(buildFrame(SEEK_TIME_US, 'P', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(SEEK_TIME_US + 40000, 'I', DELTA_FRAME_SIZE));
+        dataSource.onMuxpkt(buildFrame(SEEK_TIME_US + 80000, 'P', DELTA_FRAME_SIZE));
+
+        assertThat(readPts(dataSource, Integer.MAX_VALUE)).containsExactly(SEEK_TIME_US + 40000, SEEK_TIME_US + 80000).inOrder();
+        assertThat(metrics.get("flow_resyncs")).isEqualTo(1L);
+
+        dataSource.release();
+    }
+
+    /**
+     * Tests that a seek the server never acknowledges gives up after two seconds, accepting
+     * packets again, and that the late acknowledgement is then ignored.
+     *
+     * Expected Result: the seek returns after two seconds, the packet sent after it is read back
+     */
+    @Test
+    public void testSkipAcknowledgementTimesOut() throws IOException, ClassNotFoundException {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        HTSPSubscriptionDataSource dataSource = createDataSource(metrics);
+
+        dataSource.onSubscriptionStart(buildSubscriptionStart());
+        dataSource.onMuxpkt(buildFrame(0, 'I', DELTA_FRAME_SIZE));
+
+        long startNs = System.nanoTime();
+        dataSource.seekTo(SEEK_TIME_US);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+
+        assertThat(elapsedMs).isAtLeast(2000L);
+        assertThat(elapsedMs).isLessThan(3000L);
+        assertThat(metrics.get("seek_ack_timeouts")).isEqualTo(1L);
+
+        dataSource.onMuxpkt(buildFrame(SEEK_TIME_US, 'I', DELTA_FRAME_SIZE));
+        dataSource.onSubscriptionSkip(buildSubscriptionSkip());
+        dataSource.onMuxpkt(buildFrame(SEEK_TIME_US + 40000, 'P', DELTA_FRAME_SIZE));
+
+        assertThat(readPts(dataSource, Integer.MAX_VALUE)).containsExactly(SEEK_TIME_US, SEEK_TIME_US + 40000).inOrder();
+        assertThat(metrics.get("seek_stale_packets")).isEqualTo(0L);
+
+        dataSource.release();
+    }
+
+    /**
+     * Creates a data source, which isn't opened, so reads end instead of blocking once it is empty,
+     * and has its HEADER read
+     */
+    private static HTSPSubscriptionDataSource createDataSource(PlaybackMetrics metrics) throws IOException {
+        BaseConnection connection = new BaseConnection(new ConnectionInfo("localhost", 9982, "test", "test", "test", "23"));
+        HTSPSubscriptionDataSource dataSource = (HTSPSubscriptionDataSource)
+                new HTSPSubscriptionDataSource.Factory(getApplicationContext(), connection, "pass")
+                        .setMetrics(metrics)
+                        .createDataSource();
+
+        assertThat(readFully(dataSource, HTSPSubscriptionDataSource.HEADER.length)).isEqualTo(HTSPSubscriptionDataSource.HEADER);
+        return dataSource;
+    }
+
+    /**
+     * Reads whole frames from the data source, up to the given number or until it is empty
+     * @return PTS of the muxpkt of each frame, the subscriptionStart is skipped
+     */
+    private static List<Long> readPts(HTSPSubscriptionDataSource dataSource, int frames) throws IOException, ClassNotFoundException {
+        List<Long> pts = new ArrayList<>();
+
+        while (pts.size() < frames) {
+            byte[] length = readFully(dataSource, HTSPSubscriptionDataSource.FRAME_LENGTH_SIZE);
+            if (length == null) {
+                break;
+            }
+
+            byte[] frame = readFully(dataSource, ByteBuffer.wrap(length).getInt());
+            try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+                HTSPMessage message = (HTSPMessage) objectInput.readObject();
+                if ("muxpkt".equals(message.getString("method"))) {
+                    pts.add(message.getLong("pts"));
+                }
+            }
+        }
+
+        return pts;
+    }
+
+    private static byte[] readFully(HTSPSubscriptionDataSource dataSource, int length) throws IOException {
+        byte[] bytes = new byte[length];
+
+        for (int offset = 0; offset < length; ) {
+            int read = dataSource.read(bytes, offset, length - offset);
+            if (read == C.RESULT_END_OF_INPUT) {
+                assertThat(offset).isEqualTo(0);
+                return null;
+            }
+            offset += read;
+        }
+
+        return bytes;
+    }
+
+    private static HTSPMessage buildSubscriptionStart() {
+        HTSPMessage stream = new HTSPMessage();
+        stream.put("index", VIDEO_STREAM);
+        stream.put("type", "H264");
+        stream.put("width", 1920);
+        stream.put("height", 1080);
+        stream.put("duration", 40000);
+
+        ArrayList<HTSPMessage> streams = new ArrayList<>();
+        streams.add(stream);
+
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "subscriptionStart");
+        message.put("streams", streams);
+        return message;
+    }
+
+    private static HTSPMessage buildSubscriptionSkip() {
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "subscriptionSkip");
+        message.put("time", SEEK_TIME_US);
+        return message;
+    }
+
+    private static HTSPMessage buildKeyFrame(long pts, int size) {
+        return buildFrame(pts, 'I', size);
+    }
+
+    private static HTSPMessage buildFrame(long pts, char frameType, int size) {
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "muxpkt");
+        message.put("stream", VIDEO_STREAM);
+        message.put("pts", pts);
+        message.put("duration", 40000);
+        message.put("frametype", (int) frameType);
+        message.put("payload", new byte[size]);
+        return message;
+    }
+}
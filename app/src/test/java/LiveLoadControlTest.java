@@ -0,0 +1,155 @@
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.openiptv.code.player.LiveLoadControl;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class LiveLoadControlTest {
+    private static final int START_BUFFER_MS = 500;
+    private static final int REBUFFER_BUFFER_MS = 1000;
+    private static final int MAX_BUFFER_MS = 30000;
+    // Limits of LiveLoadControl
+    private static final long MAX_TARGET_MS = 10000;
+    private static final long RELAX_INTERVAL_MS = 120000;
+
+    /**
+     * Tests that live playback starts on its own targets, once rebuffering on the rebuffer target.
+     *
+     * Expected Result: playback starts once the start or rebuffer target is buffered
+     */
+    @Test
+    public void testStartsOnTargets() {
+        LiveLoadControl loadControl = buildLoadControl(new PlaybackMetrics());
+
+        assertThat(loadControl.shouldStartPlayback(START_BUFFER_MS * 1000L - 1, 1, false)).isFalse();
+        assertThat(loadControl.shouldStartPlayback(START_BUFFER_MS * 1000L, 1, false)).isTrue();
+
+        assertThat(loadControl.shouldStartPlayback(START_BUFFER_MS * 1000L, 1, true)).isFalse();
+        assertThat(loadControl.shouldStartPlayback(REBUFFER_BUFFER_MS * 1000L, 1, true)).isTrue();
+
+        // Nothing more can be buffered, so what there is plays
+        assertThat(loadControl.shouldStartPlayback(MAX_BUFFER_MS * 1000L, 1, true)).isTrue();
+    }
+
+    /**
+     * Tests that every rebuffer raises the targets by half, up to the maximum, and that they are
+     * reported to the metrics.
+     *
+     * Expected Result: targets of 1.5 times the previous ones, never above the maximum
+     */
+    @Test
+    public void testRebufferRaisesTargets() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        LiveLoadControl loadControl = buildLoadControl(metrics);
+
+        loadControl.onRebuffer();
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(750000L);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(1500000L);
+        assertThat(metrics.get("live_start_target_ms")).isEqualTo(750L);
+        assertThat(metrics.get("live_rebuffer_target_ms")).isEqualTo(1500L);
+
+        assertThat(loadControl.shouldStartPlayback(START_BUFFER_MS * 1000L, 1, false)).isFalse();
+
+        for (int i = 0; i < 20; i++) {
+            loadControl.onRebuffer();
+        }
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(MAX_TARGET_MS * 1000);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(MAX_TARGET_MS * 1000);
+    }
+
+    /**
+     * Tests that the targets come back down, a step at a time, after a long spell without rebuffers,
+     * but never below where they started.
+     *
+     * Expected Result: targets lowered by a fifth per interval, down to the configured ones
+     */
+    @Test
+    public void testTargetsRelax() {
+        LiveLoadControl loadControl = buildLoadControl(new PlaybackMetrics());
+        loadControl.onRebuffer();
+        loadControl.onRebuffer();
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(2250000L);
+
+        // Not yet
+        SystemClock.sleep(RELAX_INTERVAL_MS - 1000);
+        loadControl.shouldContinueLoading(0, 1);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(2250000L);
+
+        SystemClock.sleep(1000);
+        loadControl.shouldContinueLoading(0, 1);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(1800000L);
+
+        for (int i = 0; i < 10; i++) {
+            SystemClock.sleep(RELAX_INTERVAL_MS);
+            loadControl.shouldContinueLoading(0, 1);
+        }
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(START_BUFFER_MS * 1000L);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(REBUFFER_BUFFER_MS * 1000L);
+    }
+
+    /**
+     * Tests that the measured jitter sets a floor under both targets, capped at the maximum.
+     *
+     * Expected Result: targets of four times the jitter while above the configured ones
+     */
+    @Test
+    public void testJitterFloor() {
+        LiveLoadControl loadControl = buildLoadControl(new PlaybackMetrics());
+
+        loadControl.setJitterUs(100000);
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(START_BUFFER_MS * 1000L);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(REBUFFER_BUFFER_MS * 1000L);
+
+        loadControl.setJitterUs(400000);
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(1600000L);
+        assertThat(loadControl.getRebufferTargetUs()).isEqualTo(1600000L);
+        assertThat(loadControl.shouldStartPlayback(REBUFFER_BUFFER_MS * 1000L, 1, true)).isFalse();
+
+        loadControl.setJitterUs(MAX_TARGET_MS * 1000);
+        assertThat(loadControl.getStartTargetUs()).isEqualTo(MAX_TARGET_MS * 1000);
+    }
+
+    /**
+     * Tests that live playback keeps loading while below the rebuffer target, and stops at the
+     * maximum buffer.
+     *
+     * Expected Result: loading continues below the target and stops at the maximum
+     */
+    @Test
+    public void testLoadsUpToMaximum() {
+        LiveLoadControl loadControl = buildLoadControl(new PlaybackMetrics());
+
+        assertThat(loadControl.shouldContinueLoading(0, 1)).isTrue();
+        assertThat(loadControl.shouldContinueLoading(REBUFFER_BUFFER_MS * 1000L - 1, 1)).isTrue();
+        assertThat(loadControl.shouldContinueLoading(MAX_BUFFER_MS * 1000L, 1)).isFalse();
+    }
+
+    /**
+     * Tests that recordings are left to the DefaultLoadControl, which waits for far more media than
+     * the live start target.
+     *
+     * Expected Result: the live start target doesn't start a recording
+     */
+    @Test
+    public void testRecordingsUseDefault() {
+        LiveLoadControl loadControl = buildLoadControl(new PlaybackMetrics());
+        loadControl.setLive(false);
+
+        assertThat(loadControl.shouldStartPlayback(START_BUFFER_MS * 1000L, 1, false)).isFalse();
+        assertThat(loadControl.shouldStartPlayback(DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS * 1000L, 1, false)).isTrue();
+    }
+
+    private static LiveLoadControl buildLoadControl(PlaybackMetrics metrics) {
+        return new LiveLoadControl(new DefaultLoadControl(), metrics, START_BUFFER_MS, REBUFFER_BUFFER_MS, MAX_BUFFER_MS);
+    }
+}
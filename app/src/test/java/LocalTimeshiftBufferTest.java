@@ -0,0 +1,137 @@
+import android.os.Build;
+
+import com.google.android.exoplayer2.C;
+import com.openiptv.code.player.LocalTimeshiftBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class LocalTimeshiftBufferTest {
+    private static final int CAPACITY = 100;
+    private static final int FRAME_LENGTH_SIZE = 4;
+    private static final int FRAME_SIZE = 20;
+    // Each frame takes its length prefix as well
+    private static final int FRAME_SPACE = FRAME_LENGTH_SIZE + FRAME_SIZE;
+
+    private LocalTimeshiftBuffer buffer;
+
+    @Before
+    public void obtainBuffer() throws IOException {
+        buffer = LocalTimeshiftBuffer.obtain(getApplicationContext(), CAPACITY);
+    }
+
+    @After
+    public void recycleBuffer() {
+        buffer.recycle();
+    }
+
+    /**
+     * Tests that a frame written across the end of the file is read back whole, with its length
+     * prefix, from its logical position.
+     *
+     * Expected Result: the frame read back equals the frame appended
+     */
+    @Test
+    public void testReadAcrossWrap() {
+        for (int i = 0; i < 5; i++) {
+            buffer.append(frame(i), i * 1000, false);
+        }
+        assertThat(buffer.getHead()).isEqualTo(5L * FRAME_SPACE);
+
+        // The fifth frame starts at 96, its payload wraps to the start of the file
+        byte[] read = new byte[FRAME_SPACE];
+        assertThat(buffer.read(4 * FRAME_SPACE, read, 0, read.length)).isEqualTo(FRAME_SPACE);
+
+        int length = ((read[0] & 0xFF) << 24) | ((read[1] & 0xFF) << 16) | ((read[2] & 0xFF) << 8) | (read[3] & 0xFF);
+        assertThat(length).isEqualTo(FRAME_SIZE);
+        assertThat(Arrays.copyOfRange(read, FRAME_LENGTH_SIZE, FRAME_SPACE)).isEqualTo(frame(4));
+
+        // Nothing to read at the head
+        assertThat(buffer.read(buffer.getHead(), read, 0, read.length)).isEqualTo(0);
+    }
+
+    /**
+     * Tests that a time finds the last key frame at or before it, and times outside of what is
+     * buffered find nothing.
+     *
+     * Expected Result: positions of the key frames, C.POSITION_UNSET outside of the buffer
+     */
+    @Test
+    public void testFindKeyFrame() {
+        buffer.append(frame(0), 1000, true);
+        buffer.append(frame(1), 1040, false);
+        buffer.append(frame(2), 2000, true);
+        buffer.append(frame(3), 2040, false);
+
+        assertThat(buffer.findKeyFrame(1000)).isEqualTo(0L);
+        assertThat(buffer.findKeyFrame(1999)).isEqualTo(0L);
+        assertThat(buffer.findKeyFrame(2000)).isEqualTo(2L * FRAME_SPACE);
+        assertThat(buffer.findKeyFrame(2040)).isEqualTo(2L * FRAME_SPACE);
+
+        assertThat(buffer.findKeyFrame(999)).isEqualTo((long) C.POSITION_UNSET);
+        assertThat(buffer.findKeyFrame(2041)).isEqualTo((long) C.POSITION_UNSET);
+        assertThat(buffer.getLastPts()).isEqualTo(2040L);
+    }
+
+    /**
+     * Tests that the key frames overwritten by the ring are dropped from the index, so a seek is
+     * never played back from a position that no longer holds its frame.
+     *
+     * Expected Result: the oldest key frame is gone once overwritten, the newer ones remain
+     */
+    @Test
+    public void testOverwrittenKeyFramesDropped() {
+        buffer.append(frame(0), 1000, true);
+        buffer.append(frame(1), 2000, true);
+        buffer.append(frame(2), 2040, false);
+        buffer.append(frame(3), 2080, false);
+        assertThat(buffer.findKeyFrame(1000)).isEqualTo(0L);
+
+        // Overwrites the first frame
+        buffer.append(frame(4), 2120, false);
+
+        assertThat(buffer.findKeyFrame(1000)).isEqualTo((long) C.POSITION_UNSET);
+        assertThat(buffer.findKeyFrame(2100)).isEqualTo((long) FRAME_SPACE);
+    }
+
+    /**
+     * Tests that canAppend protects the frames from a position on, and that reset empties the buffer.
+     *
+     * Expected Result: appending is refused once it would overwrite the protected position
+     */
+    @Test
+    public void testCanAppendAndReset() {
+        for (int i = 0; i < 4; i++) {
+            buffer.append(frame(i), i * 1000, i == 0);
+        }
+
+        // A fifth frame overwrites the first
+        assertThat(buffer.canAppend(FRAME_SIZE, 0)).isFalse();
+        assertThat(buffer.canAppend(FRAME_SIZE, FRAME_SPACE)).isTrue();
+        assertThat(buffer.canAppend(CAPACITY - 4 * FRAME_SPACE - FRAME_LENGTH_SIZE, 0)).isTrue();
+
+        buffer.reset();
+        assertThat(buffer.getHead()).isEqualTo(0L);
+        assertThat(buffer.getLastPts()).isEqualTo(C.TIME_UNSET);
+        assertThat(buffer.findKeyFrame(0)).isEqualTo((long) C.POSITION_UNSET);
+    }
+
+    private static byte[] frame(int number) {
+        byte[] frame = new byte[FRAME_SIZE];
+        Arrays.fill(frame, (byte) (number + 1));
+        frame[FRAME_SIZE - 1] = (byte) 0xFF;
+        return frame;
+    }
+}
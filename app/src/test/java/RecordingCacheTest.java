@@ -0,0 +1,71 @@
+import android.os.Build;
+
+import com.openiptv.code.player.RecordingCache;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static org.awaitility.Awaitility.await;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class RecordingCacheTest {
+    private static final String SERVER_KEY = "test@localhost_9982";
+    private static final int RECORDING_ID = 42;
+    private static final long FILE_SIZE = 1000000;
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Tests that the cache keeps to its size by deleting the least recently used chunks, a read
+     * counting as a use, and that chunks are only found under the key of the recording they were
+     * cached for.
+     *
+     * Expected Result: the chunk neither written nor read last is evicted, the rest are read back
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RecordingCache cache = RecordingCache.getInstance(getApplicationContext(), 3 * CHUNK_SIZE);
+        String key = RecordingCache.getRecordingKey(SERVER_KEY, RECORDING_ID, FILE_SIZE);
+        long evictions = cache.getEvictions();
+
+        for (int i = 0; i < 3; i++) {
+            cache.put(key, i * CHUNK_SIZE, chunk(i));
+        }
+        // Chunks are written in order, in the background
+        await().until(() -> cache.contains(key, 2 * CHUNK_SIZE));
+        assertThat(cache.getSizeBytes()).isEqualTo(3L * CHUNK_SIZE);
+
+        // The first chunk is now used more recently than the second
+        assertThat(cache.get(key, 0)).isEqualTo(chunk(0));
+
+        cache.put(key, 3 * CHUNK_SIZE, chunk(3));
+        await().until(() -> cache.contains(key, 3 * CHUNK_SIZE));
+
+        assertThat(cache.contains(key, 0)).isTrue();
+        assertThat(cache.contains(key, CHUNK_SIZE)).isFalse();
+        assertThat(cache.contains(key, 2 * CHUNK_SIZE)).isTrue();
+        assertThat(cache.getEvictions() - evictions).isEqualTo(1L);
+        assertThat(cache.getSizeBytes()).isEqualTo(3L * CHUNK_SIZE);
+
+        assertThat(cache.get(key, CHUNK_SIZE)).isNull();
+        assertThat(cache.get(key, 3 * CHUNK_SIZE)).isEqualTo(chunk(3));
+
+        // Another server's recording with the same id, and the recording after it grew
+        String otherServer = RecordingCache.getRecordingKey("test@otherhost_9982", RECORDING_ID, FILE_SIZE);
+        String grown = RecordingCache.getRecordingKey(SERVER_KEY, RECORDING_ID, FILE_SIZE + CHUNK_SIZE);
+        assertThat(cache.contains(otherServer, 0)).isFalse();
+        assertThat(cache.get(grown, 0)).isNull();
+    }
+
+    private static byte[] chunk(int number) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) number);
+        return chunk;
+    }
+}
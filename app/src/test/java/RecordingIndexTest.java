@@ -0,0 +1,80 @@
+import android.os.Build;
+
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+import com.openiptv.code.player.RecordingIndex;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class RecordingIndexTest {
+    private static final String SERVER_KEY = "test@localhost_9982";
+    private static final int RECORDING_ID = 42;
+    private static final long DURATION_US = 3500000;
+    private static final long FILE_SIZE = 5000;
+
+    /**
+     * Tests that a seek finds the indexed key frame at or before the time, along with the next one.
+     *
+     * Expected Result: the entries around the time, a single one on an exact match or past the end
+     */
+    @Test
+    public void testGetSeekPoints() {
+        RecordingIndex index = buildIndex();
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(1500000);
+        assertThat(seekPoints.first).isEqualTo(new SeekPoint(1000000, 1000));
+        assertThat(seekPoints.second).isEqualTo(new SeekPoint(2000000, 2000));
+
+        seekPoints = index.getSeekPoints(1000000);
+        assertThat(seekPoints.first).isEqualTo(new SeekPoint(1000000, 1000));
+        assertThat(seekPoints.second).isEqualTo(seekPoints.first);
+
+        seekPoints = index.getSeekPoints(DURATION_US);
+        assertThat(seekPoints.first).isEqualTo(new SeekPoint(3000000, 3000));
+        assertThat(seekPoints.second).isEqualTo(seekPoints.first);
+
+        assertThat(index.isSeekable()).isTrue();
+        assertThat(index.getDurationUs()).isEqualTo(DURATION_US);
+    }
+
+    /**
+     * Tests that a saved index loads back as it was, only for the server and recording it was saved
+     * for, and that a deleted index is gone.
+     *
+     * Expected Result: the loaded index has the same duration, file size and entries
+     */
+    @Test
+    public void testSaveAndLoad() {
+        assertThat(buildIndex().save(getApplicationContext(), SERVER_KEY, RECORDING_ID)).isTrue();
+
+        assertThat(RecordingIndex.exists(getApplicationContext(), SERVER_KEY, RECORDING_ID)).isTrue();
+        assertThat(RecordingIndex.exists(getApplicationContext(), "test@otherhost_9982", RECORDING_ID)).isFalse();
+        assertThat(RecordingIndex.exists(getApplicationContext(), SERVER_KEY, RECORDING_ID + 1)).isFalse();
+
+        RecordingIndex index = RecordingIndex.load(getApplicationContext(), SERVER_KEY, RECORDING_ID);
+        assertThat(index).isNotNull();
+        assertThat(index.size()).isEqualTo(4);
+        assertThat(index.getDurationUs()).isEqualTo(DURATION_US);
+        assertThat(index.getFileSize()).isEqualTo(FILE_SIZE);
+        assertThat(index.getSeekPoints(2500000).first).isEqualTo(new SeekPoint(2000000, 2000));
+
+        index.delete();
+        assertThat(RecordingIndex.exists(getApplicationContext(), SERVER_KEY, RECORDING_ID)).isFalse();
+        assertThat(RecordingIndex.load(getApplicationContext(), SERVER_KEY, RECORDING_ID)).isNull();
+    }
+
+    private static RecordingIndex buildIndex() {
+        // Spare room at the end of the arrays, as the indexer grows them
+        long[] timesUs = {0, 1000000, 2000000, 3000000, 0, 0};
+        long[] positions = {0, 1000, 2000, 3000, 0, 0};
+        return new RecordingIndex(DURATION_US, FILE_SIZE, timesUs, positions, 4);
+    }
+}
@@ -0,0 +1,418 @@
+import android.net.Uri;
+import android.os.Build;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.player.HTSPExtractorsFactory;
+import com.openiptv.code.player.HTSPMuxPacket;
+import com.openiptv.code.player.HTSPSubscriptionDataSource;
+import com.openiptv.code.player.utils.PlaybackMetrics;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class SampleDeliveryBenchmarkTest {
+    private static final int VIDEO_STREAM = 1;
+    private static final int AUDIO_STREAM = 2;
+    private static final int SUBTITLE_STREAM = 3;
+    private static final int GOP_LENGTH = 25;
+    // Packets go through the extractor as they would in playback, deserialising included
+    private static final int WARMUP_PACKETS = 5000;
+    private static final int MEASURED_PACKETS = 20000;
+    // Allocated per packet beyond deserialising it, on average. Less than one more ParsableByteArray
+    // or the smallest payload copy, so either one per sample fails the test
+    private static final long PACKET_ALLOCATION_BUDGET = 16;
+
+    /**
+     * TrackOutput which only counts what it is given.
+     */
+    private static class CountingTrackOutput implements TrackOutput {
+        long samples = 0;
+        long bytes = 0;
+        long keyFrames = 0;
+
+        @Override
+        public void format(Format format) {
+            // Ignore
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return input.skip(length);
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            data.skipBytes(length);
+            bytes += length;
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset, CryptoData cryptoData) {
+            samples++;
+            if ((flags & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+                keyFrames++;
+            }
+        }
+    }
+
+    /**
+     * TrackOutput which also keeps a copy of the last sample, in a buffer of its own.
+     */
+    private static class CapturingTrackOutput extends CountingTrackOutput {
+        final byte[] lastSample = new byte[4096];
+        int lastSampleLength = 0;
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            data.readBytes(lastSample, 0, length);
+            lastSampleLength = length;
+            bytes += length;
+        }
+    }
+
+    /**
+     * ExtractorOutput with a counting TrackOutput for each type of track.
+     */
+    private static class CountingExtractorOutput implements ExtractorOutput {
+        final CountingTrackOutput videoOutput = new CountingTrackOutput();
+        final CountingTrackOutput audioOutput = new CountingTrackOutput();
+        final CountingTrackOutput textOutput;
+
+        CountingExtractorOutput() {
+            this(new CountingTrackOutput());
+        }
+
+        CountingExtractorOutput(CountingTrackOutput textOutput) {
+            this.textOutput = textOutput;
+        }
+
+        long getSamples() {
+            return videoOutput.samples + audioOutput.samples + textOutput.samples;
+        }
+
+        @Override
+        public TrackOutput track(int id, int type) {
+            if (type == C.TRACK_TYPE_VIDEO) {
+                return videoOutput;
+            } else if (type == C.TRACK_TYPE_AUDIO) {
+                return audioOutput;
+            }
+            return textOutput;
+        }
+
+        @Override
+        public void endTracks() {
+            // Ignore
+        }
+
+        @Override
+        public void seekMap(SeekMap seekMap) {
+            // Ignore
+        }
+    }
+
+    /**
+     * DataSource giving the HEADER and the first frame of a subscription, then its other frames
+     * over and over, as the subscription data source frames them.
+     */
+    private static class LoopingDataSource implements DataSource {
+        private final byte[] frames;
+        private byte[] current;
+        private int position = 0;
+
+        LoopingDataSource(byte[] start, byte[] frames) {
+            this.frames = frames;
+            this.current = start;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            // Ignore
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) {
+            return C.LENGTH_UNSET;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) {
+            int length = Math.min(readLength, current.length - position);
+            System.arraycopy(current, position, buffer, offset, length);
+
+            position += length;
+            if (position == current.length) {
+                current = frames;
+                position = 0;
+            }
+
+            return length;
+        }
+
+        @Override
+        public Uri getUri() {
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void close() {
+            // Ignore
+        }
+    }
+
+    @Test
+    public void sampleDeliveryDoesNotAllocate() throws IOException, InterruptedException {
+        com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+
+        // Synthetic H.264 frames and ADTS framed AAC without CRC, a GOP of each
+        byte[] keyFrame = new byte[32 * 1024];
+        byte[] predictedFrame = new byte[4 * 1024];
+        byte[] aacFrame = new byte[384];
+        aacFrame[0] = (byte) 0xFF;
+        aacFrame[1] = (byte) 0xF1;
+
+        List<byte[]> gop = new ArrayList<>();
+        for (int i = 0; i < GOP_LENGTH; i++) {
+            byte[] frame = i == 0 ? keyFrame : predictedFrame;
+            gop.add(serialize(buildMuxpkt(VIDEO_STREAM, i * 40000, 40000, i == 0 ? 'I' : 'P', frame)));
+            gop.add(serialize(buildMuxpkt(AUDIO_STREAM, i * 40000, 24000, HTSPMuxPacket.FRAME_TYPE_UNKNOWN, aacFrame)));
+        }
+
+        CountingExtractorOutput output = new CountingExtractorOutput();
+        Extractor extractor = new HTSPExtractorsFactory(getApplicationContext(), new PlaybackMetrics(), false).createExtractors()[0];
+        extractor.init(output);
+        ExtractorInput input = new DefaultExtractorInput(
+                new LoopingDataSource(buildStart(VIDEO_STREAM, AUDIO_STREAM), frame(gop)), 0, C.LENGTH_UNSET);
+        PositionHolder positionHolder = new PositionHolder();
+
+        extract(extractor, input, positionHolder, output, WARMUP_PACKETS);
+        deserialize(gop, WARMUP_PACKETS);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+
+        deserialize(gop, MEASURED_PACKETS);
+
+        long deserializedAllocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        long startNs = System.nanoTime();
+
+        extract(extractor, input, positionHolder, output, WARMUP_PACKETS + MEASURED_PACKETS);
+
+        long elapsedNs = System.nanoTime() - startNs;
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore - deserializedAllocated;
+
+        assertThat(output.getSamples()).isEqualTo(WARMUP_PACKETS + MEASURED_PACKETS);
+        assertThat(output.videoOutput.keyFrames).isEqualTo((WARMUP_PACKETS + MEASURED_PACKETS) / 2 / GOP_LENGTH);
+        // ADTS headers are stripped, not delivered
+        assertThat(output.audioOutput.bytes).isEqualTo((long) (WARMUP_PACKETS + MEASURED_PACKETS) / 2 * (aacFrame.length - 7));
+        assertWithMessage(MEASURED_PACKETS + " packets in " + (elapsedNs / 1000000) + "ms, "
+                + allocated + " bytes allocated beyond deserialising them")
+                .that(allocated).isLessThan(MEASURED_PACKETS * PACKET_ALLOCATION_BUDGET);
+    }
+
+    @Test
+    public void subtitleDeliveryDoesNotAllocate() throws IOException, InterruptedException {
+        com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+
+        // A cue for every video frame, the busiest a subtitle stream gets, with a long cue now and then
+        byte[] cue = Util.getUtf8Bytes("Ce n'est pas fini, dit-elle.\n\u00c7a ne fait que commencer.");
+        byte[] longCue = new byte[1024];
+        Arrays.fill(longCue, (byte) 'a');
+
+        List<byte[]> cues = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            byte[] text = i == 50 ? longCue : cue;
+            cues.add(serialize(buildMuxpkt(SUBTITLE_STREAM, i * 40000, 1934567000, HTSPMuxPacket.FRAME_TYPE_UNKNOWN, text)));
+        }
+
+        CapturingTrackOutput trackOutput = new CapturingTrackOutput();
+        CountingExtractorOutput output = new CountingExtractorOutput(trackOutput);
+        Extractor extractor = new HTSPExtractorsFactory(getApplicationContext(), new PlaybackMetrics(), false).createExtractors()[0];
+        extractor.init(output);
+        ExtractorInput input = new DefaultExtractorInput(
+                new LoopingDataSource(buildStart(SUBTITLE_STREAM), frame(cues)), 0, C.LENGTH_UNSET);
+        PositionHolder positionHolder = new PositionHolder();
+
+        extract(extractor, input, positionHolder, output, WARMUP_PACKETS);
+        deserialize(cues, WARMUP_PACKETS);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+
+        deserialize(cues, MEASURED_PACKETS);
+
+        long deserializedAllocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        long startNs = System.nanoTime();
+
+        extract(extractor, input, positionHolder, output, WARMUP_PACKETS + MEASURED_PACKETS);
+
+        long elapsedNs = System.nanoTime() - startNs;
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore - deserializedAllocated;
+
+        assertThat(trackOutput.samples).isEqualTo(WARMUP_PACKETS + MEASURED_PACKETS);
+        assertWithMessage(MEASURED_PACKETS + " subtitle cues in " + (elapsedNs / 1000000) + "ms, "
+                + allocated + " bytes allocated beyond deserialising them")
+                .that(allocated).isLessThan(MEASURED_PACKETS * PACKET_ALLOCATION_BUDGET);
+
+        // The last cue is a short one, after long ones have grown the sample
+        byte[] expected = Util.getUtf8Bytes("1\n00:00:00,000 --> 00:32:14,567\n" + Util.fromUtf8Bytes(cue));
+        assertThat(Arrays.copyOf(trackOutput.lastSample, trackOutput.lastSampleLength)).isEqualTo(expected);
+    }
+
+    /**
+     * Returns the bean measuring the memory allocated by a thread, skipping the test if there is none
+     * @return allocation bean
+     */
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationBean;
+    }
+
+    /**
+     * Reads from the extractor until the given number of samples has been delivered in all
+     */
+    private static void extract(Extractor extractor, ExtractorInput input, PositionHolder positionHolder,
+                                CountingExtractorOutput output, long samples) throws IOException, InterruptedException {
+        while (output.getSamples() < samples) {
+            extractor.read(input, positionHolder);
+        }
+    }
+
+    /**
+     * Deserialises the given number of frames as the extractor does, to measure what that allocates
+     */
+    private static void deserialize(List<byte[]> frames, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = frames.get(i % frames.size());
+            try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(bytes, 0, bytes.length))) {
+                objectInput.readUnshared();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static byte[] serialize(HTSPMessage message) throws IOException {
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+             ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)
+        ) {
+            objectOutput.writeUnshared(message);
+            objectOutput.flush();
+
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Frames serialised messages by their length, as the subscription data source does
+     */
+    private static byte[] frame(List<byte[]> messages) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(outputStream);
+
+        for (byte[] bytes : messages) {
+            dataOutput.writeInt(bytes.length);
+            dataOutput.write(bytes);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Returns the HEADER and a framed subscriptionStart with the given streams
+     */
+    private static byte[] buildStart(int... indexes) throws IOException {
+        ArrayList<HTSPMessage> streams = new ArrayList<>();
+        for (int index : indexes) {
+            streams.add(buildStream(index));
+        }
+
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "subscriptionStart");
+        message.put("streams", streams);
+
+        byte[] startFrame = frame(Collections.singletonList(serialize(message)));
+        byte[] start = Arrays.copyOf(HTSPSubscriptionDataSource.HEADER, HTSPSubscriptionDataSource.HEADER.length + startFrame.length);
+        System.arraycopy(startFrame, 0, start, HTSPSubscriptionDataSource.HEADER.length, startFrame.length);
+        return start;
+    }
+
+    private static HTSPMessage buildMuxpkt(int stream, long pts, int duration, int frameType, byte[] payload) {
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "muxpkt");
+        message.put("stream", stream);
+        message.put("pts", pts);
+        message.put("duration", duration);
+        if (frameType != HTSPMuxPacket.FRAME_TYPE_UNKNOWN) {
+            message.put("frametype", frameType);
+        }
+        message.put("payload", payload);
+        return message;
+    }
+
+    private static HTSPMessage buildStream(int index) {
+        HTSPMessage stream = new HTSPMessage();
+        stream.put("index", index);
+        if (index == VIDEO_STREAM) {
+            stream.put("type", "H264");
+            stream.put("width", 1920);
+            stream.put("height", 1080);
+            stream.put("duration", 40000);
+        } else if (index == AUDIO_STREAM) {
+            stream.put("type", "AAC");
+            stream.put("rate", 3);
+            stream.put("channels", 2);
+        } else {
+            stream.put("type", "TELETEXT");
+            stream.put("language", "fra");
+        }
+        return stream;
+    }
+}
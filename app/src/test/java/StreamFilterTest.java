@@ -0,0 +1,155 @@
+import android.os.Build;
+import android.util.SparseIntArray;
+
+import com.google.android.exoplayer2.C;
+import com.openiptv.code.player.StreamFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class StreamFilterTest {
+    // Stream indices of the subscription, and the tracks they feed
+    private static final int VIDEO_STREAM = 1;
+    private static final int AUDIO_STREAM = 2;
+    private static final int SECOND_AUDIO_STREAM = 3;
+    private static final int SUBTITLE_STREAM = 4;
+    private static final int UNUSED_STREAM = 5;
+    private static final int VIDEO_TRACK = 10;
+    private static final int AUDIO_TRACK = 20;
+    private static final int SECOND_AUDIO_TRACK = 21;
+    private static final int SUBTITLE_TRACK = 30;
+
+    private final List<List<Integer>> sentEnabled = new ArrayList<>();
+    private final List<List<Integer>> sentDisabled = new ArrayList<>();
+    private StreamFilter filter;
+
+    @Before
+    public void createFilter() {
+        filter = new StreamFilter((enable, disable) -> {
+            sentEnabled.add(enable);
+            sentDisabled.add(disable);
+        });
+    }
+
+    /**
+     * Tests that nothing is filtered until both the streams have been mapped and the tracks
+     * selected, and that then only the selected tracks' streams are enabled.
+     *
+     * Expected Result: one filter, disabling the unselected and unused streams
+     */
+    @Test
+    public void testFiltersUnselectedStreams() {
+        mapStreams();
+        assertThat(sentDisabled).isEmpty();
+
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK, SUBTITLE_TRACK);
+
+        assertThat(sentEnabled).hasSize(1);
+        assertThat(sentEnabled.get(0)).containsExactly(VIDEO_STREAM, AUDIO_STREAM, SUBTITLE_STREAM);
+        assertThat(sentDisabled.get(0)).containsExactly(SECOND_AUDIO_STREAM, UNUSED_STREAM);
+        assertThat(filter.isTrackDisabled(SECOND_AUDIO_TRACK)).isTrue();
+        assertThat(filter.isTrackDisabled(AUDIO_TRACK)).isFalse();
+    }
+
+    /**
+     * Tests that the filter is only sent again when the disabled streams change, or when a new
+     * subscription sends every stream again.
+     *
+     * Expected Result: no filter for an unchanged selection, a filter for a new mapping
+     */
+    @Test
+    public void testSendsOnlyChanges() {
+        mapStreams();
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK, SUBTITLE_TRACK);
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK, SUBTITLE_TRACK);
+        filter.setCaptionsEnabled(true);
+        assertThat(sentDisabled).hasSize(1);
+
+        selectTracks(VIDEO_TRACK, SECOND_AUDIO_TRACK, SUBTITLE_TRACK);
+        assertThat(sentDisabled).hasSize(2);
+        assertThat(sentDisabled.get(1)).containsExactly(AUDIO_STREAM, UNUSED_STREAM);
+
+        mapStreams();
+        assertThat(sentDisabled).hasSize(3);
+        assertThat(sentDisabled.get(2)).containsExactly(AUDIO_STREAM, UNUSED_STREAM);
+    }
+
+    /**
+     * Tests that turning captions off disables the selected subtitle stream, and audio only
+     * disables the selected video stream.
+     *
+     * Expected Result: the subtitle, then the video stream is disabled along with the unselected
+     */
+    @Test
+    public void testCaptionsAndVideoToggles() {
+        mapStreams();
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK, SUBTITLE_TRACK);
+
+        filter.setCaptionsEnabled(false);
+        assertThat(sentDisabled.get(1)).containsExactly(SECOND_AUDIO_STREAM, SUBTITLE_STREAM, UNUSED_STREAM);
+        assertThat(filter.isTrackDisabled(SUBTITLE_TRACK)).isTrue();
+
+        filter.setVideoEnabled(false);
+        assertThat(sentEnabled.get(2)).containsExactly(AUDIO_STREAM);
+        assertThat(filter.isTrackDisabled(VIDEO_TRACK)).isTrue();
+
+        filter.setVideoEnabled(true);
+        filter.setCaptionsEnabled(true);
+        assertThat(sentDisabled.get(4)).containsExactly(SECOND_AUDIO_STREAM, UNUSED_STREAM);
+    }
+
+    /**
+     * Tests that a reset, as a new channel is tuned, forgets the selection, so nothing is filtered
+     * on the new channel until its tracks have been selected.
+     *
+     * Expected Result: no filter after the reset until a selection
+     */
+    @Test
+    public void testResetForgetsSelection() {
+        mapStreams();
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK);
+        assertThat(sentDisabled).hasSize(1);
+
+        filter.reset();
+        assertThat(filter.isTrackDisabled(SECOND_AUDIO_TRACK)).isFalse();
+        mapStreams();
+        assertThat(sentDisabled).hasSize(1);
+
+        selectTracks(VIDEO_TRACK, AUDIO_TRACK);
+        assertThat(sentDisabled).hasSize(2);
+    }
+
+    private void mapStreams() {
+        SparseIntArray trackIds = new SparseIntArray();
+        SparseIntArray trackTypes = new SparseIntArray();
+        trackIds.put(VIDEO_STREAM, VIDEO_TRACK);
+        trackTypes.put(VIDEO_STREAM, C.TRACK_TYPE_VIDEO);
+        trackIds.put(AUDIO_STREAM, AUDIO_TRACK);
+        trackTypes.put(AUDIO_STREAM, C.TRACK_TYPE_AUDIO);
+        trackIds.put(SECOND_AUDIO_STREAM, SECOND_AUDIO_TRACK);
+        trackTypes.put(SECOND_AUDIO_STREAM, C.TRACK_TYPE_AUDIO);
+        trackIds.put(SUBTITLE_STREAM, SUBTITLE_TRACK);
+        trackTypes.put(SUBTITLE_STREAM, C.TRACK_TYPE_TEXT);
+
+        filter.onStreamsMapped(trackIds, trackTypes, Collections.singleton(UNUSED_STREAM));
+    }
+
+    private void selectTracks(Integer... trackIds) {
+        Set<Integer> selected = new HashSet<>(Arrays.asList(trackIds));
+        filter.setSelectedTracks(selected);
+    }
+}
@@ -0,0 +1,136 @@
+import android.os.Build;
+
+import com.openiptv.code.htsp.HTSPMessage;
+import com.openiptv.code.htsp.SubscriptionHealth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class SubscriptionHealthTest {
+    // Drop counters of the subscription, which the server sends as totals
+    private long bDrops = 0;
+    private long pDrops = 0;
+    private long iDrops = 0;
+
+    /**
+     * Tests that occasional drops leave the subscription healthy.
+     *
+     * Expected Result: healthy throughout, no state change reported
+     */
+    @Test
+    public void testOccasionalDropsStayHealthy() {
+        SubscriptionHealth health = new SubscriptionHealth();
+
+        for (int i = 0; i < 5; i++) {
+            pDrops += 2;
+            assertThat(health.onQueueStatus(queueStatus())).isFalse();
+            assertThat(health.onQueueStatus(queueStatus())).isFalse();
+        }
+
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.HEALTHY);
+        assertThat(health.getPFrameDrops()).isEqualTo(10L);
+    }
+
+    /**
+     * Tests that B or P frames dropped over a few intervals in a row degrade the subscription, and
+     * that it is only healthy again once the drops have stopped for as long.
+     *
+     * Expected Result: degraded on the third interval with drops, healthy on the third without
+     */
+    @Test
+    public void testSustainedDropsDegrade() {
+        SubscriptionHealth health = new SubscriptionHealth();
+
+        bDrops += 3;
+        assertThat(health.onQueueStatus(queueStatus())).isFalse();
+        pDrops += 1;
+        assertThat(health.onQueueStatus(queueStatus())).isFalse();
+        bDrops += 2;
+        assertThat(health.onQueueStatus(queueStatus())).isTrue();
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.DEGRADED);
+        assertThat(health.getBFrameDropDelta()).isEqualTo(2L);
+        assertThat(health.getPFrameDropDelta()).isEqualTo(0L);
+
+        assertThat(health.onQueueStatus(queueStatus())).isFalse();
+        assertThat(health.onQueueStatus(queueStatus())).isFalse();
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.DEGRADED);
+        assertThat(health.onQueueStatus(queueStatus())).isTrue();
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.HEALTHY);
+    }
+
+    /**
+     * Tests that key frames dropped over a few intervals in a row fail the subscription, and that
+     * it is degraded, not healthy, while other frames are still being dropped once key frames get
+     * through again.
+     *
+     * Expected Result: failing, then degraded
+     */
+    @Test
+    public void testKeyFrameDropsFail() {
+        SubscriptionHealth health = new SubscriptionHealth();
+
+        for (int i = 0; i < 3; i++) {
+            iDrops++;
+            health.onQueueStatus(queueStatus());
+        }
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.FAILING);
+
+        pDrops += 5;
+        assertThat(health.onQueueStatus(queueStatus())).isTrue();
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.DEGRADED);
+        assertThat(health.getIFrameDropDelta()).isEqualTo(0L);
+    }
+
+    /**
+     * Tests that drop counters lower than before are taken as the server counting again, and that
+     * a reset forgets everything.
+     *
+     * Expected Result: the new count is the delta, a reset subscription is healthy and unknown
+     */
+    @Test
+    public void testCountersRestartAndReset() {
+        SubscriptionHealth health = new SubscriptionHealth();
+
+        pDrops = 100;
+        health.onQueueStatus(queueStatus());
+        pDrops = 4;
+        health.onQueueStatus(queueStatus());
+        assertThat(health.getPFrameDropDelta()).isEqualTo(4L);
+        assertThat(health.getQueueDelayUs()).isEqualTo(20000L);
+
+        HTSPMessage status = new HTSPMessage();
+        status.put("method", "subscriptionStatus");
+        status.put("status", "No free adapter");
+        status.put("subscriptionError", "noFreeAdapter");
+        health.onSubscriptionStatus(status);
+        assertThat(health.getError()).isEqualTo("noFreeAdapter");
+
+        // The server leaves out the status once the problem is gone
+        health.onSubscriptionStatus(new HTSPMessage());
+        assertThat(health.getStatus()).isNull();
+        assertThat(health.getError()).isNull();
+
+        health.reset();
+        assertThat(health.getState()).isEqualTo(SubscriptionHealth.State.HEALTHY);
+        assertThat(health.getPFrameDrops()).isEqualTo(0L);
+        assertThat(health.getQueueDelayUs()).isEqualTo(-1L);
+    }
+
+    private HTSPMessage queueStatus() {
+        HTSPMessage message = new HTSPMessage();
+        message.put("method", "queueStatus");
+        message.put("packets", 10L);
+        message.put("bytes", 100000L);
+        message.put("delay", 20000L);
+        message.put("Bdrops", bDrops);
+        message.put("Pdrops", pDrops);
+        message.put("Idrops", iDrops);
+        return message;
+    }
+}
@@ -0,0 +1,225 @@
+import android.os.Build;
+
+import com.openiptv.code.player.AVCReader;
+import com.openiptv.code.player.HEVCReader;
+import com.openiptv.code.player.HTSPMuxPacket;
+import com.openiptv.code.player.MPEG2VideoReader;
+import com.openiptv.code.player.VideoReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static com.google.common.truth.Truth.assertThat;
+
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+public class VideoReaderTest {
+    // AVC NAL unit headers, nal_ref_idc 3
+    private static final int AVC_NON_IDR = 0x61;
+    private static final int AVC_IDR = 0x65;
+    private static final int AVC_SEI = 0x06;
+    private static final int AVC_SPS = 0x67;
+    private static final int AVC_PPS = 0x68;
+    private static final int AVC_AUD = 0x09;
+    private static final int SEI_RECOVERY_POINT = 6;
+    private static final int SEI_USER_DATA = 5;
+
+    // HEVC NAL unit types
+    private static final int HEVC_TRAIL_R = 1;
+    private static final int HEVC_IDR_W_RADL = 19;
+    private static final int HEVC_CRA = 21;
+    private static final int HEVC_VPS = 32;
+    private static final int HEVC_SPS = 33;
+    private static final int HEVC_PPS = 34;
+
+    // MPEG-2 picture coding types
+    private static final int MPEG2_I = 1;
+    private static final int MPEG2_P = 2;
+
+    /**
+     * Tests that an AVC access unit with an IDR slice is a key frame, behind parameter sets and
+     * with four byte start codes.
+     *
+     * Expected Result: key frame
+     */
+    @Test
+    public void testAvcIdrIsKeyFrame() {
+        VideoReader reader = new AVCReader(getApplicationContext());
+
+        assertThat(reader.isKeyFrame(buildPacket(accessUnit(true, AVC_AUD, AVC_SPS, AVC_PPS, AVC_IDR)))).isTrue();
+    }
+
+    /**
+     * Tests that an AVC access unit whose first slice isn't an IDR isn't a key frame, even with its
+     * SPS in band.
+     *
+     * Expected Result: not a key frame
+     */
+    @Test
+    public void testAvcNonIdrIsNotKeyFrame() {
+        VideoReader reader = new AVCReader(getApplicationContext());
+
+        assertThat(reader.isKeyFrame(buildPacket(accessUnit(false, AVC_AUD, AVC_NON_IDR)))).isFalse();
+        assertThat(reader.isKeyFrame(buildPacket(accessUnit(false, AVC_SPS, AVC_PPS, AVC_NON_IDR)))).isFalse();
+    }
+
+    /**
+     * Tests the recovery point SEI, which marks the I frames of broadcasts without IDRs. Only the SEI
+     * along with an SPS makes the access unit a key frame, and the state doesn't carry over to the
+     * next access unit.
+     *
+     * Expected Result: key frame with both, not a key frame with either alone or after one
+     */
+    @Test
+    public void testAvcRecoveryPoint() {
+        VideoReader reader = new AVCReader(getApplicationContext());
+
+        byte[] recoveryPoint = accessUnit(false, AVC_SPS, AVC_PPS, AVC_SEI, SEI_RECOVERY_POINT, AVC_NON_IDR);
+        assertThat(reader.isKeyFrame(buildPacket(recoveryPoint))).isTrue();
+
+        byte[] userData = accessUnit(false, AVC_SPS, AVC_PPS, AVC_SEI, SEI_USER_DATA, AVC_NON_IDR);
+        assertThat(reader.isKeyFrame(buildPacket(userData))).isFalse();
+
+        byte[] withoutSps = accessUnit(false, AVC_SEI, SEI_RECOVERY_POINT, AVC_NON_IDR);
+        assertThat(reader.isKeyFrame(buildPacket(withoutSps))).isFalse();
+    }
+
+    /**
+     * Tests HEVC access units, whose first slice decides them: IRAP slices are key frames, others
+     * aren't, and the parameter sets ahead of them don't count.
+     *
+     * Expected Result: IDR and CRA are key frames, TRAIL_R isn't
+     */
+    @Test
+    public void testHevcFirstSliceDecides() {
+        VideoReader reader = new HEVCReader(getApplicationContext());
+
+        assertThat(reader.isKeyFrame(buildPacket(hevcAccessUnit(HEVC_VPS, HEVC_SPS, HEVC_PPS, HEVC_IDR_W_RADL)))).isTrue();
+        assertThat(reader.isKeyFrame(buildPacket(hevcAccessUnit(HEVC_CRA)))).isTrue();
+        assertThat(reader.isKeyFrame(buildPacket(hevcAccessUnit(HEVC_TRAIL_R)))).isFalse();
+        assertThat(reader.isKeyFrame(buildPacket(hevcAccessUnit(HEVC_TRAIL_R, HEVC_CRA)))).isFalse();
+    }
+
+    /**
+     * Tests MPEG-2 pictures, whose coding type in the picture header decides them, behind the
+     * sequence and GOP headers.
+     *
+     * Expected Result: I pictures are key frames, P pictures aren't
+     */
+    @Test
+    public void testMpeg2PictureTypeDecides() {
+        VideoReader reader = new MPEG2VideoReader(getApplicationContext());
+
+        assertThat(reader.isKeyFrame(buildPacket(mpeg2Picture(MPEG2_I)))).isTrue();
+        assertThat(reader.isKeyFrame(buildPacket(mpeg2Picture(MPEG2_P)))).isFalse();
+    }
+
+    /**
+     * Tests that the scan honours the payload offset and length of the packet, ignoring NAL units
+     * outside of them.
+     *
+     * Expected Result: only the slice inside the payload decides
+     */
+    @Test
+    public void testScanStaysInsidePayload() {
+        VideoReader reader = new AVCReader(getApplicationContext());
+
+        byte[] before = accessUnit(false, AVC_IDR);
+        byte[] payload = accessUnit(false, AVC_NON_IDR);
+        byte[] data = new byte[before.length + payload.length + before.length];
+        System.arraycopy(before, 0, data, 0, before.length);
+        System.arraycopy(payload, 0, data, before.length, payload.length);
+        System.arraycopy(before, 0, data, before.length + payload.length, before.length);
+
+        HTSPMuxPacket packet = buildPacket(data);
+        packet.payloadOffset = before.length;
+        packet.payloadLength = payload.length;
+
+        assertThat(reader.isKeyFrame(packet)).isFalse();
+    }
+
+    /**
+     * Tests that the frame type sent by the server wins over the payload, and that a payload
+     * without any start code is taken to be a key frame.
+     *
+     * Expected Result: the frame type decides, an undecided payload is a key frame
+     */
+    @Test
+    public void testFrameTypeAndUndecidedPayload() {
+        VideoReader reader = new AVCReader(getApplicationContext());
+
+        HTSPMuxPacket packet = buildPacket(accessUnit(true, AVC_SPS, AVC_PPS, AVC_IDR));
+        packet.frameType = 'P';
+        assertThat(reader.isKeyFrame(packet)).isFalse();
+
+        packet = buildPacket(accessUnit(false, AVC_NON_IDR));
+        packet.frameType = 'I';
+        assertThat(reader.isKeyFrame(packet)).isTrue();
+
+        assertThat(reader.isKeyFrame(buildPacket(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}))).isTrue();
+    }
+
+    private static HTSPMuxPacket buildPacket(byte[] payload) {
+        HTSPMuxPacket packet = new HTSPMuxPacket();
+        packet.frameType = HTSPMuxPacket.FRAME_TYPE_UNKNOWN;
+        packet.payload = payload;
+        packet.payloadOffset = 0;
+        packet.payloadLength = payload.length;
+        return packet;
+    }
+
+    /**
+     * Builds an AVC access unit of NAL units with a few bytes of body each. An SEI header is followed
+     * by its payload type, which is taken from the next value.
+     */
+    private static byte[] accessUnit(boolean longStartCodes, int... headers) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i++) {
+            if (longStartCodes) {
+                output.write(0);
+            }
+            output.write(0);
+            output.write(0);
+            output.write(1);
+            output.write(headers[i]);
+            if (headers[i] == AVC_SEI) {
+                output.write(headers[++i]);
+            }
+            output.write(0x80);
+            output.write(0x42);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Builds an MPEG-2 picture behind a sequence header and a GOP header
+     */
+    private static byte[] mpeg2Picture(int codingType) {
+        return new byte[] {
+                0, 0, 1, (byte) 0xB3, 0x2D, 0x02, 0x40, 0x33,
+                0, 0, 1, (byte) 0xB8, 0x00, 0x08, 0x00, 0x00,
+                // Temporal reference 0, then the coding type
+                0, 0, 1, 0x00, 0x00, (byte) (codingType << 3), (byte) 0xFF, (byte) 0xF8,
+                0, 0, 1, 0x01, 0x42, 0x42
+        };
+    }
+
+    private static byte[] hevcAccessUnit(int... nalUnitTypes) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int nalUnitType : nalUnitTypes) {
+            output.write(0);
+            output.write(0);
+            output.write(1);
+            output.write(nalUnitType << 1);
+            output.write(1);
+            output.write(0x80);
+            output.write(0x42);
+        }
+        return output.toByteArray();
+    }
+}